@@ -1,3 +1,5 @@
+PRAGMA auto_vacuum = INCREMENTAL;
+
 CREATE TABLE bans
 (
     subreddit TEXT
@@ -5,20 +7,25 @@ CREATE TABLE bans
 
 CREATE TABLE matches 
 (
-    user_comment_id     TEXT    PRIMARY KEY
+    user_comment_id     TEXT    PRIMARY KEY,
+    created             INTEGER
 );
 
 CREATE INDEX matches_index on matches (user_comment_id);
+CREATE INDEX matches_created_index on matches (created);
 
 CREATE TABLE polls 
 (
     user_comment_id     TEXT    PRIMARY KEY,
     poll_comment_id     TEXT,
     poll_id             INTEGER,
-    title               TEXT
+    title               TEXT,
+    account             TEXT,
+    created             INTEGER
 );
 
 CREATE INDEX polls_index on polls (user_comment_id);
+CREATE INDEX polls_created_index on polls (created);
 
 CREATE TABLE poll_options 
 (
@@ -29,13 +36,60 @@ CREATE TABLE poll_options
     FOREIGN KEY(poll_id) REFERENCES polls(poll_id) 
 );
 
+CREATE INDEX poll_options_index on poll_options (poll_id);
+
+CREATE TABLE users
+(
+    user_id             INTEGER PRIMARY KEY,
+    username            TEXT    UNIQUE
+);
+
 CREATE TABLE poll_votes 
 (
     poll_id             INTEGER, 
+    user_id             INTEGER,
     option_num          INTEGER,
-    username            TEXT,
 
+    PRIMARY KEY (poll_id, user_id),
     FOREIGN KEY(poll_id) REFERENCES polls(poll_id) 
+) WITHOUT ROWID;
+
+CREATE TABLE leases
+(
+    shard               INTEGER PRIMARY KEY,
+    owner               TEXT,
+    expires             INTEGER
+);
+
+CREATE TABLE lease_instances
+(
+    instance            TEXT    PRIMARY KEY,
+    heartbeat           INTEGER
 );
 
+CREATE TABLE poll_tallies
+(
+    poll_id             INTEGER,
+    option_num          INTEGER,
+    votes               INTEGER,
+
+    PRIMARY KEY (poll_id, option_num)
+) WITHOUT ROWID;
+
+CREATE TABLE poll_results
+(
+    poll_id             INTEGER PRIMARY KEY,
+    total               INTEGER,
+    tallies             TEXT,
+    closed              INTEGER
+);
+
+CREATE TABLE message_votes
+(
+    message_id          TEXT,
+    poll_id             INTEGER,
+
+    PRIMARY KEY (message_id, poll_id)
+) WITHOUT ROWID;
 
+PRAGMA user_version = 6;
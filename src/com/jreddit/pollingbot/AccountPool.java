@@ -0,0 +1,120 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * The pool of reddit accounts the bot posts polls with.
+ *
+ * Every comment edit is bound by the rate limit of the account which 
+ * owns the comment, so spreading polls across several accounts multiplies
+ * the number of poll updates we can make.
+ *
+ * The first account is the primary account. It is used for everything
+ * which is not tied to a particular poll (replies, suggestions, crawling).
+ *
+ */
+public class AccountPool {
+
+    //
+    // Number of most recently created polls considered when computing
+    // account load. Recent polls are the ones receiving votes.
+    //
+    public static final int RECENT_POLLS = 100;
+
+    private List<User> _users = new ArrayList<User>();
+    private Map<String, User> _byName = new HashMap<String, User>();
+
+    //
+    // Number of recent polls owned, by position in _users
+    //
+    private int[] _load;
+
+    public AccountPool(List<User> users) {
+        for(User user: users) {
+            _users.add(user);
+            _byName.put(user.getUsername(), user);
+        }
+        _load = new int[_users.size()];
+    }
+
+    /**
+     * Return the primary account.
+     */
+    public User getPrimary() { return _users.get(0); }
+
+    /**
+     * Return all accounts, primary first.
+     */
+    public List<User> getUsers() { return _users; }
+
+    public int size() { return _users.size(); }
+
+    /**
+     *
+     * Return true if the name is one of our accounts.
+     *
+     */
+    public boolean isAccount(String username) {
+        return username != null && _byName.containsKey(username);
+    }
+
+    /**
+     *
+     * Return the account with the specified name. Polls created before
+     * accounts were tracked have no owner, those belong to the primary
+     * account. So do polls owned by an account no longer configured.
+     *
+     */
+    public User getUser(String username) {
+        User user = null;
+        if(username != null) {
+            user = _byName.get(username);
+        }
+        if(user == null) {
+            user = getPrimary();
+        }
+        return user;
+    }
+
+    /**
+     *
+     * Set the load of each account from the poll counts stored in the
+     * database, replacing the counts kept since the last time. The bot
+     * does this periodically, so polls which dropped out of the recent
+     * ones stop counting.
+     *
+     * @param load      account name => number of recent polls owned
+     *
+     */
+    public synchronized void setLoad(Map<String, Integer> load) {
+        Arrays.fill(_load, 0);
+        for(Map.Entry<String, Integer> entry: load.entrySet()) {
+            int owner = _users.indexOf(getUser(entry.getKey()));
+            _load[owner] += entry.getValue().intValue();
+        }
+    }
+
+    /**
+     *
+     * Pick the least loaded account to own a new poll. It counts
+     * towards the account's load until the next setLoad().
+     *
+     */
+    public synchronized User assign() {
+        int ret = 0;
+        for(int i = 1; i < _load.length; i++) {
+            if(_load[i] < _load[ret]) {
+                ret = i;
+            }
+        }
+        _load[ret]++;
+        return _users.get(ret);
+    }
+
+}
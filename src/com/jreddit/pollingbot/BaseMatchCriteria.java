@@ -1,7 +1,9 @@
 package com.jreddit.pollingbot;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import com.omrlnr.jreddit.*;
@@ -11,28 +13,361 @@ import com.jreddit.botkernel.*;
 
 /**
  *
- * 
+ * Matching is split in two phases. evaluate() looks at a thing's body and
+ * must be free of side effects, so it may run on several threads at once.
+ * apply() acts on a match (db, replies) and is only ever called by one 
+ * thread at a time, in the order the things were listed.
+ *
+ * Things are matched one at a time as the crawler hands them over, or 
+ * in batches with their evaluation spread across all cores.
+ *
+ * Each thing is only evaluated once. The fullnames of recently evaluated
+ * things are kept in a bounded seen-set, and things in it are skipped 
+ * before their body is even looked at. The seen-set is kept in the
+ * state snapshot, so a restart does not evaluate everything again.
+ *
+ * Only things which are done with go in the seen-set: those which do
+ * not match, and matches handled by apply(). A thing which can't be
+ * decided now, e.g. because another instance owns it, is evaluated
+ * again on the next crawl; evaluate() returns RETRY for those, and
+ * apply() calls retryLater(). A match whose handling fails later on is
+ * taken out again with forget().
+ *
+ * A match handed on to be handled in the background, e.g. queued, is
+ * marked pending by apply() until it has been recorded. Pending things
+ * are left out of the snapshot, so work lost in a crash is evaluated
+ * again after the restart.
  *
  */
-public abstract class BaseMatchCriteria implements CrawlerMatchCriteria {
+public abstract class BaseMatchCriteria 
+                implements CrawlerMatchCriteria, SnapshotParticipant {
+
+    //
+    // Shared by all criteria to evaluate batches
+    //
+    private static final ForkJoinPool EVALUATOR = 
+                new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    //
+    // Smallest number of things evaluated by one task
+    //
+    private static final int MIN_CHUNK = 8;
+
+    //
+    // Number of fullnames remembered in the seen-set
+    //
+    private static final int SEEN_SIZE = 10000;
+
+    //
+    // Returned by evaluate() for a thing to look at again later
+    //
+    protected static final Object RETRY = new Object();
 
     protected PollingBot _bot;
 
+    //
+    // Recently evaluated things. Guarded by itself.
+    //
+    private Map<String, Boolean> _seen = 
+                new LinkedHashMap<String, Boolean>() {
+                    protected boolean removeEldestEntry(
+                                    Map.Entry<String, Boolean> eldest) {
+                        return size() > SEEN_SIZE;
+                    }
+                };
+
+    //
+    // Keys of things in the seen-set whose handling is not recorded
+    // yet. Guarded by _seen.
+    //
+    private Set<String> _pending = new HashSet<String>();
+
+    //
+    // Set by retryLater() during apply(). Guarded by _applyLock.
+    //
+    private boolean _retry;
+
+    //
+    // Serializes apply()
+    //
+    private Object _applyLock = new Object();
+
+    //
+    // Batching of things handed over by crawlers, see setBatchSize().
+    // Guarded by _batch.
+    //
+    private int _batchSize;
+    private List<Thing> _batch = new ArrayList<Thing>();
+    private ExecutorService _batcher;
+
     public BaseMatchCriteria(PollingBot bot) {
         _bot = bot;
     }
 
+    /**
+     *
+     * Collect things handed over by crawlers into batches of this size 
+     * and match them with matchBatch() on a background thread, so the 
+     * crawler can go on listing while a batch is evaluated. 
+     * Call flush() at the end of a crawl for the last partial batch.
+     *
+     * @param size  The batch size, 0 to match things one at a time
+     *
+     */
+    public void setBatchSize(int size) {
+        synchronized(_batch) {
+            _batchSize = size;
+            if(size > 0 && _batcher == null) {
+                _batcher = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "PollingBot-batcher");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            }
+        }
+    }
+
     public boolean match(Thing thing) {
 
+        if(isSeen(thing)) {
+            return false;
+        }
+
+        List<Thing> batch = null;
+        synchronized(_batch) {
+            if(_batchSize > 0) {
+                _batch.add(thing);
+                if(_batch.size() < _batchSize) {
+                    return false;
+                }
+                batch = _batch;
+                _batch = new ArrayList<Thing>();
+            }
+        }
+
+        if(batch != null) {
+            submitBatch(batch);
+            //
+            // Matches are handled in apply(), there is no event for 
+            // the framework to deliver.
+            //
+            return false;
+        }
+
+        String body = getBody(thing);
+        if(body == null) {
+            setSeen(thing);
+            return false;
+        }
+
+        return matchBody(thing, body);
+    }
+
+    /**
+     *
+     * Return true if the thing was evaluated already.
+     *
+     */
+    public boolean isSeen(Thing thing) {
+        synchronized(_seen) {
+            return _seen.containsKey(getKey(thing));
+        }
+    }
+
+    private void setSeen(Thing thing) {
+        synchronized(_seen) {
+            _seen.put(getKey(thing), Boolean.TRUE);
+        }
+    }
+
+    /**
+     *
+     * Take a thing out of the seen-set, so the next crawl evaluates it
+     * again. For matches which could not be handled after all.
+     *
+     */
+    public void forget(Thing thing) {
+        synchronized(_seen) {
+            _seen.remove(getKey(thing));
+            _pending.remove(getKey(thing));
+        }
+    }
+
+    /**
+     *
+     * Called from apply() for a match handed on to be handled in the 
+     * background. It stays out of the snapshot until setRecorded().
+     *
+     */
+    protected void setPending(Thing thing) {
+        synchronized(_seen) {
+            _pending.add(getKey(thing));
+        }
+    }
+
+    /**
+     *
+     * A pending match has been recorded as handled.
+     *
+     */
+    public void setRecorded(Thing thing) {
+        synchronized(_seen) {
+            _pending.remove(getKey(thing));
+        }
+    }
+
+    public String getSnapshotTag() {
+        return "criteria." + getClass().getSimpleName();
+    }
+
+    public void writeSnapshot(DataOutput out) throws IOException {
+        List<String> keys;
+        synchronized(_seen) {
+            keys = new ArrayList<String>(_seen.keySet());
+            keys.removeAll(_pending);
+        }
+        out.writeInt(keys.size());
+        for(String key: keys) {
+            StateSnapshot.writeString(out, key);
+        }
+    }
+
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        synchronized(_seen) {
+            for(int i = 0; i < count; i++) {
+                _seen.put(StateSnapshot.readString(in), Boolean.TRUE);
+            }
+        }
+    }
+
+    private static String getKey(Thing thing) {
+        String name = thing.getName();
+        return name == null ? thing.getId() : name;
+    }
+
+    /**
+     *
+     * Called from apply() when a match could not be handled now, such as
+     * when a queue is full. The thing is left out of the seen-set so the
+     * next crawl evaluates it again.
+     *
+     */
+    protected void retryLater() {
+        _retry = true;
+    }
+
+    /**
+     *
+     * Apply a match and record the thing as seen unless it asked to be
+     * retried. Must be called holding _applyLock.
+     *
+     */
+    private boolean applyOnce(Thing thing, String body, Object match) {
+        _retry = false;
+        boolean ret = apply(thing, body, match);
+        if(!_retry) {
+            setSeen(thing);
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Match whatever is left of the current batch.
+     *
+     */
+    public void flush() {
+        List<Thing> batch;
+        synchronized(_batch) {
+            if(_batch.size() == 0) {
+                return;
+            }
+            batch = _batch;
+            _batch = new ArrayList<Thing>();
+        }
+        submitBatch(batch);
+    }
+
+    private void submitBatch(final List<Thing> batch) {
+        try {
+            _batcher.execute(new Runnable() {
+                public void run() {
+                    matchBatch(batch);
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            //
+            // Batching stopped after the batch was taken. It stays out
+            // of the seen-set, to be evaluated again after the restart.
+            //
+            Log.fine("Batching stopped, leaving {} things", batch.size());
+        }
+    }
+
+    /**
+     *
+     * Stop batching, matching anything still batched first.
+     *
+     */
+    public void stopBatching() {
+        flush();
+        synchronized(_batch) {
+            _batchSize = 0;
+            if(_batcher != null) {
+                _batcher.shutdown();
+            }
+        }
+    }
+
+    /**
+     *
+     * Stop batching and wait for the batches being matched, giving up
+     * at the deadline.
+     *
+     * @return the number of batches left unmatched, 1 if any are
+     *
+     */
+    public int drainBatches(long deadline) {
+        stopBatching();
+        ExecutorService batcher;
+        synchronized(_batch) {
+            batcher = _batcher;
+        }
+        if(batcher == null) {
+            return 0;
+        }
+        try {
+            long wait = deadline - System.currentTimeMillis();
+            if(batcher.awaitTermination(Math.max(0, wait),
+                                        TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return 1;
+    }
+
+    /**
+     *
+     * Return the body to match in a thing, null if the thing can't match.
+     *
+     */
+    protected String getBody(Thing thing) {
+
         String body = null;
 
         //
         // Do not consider my own posts as criteria
         //
         String author = thing.getAuthor();
-        if( author != null && author.equals(_bot.getUser().getUsername())) {
+        if(_bot.getAccounts().isAccount(author)) {
             // log("Ignoring my own comment " + thing.getName());
-            return false;
+            return null;
         }
 
         if(thing instanceof Comment) {
@@ -49,19 +384,125 @@ public abstract class BaseMatchCriteria implements CrawlerMatchCriteria {
             }
         }
 
-        if(body == null) {
-            // Still nothing at this point, it's not a match.
+        // Still nothing at this point, it's not a match.
+        return body;
+    }
+
+    /**
+     *
+     * Match one thing.
+     *
+     */
+    protected boolean matchBody(Thing thing, String body) {
+        Object match = evaluate(thing, body);
+        if(match == RETRY) {
+            return false;
+        }
+        if(match == null) {
+            setSeen(thing);
             return false;
         }
+        synchronized(_applyLock) {
+            return applyOnce(thing, body, match);
+        }
+    }
+
+    /**
+     *
+     * Match a listing of things. Bodies are extracted and evaluated in
+     * parallel, then matches are applied one at a time in listing order.
+     * Things left unevaluated by an error are treated as RETRY.
+     *
+     * @return the things for which apply() returned true
+     *
+     */
+    public List<Thing> matchBatch(final List<? extends Thing> things) {
+
+        final int count = things.size();
+        final String[] bodies = new String[count];
+        final Object[] matches = new Object[count];
+        final boolean[] evaluated = new boolean[count];
+
+        int chunk = Math.max(MIN_CHUNK, 
+                        count / (4 * EVALUATOR.getParallelism()) + 1);
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for(int start = 0; start < count; start += chunk) {
+            final int from = start;
+            final int to = Math.min(count, start + chunk);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for(int i = from; i < to; i++) {
+                        Thing thing = things.get(i);
+                        if(isSeen(thing)) {
+                            continue;
+                        }
+                        bodies[i] = getBody(thing);
+                        if(bodies[i] != null) {
+                            matches[i] = evaluate(thing, bodies[i]);
+                        }
+                        evaluated[i] = true;
+                    }
+                    return null;
+                }
+            });
+        }
 
-        return matchBody(thing, body);
+        try {
+            for(Future<Object> future: EVALUATOR.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<Thing>();
+        } catch(ExecutionException ee) {
+            ee.printStackTrace();
+            Log.error("evaluating batch {}", ee);
+        }
+
+        List<Thing> ret = new ArrayList<Thing>();
+        synchronized(_applyLock) {
+            for(int i = 0; i < count; i++) {
+                if(!evaluated[i] || matches[i] == RETRY) {
+                    continue;
+                }
+                if(matches[i] == null) {
+                    setSeen(things.get(i));
+                    continue;
+                }
+                if(applyOnce(things.get(i), bodies[i], matches[i])) {
+                    ret.add(things.get(i));
+                }
+            }
+        }
+        return ret;
     }
 
-    protected abstract boolean matchBody(Thing thing, String body);
+    /**
+     *
+     * Look at a thing's body. Must not have side effects, this may run 
+     * on several threads at once.
+     *
+     * @return whatever apply() needs to act on a match, null if the 
+     *          thing does not match, or RETRY if it can't be decided 
+     *          now
+     *
+     */
+    protected abstract Object evaluate(Thing thing, String body);
+
+    /**
+     *
+     * Act on a match. Only ever called by one thread at a time.
+     *
+     * @param match     What evaluate() returned
+     *
+     * @return true to have the framework call back into the bot
+     *
+     */
+    protected abstract boolean apply(Thing thing, String body, Object match);
 
     public CrawlerListener getCrawlerListener() {
         return _bot;
     }
 
 }
-
@@ -0,0 +1,235 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *
+ * One reading of config.properties, never changed once built.
+ *
+ * The settings read on every poll request or pass are parsed up front:
+ * the subreddit policies are hash sets and maps keyed by lower case
+ * subreddit name, so checking a subreddit is a single lookup. Anything
+ * else is read from the properties with getProperty() and getInt().
+ *
+ * ConfigWatcher builds a new BotConfig when the file changes and swaps
+ * it in whole, so a caller which holds on to one sees a consistent set
+ * of settings.
+ *
+ */
+public class BotConfig {
+
+    //
+    // Default polls a user may create, and polls created in a subreddit
+    // not listed in unlimitedReddits, per day
+    //
+    public static final int USER_LIMIT      = 5;
+    public static final int SUBREDDIT_LIMIT = 5;
+
+    //
+    // Default seconds between checking for messages
+    //
+    public static final int SLEEP = 60;
+
+    //
+    // Settings which take effect without a restart. Anything else
+    // changed in the file is only read at startup. sleepSeconds is not
+    // among them: the botkernel home crawler takes its interval once,
+    // when it is created.
+    //
+    private static final String[] RELOADABLE = new String[] {
+        "owner", "suggestionSub", "unlimitedReddits", "userLimit",
+        "subredditLimit", "subredditLimit.*", "maxOptions",
+        "logLevel", "potentialPoll.*" };
+
+    private Properties _props;
+
+    private String _owner;
+    private String _subreddit;
+    private String _suggestionSub;
+    private String _logLevel;
+
+    private Set<String> _unlimitedSubreddits = new HashSet<String>();
+    private Map<String, Integer> _subredditLimits =
+                                            new HashMap<String, Integer>();
+
+    private int _userLimit;
+    private int _subredditLimit;
+    private int _maxOptions;
+    private int _sleep;
+
+    /**
+     *
+     * Read a config file.
+     *
+     */
+    public static BotConfig load(File file) throws IOException {
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return new BotConfig(props);
+    }
+
+    public BotConfig(Properties props) {
+
+        _props = new Properties();
+        _props.putAll(props);
+
+        _owner = getProperty("owner");
+        _subreddit = getProperty("subreddit");
+        _suggestionSub = getProperty("suggestionSub");
+        _logLevel = getProperty("logLevel", "INFO");
+
+        String unlimited = getProperty("unlimitedReddits", "");
+        for(String sub: unlimited.split(",")) {
+            if(!sub.trim().equals("")) {
+                _unlimitedSubreddits.add(sub.trim().toLowerCase());
+            }
+        }
+
+        _userLimit = getInt("userLimit", USER_LIMIT);
+        _subredditLimit = getInt("subredditLimit", SUBREDDIT_LIMIT);
+
+        //
+        // Per subreddit overrides look like subredditLimit.<sub>=10
+        //
+        for(String name: _props.stringPropertyNames()) {
+            if(name.startsWith("subredditLimit.")) {
+                _subredditLimits.put(
+                        name.substring(15).toLowerCase(),
+                        Integer.valueOf(getInt(name, _subredditLimit)));
+            }
+        }
+
+        //
+        // The poll table is laid out for at most MAX_OPTIONS options.
+        //
+        _maxOptions = Math.max(1, Math.min(
+                            PollRequestMatchCriteria.MAX_OPTIONS,
+                            getInt( "maxOptions",
+                                    PollRequestMatchCriteria.MAX_OPTIONS)));
+
+        _sleep = Math.max(1, getInt("sleepSeconds", SLEEP));
+    }
+
+    public String getProperty(String name) {
+        return _props.getProperty(name);
+    }
+
+    public String getProperty(String name, String def) {
+        return _props.getProperty(name, def);
+    }
+
+    /**
+     * Return true if a property is set to true.
+     */
+    public boolean isTrue(String name) {
+        return "true".equalsIgnoreCase(_props.getProperty(name));
+    }
+
+    /**
+     *
+     * Read an integer property, returning the default if it is missing
+     * or malformed.
+     *
+     */
+    public int getInt(String name, int def) {
+        String value = _props.getProperty(name);
+        if(value == null || value.trim().equals("")) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch(NumberFormatException nfe) {
+            Log.error("bad value for {}: {}", name, value);
+            return def;
+        }
+    }
+
+    public Set<String> getPropertyNames() {
+        return _props.stringPropertyNames();
+    }
+
+    /**
+     * Return bot owner.
+     */
+    public String getOwner() { return _owner; }
+
+    /**
+     * Return the bot's subreddit, where poll requests are looked for.
+     */
+    public String getSubreddit() { return _subreddit; }
+
+    public String getSuggestionSub() { return _suggestionSub; }
+    public String getLogLevel() { return _logLevel; }
+    public int getUserLimit() { return _userLimit; }
+    public int getMaxOptions() { return _maxOptions; }
+    public int getSleepSeconds() { return _sleep; }
+
+    /**
+     *
+     * Return true if polls created in a subreddit are not limited.
+     *
+     */
+    public boolean isUnlimited(String subreddit) {
+        return subreddit != null &&
+                _unlimitedSubreddits.contains(subreddit.toLowerCase());
+    }
+
+    /**
+     *
+     * Return the polls which may be created in a subreddit per day.
+     *
+     */
+    public int getSubredditLimit(String subreddit) {
+        if(subreddit != null && _subredditLimits.size() > 0) {
+            Integer limit = _subredditLimits.get(subreddit.toLowerCase());
+            if(limit != null) {
+                return limit.intValue();
+            }
+        }
+        return _subredditLimit;
+    }
+
+    /**
+     *
+     * Return the names of the properties which differ from another
+     * config, sorted.
+     *
+     */
+    public List<String> getChanges(BotConfig other) {
+        Set<String> names = new TreeSet<String>(getPropertyNames());
+        names.addAll(other.getPropertyNames());
+        List<String> changes = new ArrayList<String>();
+        for(String name: names) {
+            String value = getProperty(name);
+            if(value == null ? other.getProperty(name) != null :
+                              !value.equals(other.getProperty(name))) {
+                changes.add(name);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     *
+     * Return true if a property takes effect without a restart.
+     *
+     */
+    public static boolean isReloadable(String name) {
+        for(String pattern: RELOADABLE) {
+            if(pattern.endsWith("*") ?
+                    name.startsWith(pattern.substring(0,
+                                                pattern.length() - 1)) :
+                    name.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *
+ * Holds the current BotConfig and reads config.properties again when it
+ * changes on disk.
+ *
+ * The directory of the file is watched with a WatchService. Editors
+ * often write a file in several steps, so a change is only read once
+ * the file has been quiet for a moment. A file which cannot be read
+ * leaves the current config in place.
+ *
+ * Readers call get() and keep the BotConfig for as long as they need
+ * consistent settings, e.g. one poll request.
+ *
+ */
+public class ConfigWatcher implements Runnable {
+
+    /**
+     *
+     * Told about every new config, on the watcher thread.
+     *
+     */
+    public interface Listener {
+        void configChanged(BotConfig old, BotConfig config);
+    }
+
+    //
+    // How long the file must be quiet before it is read, in ms
+    //
+    private static final long SETTLE = 500;
+
+    private File _file;
+    private AtomicReference<BotConfig> _config;
+    private Listener _listener;
+
+    private WatchService _watcher;
+    private Thread _thread;
+    private volatile boolean _stopped;
+
+    /**
+     *
+     * @param file      The config file
+     * @param config    The config read from it at startup
+     * @param listener  Told about changes, may be null
+     *
+     */
+    public ConfigWatcher(File file, BotConfig config, Listener listener) {
+        _file = file.getAbsoluteFile();
+        _config = new AtomicReference<BotConfig>(config);
+        _listener = listener;
+    }
+
+    public BotConfig get() {
+        return _config.get();
+    }
+
+    /**
+     *
+     * Start watching the file.
+     *
+     */
+    public void start() throws IOException {
+        Path dir = _file.getParentFile().toPath();
+        _watcher = dir.getFileSystem().newWatchService();
+        dir.register(   _watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY );
+        _thread = new Thread(this, "PollingBot-config");
+        _thread.setDaemon(true);
+        _thread.start();
+        Log.info("Watching {} for changes", _file);
+    }
+
+    public void stop() {
+        _stopped = true;
+        if(_watcher != null) {
+            try {
+                _watcher.close();
+            } catch(IOException ioe) {
+                // Stopping anyway.
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            while(!_stopped) {
+                WatchKey key = _watcher.take();
+                boolean changed = isChanged(key);
+                boolean valid = key.reset();
+
+                //
+                // Wait for the writes to settle.
+                //
+                while(changed && valid &&
+                    (key = _watcher.poll(SETTLE, 
+                                         TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key);
+                    valid = key.reset();
+                }
+                if(changed) {
+                    reload();
+                }
+                if(!valid) {
+                    break;
+                }
+            }
+            if(!_stopped) {
+                Log.error("Lost watch on {}", _file.getParent());
+            }
+        } catch(InterruptedException ie) {
+            // Stopping
+        } catch(ClosedWatchServiceException cwse) {
+            // Stopping
+        }
+    }
+
+    /**
+     *
+     * Return true if the key has events for our file. Other files in
+     * the directory are ignored.
+     *
+     */
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+        for(WatchEvent<?> event: key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if(_file.getName().equals(
+                                    event.context().toString())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     *
+     * Read the file now, swapping in the new config if anything
+     * changed.
+     *
+     * @return false if the file could not be read
+     *
+     */
+    public boolean reload() {
+        BotConfig config;
+        try {
+            config = BotConfig.load(_file);
+        } catch(IOException ioe) {
+            Log.error("Could not read {}, keeping the current config: {}",
+                        _file, ioe);
+            return false;
+        }
+
+        BotConfig old = _config.get();
+        List<String> changes = config.getChanges(old);
+        if(changes.size() == 0) {
+            return true;
+        }
+
+        _config.set(config);
+
+        for(String name: changes) {
+            if(BotConfig.isReloadable(name)) {
+                Log.info("Config {} changed", name);
+            } else {
+                Log.warn("Config {} changed, takes effect at restart", name);
+            }
+        }
+
+        if(_listener != null) {
+            try {
+                _listener.configChanged(old, config);
+            } catch(RuntimeException re) {
+                re.printStackTrace();
+                Log.error("applying config: {}", re);
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.jreddit.pollingbot;
+
+/**
+ *
+ * Something holding work that should be finished before the bot stops.
+ *
+ */
+public interface Drainable {
+
+    /**
+     * Return a name for the work, e.g. "poll edits".
+     */
+    String getName();
+
+    /**
+     *
+     * Stop taking work and finish what is pending, giving up at the 
+     * deadline. Called once, even if the deadline has already passed.
+     *
+     * @param deadline  Time to give up, in ms since the epoch
+     *
+     * @return the number of items left unfinished
+     *
+     */
+    int drain(long deadline);
+
+}
@@ -0,0 +1,252 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Crawls the home subreddit incrementally.
+ *
+ * The NEW listing is read from a before cursor, so each pass only fetches
+ * submissions posted since the last one. The HOT listing has no stable 
+ * order to page from, so it is read from the top; the match criteria's 
+ * seen-set skips what was already evaluated. 
+ *
+ * Only the submission listings are crawled, so poll requests are found
+ * in self-posts but not in comments: jReddit has no comment listing to
+ * keep a cursor on. The botkernel home crawler keeps running alongside
+ * for the comments; the seen-set keeps either from evaluating what the
+ * other already has.
+ *
+ * The listing limit adapts to the observed rate of new items per pass,
+ * so a quiet subreddit is crawled with small listings and a busy one 
+ * with large ones.
+ *
+ * Cursors and rates are kept in the state snapshot.
+ *
+ */
+public class IncrementalCrawler implements Runnable, SnapshotParticipant {
+
+    private static final int MIN_LIMIT = 5;
+    private static final int MAX_LIMIT = 100;
+
+    //
+    // Max pages read from the NEW listing in one pass
+    //
+    private static final int MAX_PAGES = 5;
+
+    //
+    // Passes without anything new after which the NEW cursor is dropped.
+    // The cursor item may have been deleted, in which case reddit lists 
+    // nothing before it.
+    //
+    private static final int CURSOR_RESET = 10;
+
+    //
+    // Weight of the latest pass in the new item rate
+    //
+    private static final double RATE_WEIGHT = 0.3;
+
+    /**
+     *
+     * Cursor and rate of one listing. Only the crawler thread changes
+     * these, holding the listing so snapshots see a consistent state.
+     *
+     */
+    private static class Listing {
+        private Submissions.ListingType _type;
+        private String _before;
+        private int _idle;
+        private double _rate;
+        private int _limit;
+
+        public Listing(Submissions.ListingType type, int limit) {
+            _type = type;
+            _limit = limit;
+            _rate = limit / 2.0;
+        }
+    }
+
+    private PollingBot _bot;
+    private String _subreddit;
+    private BaseMatchCriteria _criteria;
+
+    private Listing _new;
+    private Listing _hot;
+
+    private volatile boolean _stopped;
+    private Thread _thread;
+
+    /**
+     *
+     * @param bot           The bot
+     * @param subreddit     The subreddit to crawl
+     * @param criteria      Criteria to match things against
+     * @param limit         Initial listing limit
+     *
+     */
+    public IncrementalCrawler(  PollingBot bot, 
+                                String subreddit, 
+                                BaseMatchCriteria criteria,
+                                int limit ) {
+        _bot = bot;
+        _subreddit = subreddit;
+        _criteria = criteria;
+        _new = new Listing(Submissions.ListingType.NEW, limit);
+        _hot = new Listing(Submissions.ListingType.HOT, limit);
+    }
+
+    public void start() {
+        _thread = new Thread(this, "PollingBot-crawler");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void stop() {
+        _stopped = true;
+        if(_thread != null) {
+            _thread.interrupt();
+        }
+    }
+
+    public String getSnapshotTag() {
+        return "crawler." + _subreddit;
+    }
+
+    public void writeSnapshot(DataOutput out) throws IOException {
+        writeListing(out, _new);
+        writeListing(out, _hot);
+    }
+
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        readListing(in, _new);
+        readListing(in, _hot);
+    }
+
+    private static void writeListing(   DataOutput out, 
+                                        Listing listing ) throws IOException {
+        synchronized(listing) {
+            out.writeBoolean(listing._before != null);
+            if(listing._before != null) {
+                StateSnapshot.writeString(out, listing._before);
+            }
+            out.writeInt(listing._idle);
+            out.writeDouble(listing._rate);
+            out.writeInt(listing._limit);
+        }
+    }
+
+    private static void readListing(    ByteBuffer in, 
+                                        Listing listing ) throws IOException {
+        synchronized(listing) {
+            listing._before = 
+                    in.get() != 0 ? StateSnapshot.readString(in) : null;
+            listing._idle = in.getInt();
+            listing._rate = in.getDouble();
+            listing._limit = in.getInt();
+        }
+    }
+
+    public void run() {
+        _bot.awaitPrimary();
+        while(!_stopped) {
+            crawl(_new);
+            crawl(_hot);
+            try {
+                Thread.sleep(1000L * _bot.getSleepSeconds());
+            } catch(InterruptedException ie) {
+                // Stopping
+            }
+        }
+    }
+
+    /**
+     *
+     * One pass over a listing.
+     *
+     */
+    private void crawl(Listing listing) {
+
+        User user = _bot.getUser();
+        int fresh = 0;
+        String newest = null;
+        boolean paged = listing._type == Submissions.ListingType.NEW;
+
+        try {
+
+            String before = paged ? listing._before : null;
+
+            for(int page = 0; page < MAX_PAGES && !_stopped; page++) {
+
+                //
+                // Listing cursors are (before, after)
+                //
+                List<Submission> submissions = 
+                        Submissions.getSubmissions( user,
+                                                    _subreddit,
+                                                    listing._type,
+                                                    listing._limit,
+                                                    before,
+                                                    (String)null );
+
+                for(Submission submission: submissions) {
+                    if(_criteria.isSeen(submission)) {
+                        continue;
+                    }
+                    fresh++;
+                    _criteria.match(submission);
+                }
+
+                if(!paged || submissions.size() == 0) {
+                    break;
+                }
+
+                //
+                // Each page is newest first, and the next page holds 
+                // newer items still, so the first item is both the next 
+                // cursor and the newest seen so far.
+                //
+                before = submissions.get(0).getName();
+                newest = before;
+
+                if(listing._before == null || 
+                    submissions.size() < listing._limit) {
+                    // First pass, or we have caught up.
+                    break;
+                }
+            }
+
+        } catch(IOException ioe) {
+            Log.error("crawling {} {}: {}", _subreddit, listing._type, ioe);
+            return;
+        }
+
+        synchronized(listing) {
+            if(paged) {
+                if(newest != null) {
+                    listing._before = newest;
+                    listing._idle = 0;
+                } else if(++listing._idle >= CURSOR_RESET) {
+                    listing._before = null;
+                    listing._idle = 0;
+                }
+            }
+
+            //
+            // Aim for twice the usual number of new items per pass.
+            //
+            listing._rate = RATE_WEIGHT * fresh + 
+                            (1 - RATE_WEIGHT) * listing._rate;
+            listing._limit = Math.max(MIN_LIMIT, 
+                                Math.min(MAX_LIMIT, 
+                                    (int)Math.ceil(2 * listing._rate) + 
+                                                            MIN_LIMIT));
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * A set of ints without boxing.
+ *
+ * Members are kept in insertion order in a dense array, so they can be
+ * walked by index, and found through an open addressing table of
+ * positions in that array. Not thread safe.
+ *
+ */
+public class IntSet {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    //
+    // Members in insertion order
+    //
+    private int[] _items;
+    private int _size;
+
+    //
+    // Position + 1 of each member in _items, 0 for an empty slot
+    //
+    private int[] _slots;
+
+    public IntSet() {
+        _items = new int[INITIAL_CAPACITY];
+        _slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     *
+     * Add a value.
+     *
+     * @return true if it was not already a member
+     *
+     */
+    public boolean add(int value) {
+        int i = find(value);
+        if(_slots[i] != 0) {
+            return false;
+        }
+        if(_size == _items.length) {
+            grow();
+            i = find(value);
+        }
+        _items[_size++] = value;
+        _slots[i] = _size;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return _slots[find(value)] != 0;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *
+     * Return the member added i-th.
+     *
+     */
+    public int get(int i) {
+        if(i < 0 || i >= _size) {
+            throw new IndexOutOfBoundsException("" + i);
+        }
+        return _items[i];
+    }
+
+    public void clear() {
+        Arrays.fill(_slots, 0);
+        _size = 0;
+    }
+
+    /**
+     * Return the slot of the value, or the empty slot it would go in.
+     */
+    private int find(int value) {
+        int mask = _slots.length - 1;
+        int i = mix(value) & mask;
+        while(_slots[i] != 0 && _items[_slots[i] - 1] != value) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int[] items = new int[_items.length * 2];
+        System.arraycopy(_items, 0, items, 0, _size);
+        _items = items;
+
+        _slots = new int[items.length * 2];
+        int mask = _slots.length - 1;
+        for(int j = 0; j < _size; j++) {
+            int i = mix(_items[j]) & mask;
+            while(_slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            _slots[i] = j + 1;
+        }
+    }
+
+    /**
+     * Spread sequential ids over the table.
+     */
+    static int mix(int value) {
+        int h = value * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer("[");
+        for(int i = 0; i < _size; i++) {
+            if(i > 0) {
+                sb.append(", ");
+            }
+            sb.append(_items[i]);
+        }
+        return sb.append("]").toString();
+    }
+
+}
@@ -0,0 +1,480 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * A poll store that takes votes into a VoteJournal instead of writing
+ * each one to the backing store.
+ *
+ * Votes since the last compaction are held in a ledger: the latest
+ * option of each (poll, user) and the tally changes they make. Reads
+ * combine the backing store with the ledger. The journal is synced 
+ * every SYNC_INTERVAL ms, or at once by sync(), and every minute the
+ * ledger is written to the backing store in one batch and the journal
+ * segments it came from are deleted. On startup, any segments left over
+ * are replayed first.
+ *
+ * The ledger and the journal position are kept in the state snapshot.
+ * When the snapshot is restored before open(), only the journal after
+ * that position is replayed, as long as nothing from there on has been
+ * written to the backing store and deleted since.
+ *
+ * Everything other than votes goes straight to the backing store.
+ *
+ */
+public class JournaledPollStore implements PollStore, SnapshotParticipant {
+
+    //
+    // How often the journal is synced, in ms
+    //
+    private static final long SYNC_INTERVAL = 200;
+
+    //
+    // How often the ledger is compacted into the backing store, in ms
+    //
+    private static final long COMPACT_INTERVAL = 1000L * 60;
+
+    private PollStore _store;
+    private VoteJournal _journal;
+
+    private ScheduledExecutorService _executor;
+
+    //
+    // All of the ledger is guarded by this.
+    //
+    // (poll id << 32 | user id) => option
+    //
+    private LongIntMap _pending = new LongIntMap();
+
+    //
+    // (poll id << 32 | option) => tally change
+    //
+    private LongIntMap _deltas = new LongIntMap();
+
+    //
+    // poll id => number of options. Options never change once set,
+    // except that closing a poll takes them away.
+    //
+    private LongIntMap _optionCounts = new LongIntMap();
+
+    //
+    // Restored from the snapshot, used by open().
+    //
+    private long[] _resumePosition;
+    private int[] _resumeVotes;
+
+    public JournaledPollStore(PollStore store, File dir) {
+        _store = store;
+        _journal = new VoteJournal(dir);
+    }
+
+    public void open() {
+        _store.open();
+
+        try {
+            int count;
+            synchronized(this) {
+                long fromSequence = 0;
+                long fromOffset = 0;
+
+                if( _resumePosition != null && 
+                    _journal.hasSegment(_resumePosition[0])) {
+                    //
+                    // Votes already in the backing store are no-ops
+                    // here, so it doesn't matter if some of the ledger
+                    // was written since.
+                    //
+                    for(int i = 0; i < _resumeVotes.length; i += 3) {
+                        record( _resumeVotes[i], 
+                                _resumeVotes[i + 1], 
+                                _resumeVotes[i + 2] );
+                    }
+                    fromSequence = _resumePosition[0];
+                    fromOffset = _resumePosition[1];
+                }
+                _resumePosition = null;
+                _resumeVotes = null;
+
+                count = _journal.open(new VoteJournal.Replayer() {
+                    public void replay( long time, int pollId,
+                                        int userId, int option ) {
+                        record(pollId, userId, option);
+                    }
+                }, fromSequence, fromOffset);
+            }
+            Log.info("Replayed {} journaled votes", count);
+            checkpoint();
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            Log.severe("error with vote journal.");
+            throw new RuntimeException(ioe);
+        }
+
+        _executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingBot-journal");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    _journal.sync();
+                }
+            }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        _executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    checkpoint();
+                }
+            }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * Stop the background tasks and write the ledger to the backing store.
+     *
+     */
+    public void close() {
+        if(_executor != null) {
+            _executor.shutdown();
+            try {
+                _executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            _executor = null;
+        }
+        checkpoint();
+        _journal.close();
+        _store.close();
+    }
+
+    /**
+     *
+     * Force journaled votes to disk now rather than at the next 
+     * scheduled sync.
+     *
+     */
+    public void sync() {
+        _journal.sync();
+    }
+
+    /**
+     *
+     * Write the ledger to the backing store and delete the journal
+     * segments it came from. Votes wait while this runs.
+     *
+     * @return true if the ledger was written
+     *
+     */
+    public synchronized boolean checkpoint() {
+        try {
+            List<File> segments = _journal.seal();
+
+            int count = _pending.size();
+            if(count > 0) {
+                int[] polls = new int[count];
+                int[] users = new int[count];
+                int[] options = new int[count];
+
+                for(int i = 0; i < count; i++) {
+                    long key = _pending.keyAt(i);
+                    polls[i] = (int)(key >>> 32);
+                    users[i] = (int)key;
+                    options[i] = _pending.valueAt(i);
+                }
+
+                if(!_store.applyVotes(polls, users, options, count)) {
+                    // Keep the ledger and the segments, try again later.
+                    return false;
+                }
+
+                _pending.clear();
+                _deltas.clear();
+            }
+
+            _journal.delete(segments);
+            return true;
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            Log.severe("error with vote journal.");
+            return false;
+        }
+    }
+
+    public String getSnapshotTag() {
+        return "journal";
+    }
+
+    public synchronized void writeSnapshot(DataOutput out) 
+                                                    throws IOException {
+        long[] position = _journal.getPosition();
+        out.writeLong(position[0]);
+        out.writeLong(position[1]);
+        out.writeInt(_pending.size());
+        for(int i = 0; i < _pending.size(); i++) {
+            long key = _pending.keyAt(i);
+            out.writeInt((int)(key >>> 32));
+            out.writeInt((int)key);
+            out.writeInt(_pending.valueAt(i));
+        }
+    }
+
+    public synchronized void readSnapshot(ByteBuffer in) 
+                                                    throws IOException {
+        long[] position = new long[] { in.getLong(), in.getLong() };
+        int[] votes = new int[in.getInt() * 3];
+        for(int i = 0; i < votes.length; i++) {
+            votes[i] = in.getInt();
+        }
+        _resumePosition = position;
+        _resumeVotes = votes;
+    }
+
+    public boolean castVote(String username, int id, int option) {
+
+        int userId = _store.internUser(username);
+        if(userId == -1) {
+            return false;
+        }
+
+        synchronized(this) {
+            if(option < 0 || option >= getOptionCount(id)) {
+                return false;
+            }
+
+            if(getVote(id, userId) == option) {
+                return false;
+            }
+
+            try {
+                _journal.append(System.currentTimeMillis(),
+                                id, userId, option);
+            } catch(IOException ioe) {
+                ioe.printStackTrace();
+                Log.severe("error with vote journal.");
+                return false;
+            }
+
+            return record(id, userId, option);
+        }
+    }
+
+    public synchronized int getVote(int id, int userId) {
+        int option = _pending.get(key(id, userId), -1);
+        if(option != -1) {
+            return option;
+        }
+        return _store.getVote(id, userId);
+    }
+
+    public synchronized boolean isVotePresent(String username, int id) {
+        if(_store.isVotePresent(username, id)) {
+            return true;
+        }
+        int userId = _store.internUser(username);
+        return _pending.containsKey(key(id, userId));
+    }
+
+    public int[] getPollVotes(int id) {
+        synchronized(this) {
+            int[] ret = _store.getPollVotes(id);
+            if(_deltas.size() == 0) {
+                return ret;
+            }
+
+            for(int i = 0; i < ret.length; i++) {
+                ret[i] = Math.max(0, ret[i] + _deltas.get(key(id, i), 0));
+            }
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Get a poll's pending votes into the backing store before it is
+     * closed.
+     *
+     */
+    public void archivePoll(int id) {
+        synchronized(this) {
+            if(!checkpoint()) {
+                return;
+            }
+            _optionCounts.remove(id);
+            _store.archivePoll(id);
+        }
+    }
+
+    public boolean applyVotes(int[] polls, int[] users,
+                              int[] options, int count) {
+        synchronized(this) {
+            return checkpoint() &&
+                   _store.applyVotes(polls, users, options, count);
+        }
+    }
+
+    //
+    // Must be called holding the ledger lock.
+    //
+    private boolean record(int id, int userId, int option) {
+
+        int previous = getVote(id, userId);
+        if(previous == option) {
+            return false;
+        }
+
+        _pending.put(key(id, userId), option);
+
+        if(previous != -1) {
+            _deltas.add(key(id, previous), -1);
+        }
+        _deltas.add(key(id, option), 1);
+        return true;
+    }
+
+    //
+    // Must be called holding the ledger lock.
+    //
+    private int getOptionCount(int id) {
+        int count = _optionCounts.get(id, -1);
+        if(count == -1) {
+            count = _store.getPollOptions(id).length;
+            if(count > 0) {
+                _optionCounts.put(id, count);
+            }
+        }
+        return count;
+    }
+
+    //
+    // Ledger key of a poll and a user id or option.
+    //
+    private static long key(int id, int other) {
+        return ((long)id << 32) | (other & 0xffffffffL);
+    }
+
+    //
+    // Everything else goes straight through.
+    //
+
+    public void addBan(String subreddit) {
+        _store.addBan(subreddit);
+    }
+
+    public boolean isBanned(String subreddit) {
+        return _store.isBanned(subreddit);
+    }
+
+    public boolean isBotReplied(String id) {
+        return _store.isBotReplied(id);
+    }
+
+    public void setBotReplied(String id) {
+        _store.setBotReplied(id);
+    }
+
+    public void setBotReplied(Collection<String> ids) {
+        _store.setBotReplied(ids);
+    }
+
+    public int internUser(String username) {
+        return _store.internUser(username);
+    }
+
+    public boolean visitPoll(int id, PollVisitor visitor) {
+        return _store.visitPoll(id, visitor);
+    }
+
+    public String[] getPollOptions(int id) {
+        return _store.getPollOptions(id);
+    }
+
+    public void setPollOptions(int id, String[] options) {
+        _store.setPollOptions(id, options);
+    }
+
+    public int createPoll(String userCommentId, String title, String account) {
+        return _store.createPoll(userCommentId, title, account);
+    }
+
+    public void deletePoll(int id) {
+        synchronized(this) {
+            _optionCounts.remove(id);
+            for(int i = _deltas.size() - 1; i >= 0; i--) {
+                long key = _deltas.keyAt(i);
+                if((int)(key >>> 32) == id) {
+                    _deltas.remove(key);
+                }
+            }
+            _store.deletePoll(id);
+        }
+    }
+
+    public void setPollCommentId(int id, String pollCommentId) {
+        _store.setPollCommentId(id, pollCommentId);
+    }
+
+    /**
+     *
+     * Pending votes are checkpointed first, so the backing store has
+     * every vote.
+     *
+     */
+    public boolean visitVotes(int id, VoteVisitor visitor) {
+        synchronized(this) {
+            return checkpoint() && _store.visitVotes(id, visitor);
+        }
+    }
+
+    public boolean isCast(String messageId, int id) {
+        return _store.isCast(messageId, id);
+    }
+
+    /**
+     *
+     * The vote is forced to the journal first, so the store never says
+     * a vote was cast which a crash then loses.
+     *
+     */
+    public void setCast(String messageId, int id) {
+        sync();
+        _store.setCast(messageId, id);
+    }
+
+    public void forgetCast(String messageId) {
+        _store.forgetCast(messageId);
+    }
+
+    public boolean isPoll(String userCommentId) {
+        return _store.isPoll(userCommentId);
+    }
+
+    public Map<String, Integer> getAccountLoads(int limit) {
+        return _store.getAccountLoads(limit);
+    }
+
+    public List<Integer> getPollsToClose(long cutoff, int limit) {
+        return _store.getPollsToClose(cutoff, limit);
+    }
+
+    public int archiveMatches(long cutoff, int limit) {
+        return _store.archiveMatches(cutoff, limit);
+    }
+
+    public boolean compact(int pages) {
+        return _store.compact(pages);
+    }
+
+}
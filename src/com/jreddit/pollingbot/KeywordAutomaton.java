@@ -0,0 +1,212 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * Aho-Corasick automaton matching a fixed set of phrases.
+ *
+ * Finds every occurrence of every phrase in one pass over the text, in
+ * time linear in the length of the text no matter how many phrases there 
+ * are. Matching is case insensitive and folds case one char at a time, 
+ * so the text is never copied.
+ *
+ * Phrases starting or ending with a letter or digit only match on word 
+ * boundaries at that end, so "is" does not match inside "this".
+ *
+ * Only ASCII phrases are supported. Non-ASCII chars in the text never 
+ * match and restart matching.
+ *
+ * An automaton is immutable once built and safe to share between threads.
+ *
+ */
+public class KeywordAutomaton {
+
+    private static final int ALPHABET = 128;
+
+    /**
+     *
+     * Receives matches during a scan.
+     *
+     */
+    public interface MatchListener {
+
+        /**
+         *
+         * @param phrase    Index of the matched phrase
+         * @param start     Offset of the first char of the match
+         * @param end       Offset after the last char of the match
+         *
+         */
+        void match(int phrase, int start, int end);
+    }
+
+    private String[] _phrases;
+
+    //
+    // Complete transition table, state * ALPHABET + char => state
+    //
+    private int[] _next;
+
+    //
+    // Phrases ending in each state, including those reached through 
+    // failure links
+    //
+    private int[][] _output;
+
+    /**
+     *
+     * Build an automaton for the phrases. Matches report the index of 
+     * the phrase in this array.
+     *
+     */
+    public KeywordAutomaton(String[] phrases) {
+
+        _phrases = new String[phrases.length];
+
+        //
+        // Trie of the phrases
+        //
+        List<int[]> trie = new ArrayList<int[]>();
+        List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+        trie.add(newState());
+        outputs.add(new ArrayList<Integer>());
+
+        for(int p = 0; p < phrases.length; p++) {
+            String phrase = phrases[p].toLowerCase();
+            _phrases[p] = phrase;
+            int state = 0;
+            for(int i = 0; i < phrase.length(); i++) {
+                char c = phrase.charAt(i);
+                if(c >= ALPHABET) {
+                    throw new IllegalArgumentException(
+                                    "Non-ASCII phrase " + phrases[p]);
+                }
+                int next = trie.get(state)[c];
+                if(next == -1) {
+                    next = trie.size();
+                    trie.add(newState());
+                    outputs.add(new ArrayList<Integer>());
+                    trie.get(state)[c] = next;
+                }
+                state = next;
+            }
+            outputs.get(state).add(Integer.valueOf(p));
+        }
+
+        //
+        // Breadth first, fill in missing transitions through the 
+        // failure links and merge outputs.
+        //
+        int states = trie.size();
+        int[] fail = new int[states];
+        _next = new int[states * ALPHABET];
+        _output = new int[states][];
+
+        //
+        // Each state is queued once, so the queue is an array of them.
+        //
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for(int c = 0; c < ALPHABET; c++) {
+            int s = trie.get(0)[c];
+            if(s == -1) {
+                _next[c] = 0;
+            } else {
+                _next[c] = s;
+                fail[s] = 0;
+                queue[tail++] = s;
+            }
+        }
+
+        while(head < tail) {
+            int state = queue[head++];
+            outputs.get(state).addAll(outputs.get(fail[state]));
+            for(int c = 0; c < ALPHABET; c++) {
+                int s = trie.get(state)[c];
+                if(s == -1) {
+                    _next[state * ALPHABET + c] = 
+                                        _next[fail[state] * ALPHABET + c];
+                } else {
+                    _next[state * ALPHABET + c] = s;
+                    fail[s] = _next[fail[state] * ALPHABET + c];
+                    queue[tail++] = s;
+                }
+            }
+        }
+
+        for(int state = 0; state < states; state++) {
+            List<Integer> out = outputs.get(state);
+            _output[state] = new int[out.size()];
+            for(int i = 0; i < out.size(); i++) {
+                _output[state][i] = out.get(i).intValue();
+            }
+        }
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    public int size() { return _phrases.length; }
+
+    public String getPhrase(int phrase) { return _phrases[phrase]; }
+
+    /**
+     *
+     * Scan text, reporting matches in order of their end offset.
+     *
+     */
+    public void scan(CharSequence text, MatchListener listener) {
+
+        int length = text.length();
+        int state = 0;
+
+        for(int i = 0; i < length; i++) {
+
+            char c = Character.toLowerCase(text.charAt(i));
+            if(c >= ALPHABET) {
+                state = 0;
+                continue;
+            }
+
+            state = _next[state * ALPHABET + c];
+
+            int[] out = _output[state];
+            for(int j = 0; j < out.length; j++) {
+                String phrase = _phrases[out[j]];
+                int start = i + 1 - phrase.length();
+                if(isBoundary(text, phrase, start, i + 1)) {
+                    listener.match(out[j], start, i + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * Check the word boundaries of a match.
+     *
+     */
+    private static boolean isBoundary(  CharSequence text, 
+                                        String phrase, 
+                                        int start, 
+                                        int end ) {
+
+        if( Character.isLetterOrDigit(phrase.charAt(0)) &&
+            start > 0 && 
+            Character.isLetterOrDigit(text.charAt(start - 1)) ) {
+            return false;
+        }
+        if( Character.isLetterOrDigit(phrase.charAt(phrase.length() - 1)) &&
+            end < text.length() &&
+            Character.isLetterOrDigit(text.charAt(end)) ) {
+            return false;
+        }
+        return true;
+    }
+
+}
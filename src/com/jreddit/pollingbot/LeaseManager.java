@@ -0,0 +1,213 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.ManagementFactory;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Partitions polls across several bot instances sharing one database.
+ *
+ * Polls are split into a fixed number of shards by poll id. Each instance
+ * holds leases on some of the shards and only handles votes and edits for
+ * polls in those shards. Leases are renewed by a heartbeat; when an 
+ * instance stops or dies its leases expire and are claimed by the others.
+ *
+ * With no shards configured partitioning is off and this instance owns 
+ * everything.
+ *
+ */
+public class LeaseManager implements Runnable {
+
+    /**
+     *
+     * Told about shards this instance stopped owning, on the heartbeat
+     * thread.
+     *
+     */
+    public interface Listener {
+        void shardsLost(Set<Integer> shards);
+    }
+
+    private String _instance;
+    private int _shards;
+    private long _leaseMillis;
+
+    private volatile Set<Integer> _owned = Collections.emptySet();
+
+    //
+    // Local expiry of the leases we hold. If the heartbeat stalls past 
+    // this point another instance may have taken over, so we stop
+    // handling anything until the next successful heartbeat.
+    //
+    private volatile long _expires;
+
+    private volatile boolean _stopped;
+
+    private Thread _thread;
+
+    private List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     *
+     * @param instance      A name unique to this instance, null to derive
+     *                      one from the process id and host.
+     * @param shards        Total number of shards, 0 to disable
+     * @param leaseSeconds  Lease duration
+     *
+     */
+    public LeaseManager(String instance, int shards, int leaseSeconds) {
+        if(instance == null || instance.trim().equals("")) {
+            instance = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        _instance = instance.trim();
+        _shards = shards;
+        _leaseMillis = 1000L * leaseSeconds;
+    }
+
+    public String getInstance() { return _instance; }
+
+    public void addListener(Listener listener) {
+        _listeners.add(listener);
+    }
+
+    public boolean isEnabled() { return _shards > 0; }
+
+    /**
+     *
+     * Claim our initial shards and start the heartbeat thread.
+     *
+     */
+    public void start() {
+        if(!isEnabled()) {
+            return;
+        }
+        heartbeat();
+        _thread = new Thread(this, "PollingBot-leases");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     *
+     * Stop heartbeating and give our shards back.
+     *
+     */
+    public void stop() {
+        if(!isEnabled()) {
+            return;
+        }
+        _stopped = true;
+        if(_thread != null) {
+            _thread.interrupt();
+        }
+        _owned = Collections.emptySet();
+        PersistenceUtils.releaseLeases(_instance);
+    }
+
+    public void run() {
+        while(!_stopped) {
+            try {
+                Thread.sleep(_leaseMillis / 3);
+            } catch(InterruptedException ie) {
+                continue;
+            }
+            if(!_stopped) {
+                heartbeat();
+            }
+        }
+    }
+
+    /**
+     *
+     * Renew and rebalance our leases.
+     *
+     */
+    public void heartbeat() {
+        long start = System.currentTimeMillis();
+        Set<Integer> owned = PersistenceUtils.renewLeases(  _instance, 
+                                                            _shards, 
+                                                            _leaseMillis );
+        if(owned == null) {
+            // Keep what we had until it expires locally.
+            return;
+        }
+        if(!owned.equals(_owned)) {
+            Log.info("Instance {} now owns shards {}", _instance, owned);
+        }
+
+        //
+        // Shards we no longer own, or all of them if our leases had
+        // expired locally: others may have handled them meanwhile.
+        //
+        Set<Integer> lost = new HashSet<Integer>(_owned);
+        if(start <= _expires) {
+            lost.removeAll(owned);
+        }
+
+        _owned = Collections.unmodifiableSet(owned);
+        _expires = start + _leaseMillis;
+
+        if(lost.size() > 0) {
+            for(Listener listener: _listeners) {
+                listener.shardsLost(lost);
+            }
+        }
+    }
+
+    /**
+     * Return the shard a poll belongs to.
+     */
+    public int getShard(int pollId) {
+        return (pollId & Integer.MAX_VALUE) % _shards;
+    }
+
+    /**
+     *
+     * Return true if this instance handles votes and edits for the poll.
+     *
+     */
+    public boolean ownsPoll(int pollId) {
+        if(!isEnabled()) {
+            return true;
+        }
+        return ownsShard(getShard(pollId));
+    }
+
+    /**
+     *
+     * Return true if this instance handles work keyed by a string, 
+     * such as poll requests keyed by the requesting thing's id.
+     *
+     */
+    public boolean ownsKey(String key) {
+        if(!isEnabled()) {
+            return true;
+        }
+        return ownsShard((key.hashCode() & Integer.MAX_VALUE) % _shards);
+    }
+
+    /**
+     *
+     * Return true if this instance handles work not tied to any poll, 
+     * such as owner commands. That is the holder of shard 0.
+     *
+     */
+    public boolean isCoordinator() {
+        if(!isEnabled()) {
+            return true;
+        }
+        return ownsShard(0);
+    }
+
+    private boolean ownsShard(int shard) {
+        if(System.currentTimeMillis() > _expires) {
+            return false;
+        }
+        return _owned.contains(Integer.valueOf(shard));
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Stops the bot in an orderly way.
+ *
+ * Threads waiting between passes wait here rather than sleeping, so
+ * stopping wakes them at once. The registered Drainables are then
+ * drained in order against one deadline, and whatever they could not
+ * finish in time is reported.
+ *
+ */
+public class Lifecycle {
+
+    private volatile boolean _stopping;
+
+    private Object _lock = new Object();
+
+    private List<Drainable> _drainables = 
+                                    new CopyOnWriteArrayList<Drainable>();
+
+    /**
+     *
+     * Add work to drain at stop(), after everything added before.
+     *
+     */
+    public void add(Drainable drainable) {
+        _drainables.add(drainable);
+    }
+
+    public boolean isStopping() {
+        return _stopping;
+    }
+
+    /**
+     *
+     * Wait, waking early if the bot is stopping.
+     *
+     * @return false if the bot is stopping
+     *
+     */
+    public boolean sleep(long millis) {
+        long until = System.currentTimeMillis() + millis;
+        synchronized(_lock) {
+            while(!_stopping) {
+                long wait = until - System.currentTimeMillis();
+                if(wait <= 0) {
+                    break;
+                }
+                try {
+                    _lock.wait(wait);
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !_stopping;
+    }
+
+    /**
+     *
+     * Wake everything waiting in sleep().
+     *
+     */
+    public void beginStop() {
+        synchronized(_lock) {
+            _stopping = true;
+            _lock.notifyAll();
+        }
+    }
+
+    /**
+     *
+     * Stop, draining everything within the timeout.
+     *
+     * @return what was left unfinished, empty if nothing
+     *
+     */
+    public String stop(long timeout) {
+
+        beginStop();
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        StringBuffer left = new StringBuffer();
+        for(Drainable drainable: _drainables) {
+            int count;
+            try {
+                count = drainable.drain(deadline);
+            } catch(RuntimeException re) {
+                re.printStackTrace();
+                count = 1;
+            }
+            if(count > 0) {
+                if(left.length() > 0) {
+                    left.append(", ");
+                }
+                left.append(count + " " + drainable.getName());
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        if(left.length() == 0) {
+            Log.info("Drained everything in {}ms", elapsed);
+        } else {
+            Log.warn("Stopped after {}ms leaving unfinished: {}",
+                    elapsed, left);
+        }
+        return left.toString();
+    }
+
+}
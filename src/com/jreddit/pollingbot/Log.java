@@ -0,0 +1,295 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Leveled, asynchronous logging to the botkernel log.
+ *
+ * The level is checked before anything else, so a message below it
+ * costs a comparison. Messages are given as a format with {} for each
+ * argument, or as a Message built on demand. A message which is logged
+ * is turned into text on the calling thread, so arguments are read
+ * while the caller still owns them; only the writing is left to the
+ * appender thread.
+ *
+ * Messages wait in a fixed ring until the appender thread writes them
+ * out. When the ring is full new messages are dropped rather than
+ * holding up the caller, and the number dropped is logged once there
+ * is room again.
+ *
+ */
+public class Log {
+
+    public static final int FINEST  = 0;
+    public static final int FINE    = 1;
+    public static final int INFO    = 2;
+    public static final int WARN    = 3;
+    public static final int ERROR   = 4;
+    public static final int SEVERE  = 5;
+
+    private static final String[] NAMES = new String[] {
+        "FINEST", "FINE", "INFO", "WARN", "ERROR", "SEVERE" };
+
+    /**
+     *
+     * A message built only if it is logged, on the calling thread.
+     *
+     */
+    public interface Message {
+        String build();
+    }
+
+    //
+    // Messages waiting to be written
+    //
+    private static final int RING_SIZE = 4096;
+
+    private static volatile int _level = INFO;
+
+    //
+    // The ring, as parallel arrays of levels and message texts.
+    // Guarded by _lock.
+    //
+    private static final Object _lock = new Object();
+    private static int[] _levels = new int[RING_SIZE];
+    private static String[] _texts = new String[RING_SIZE];
+    private static int _head;
+    private static int _size;
+    private static int _dropped;
+
+    //
+    // True while the appender is writing a batch
+    //
+    private static boolean _writing;
+
+    private static Thread _appender;
+
+    private Log() { }
+
+    /**
+     *
+     * Set the lowest level logged.
+     *
+     */
+    public static void setLevel(int level) {
+        _level = Math.max(FINEST, Math.min(SEVERE, level));
+    }
+
+    /**
+     *
+     * Set the lowest level logged by name, e.g. "INFO".
+     *
+     * @return false if there is no such level
+     *
+     */
+    public static boolean setLevel(String name) {
+        for(int i = 0; i < NAMES.length; i++) {
+            if(NAMES[i].equalsIgnoreCase(name.trim())) {
+                setLevel(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static int getLevel() {
+        return _level;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= _level;
+    }
+
+    public static void finest(String format, Object... args) {
+        if(FINEST >= _level) {
+            enqueue(FINEST, format, args);
+        }
+    }
+
+    public static void fine(String format, Object... args) {
+        if(FINE >= _level) {
+            enqueue(FINE, format, args);
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        if(INFO >= _level) {
+            enqueue(INFO, format, args);
+        }
+    }
+
+    public static void warn(String format, Object... args) {
+        if(WARN >= _level) {
+            enqueue(WARN, format, args);
+        }
+    }
+
+    public static void error(String format, Object... args) {
+        if(ERROR >= _level) {
+            enqueue(ERROR, format, args);
+        }
+    }
+
+    public static void severe(String format, Object... args) {
+        if(SEVERE >= _level) {
+            enqueue(SEVERE, format, args);
+        }
+    }
+
+    /**
+     *
+     * Log a message built only if the level is logged.
+     *
+     */
+    public static void log(int level, Message message) {
+        if(level >= _level) {
+            String text;
+            try {
+                text = message.build();
+            } catch(RuntimeException re) {
+                text = "(could not build message: " + re + ")";
+            }
+            enqueue(level, text);
+        }
+    }
+
+    /**
+     *
+     * Wait until every message logged so far is written, e.g. at
+     * shutdown.
+     *
+     */
+    public static void flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized(_lock) {
+            while(_size > 0 || _writing) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0 || _appender == null) {
+                    return;
+                }
+                try {
+                    _lock.wait(wait);
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void enqueue(int level, String format, Object[] args) {
+        String text;
+        try {
+            text = format(format, args);
+        } catch(RuntimeException re) {
+            text = "(could not build message: " + re + ")";
+        }
+        enqueue(level, text);
+    }
+
+    private static void enqueue(int level, String text) {
+        synchronized(_lock) {
+            if(_size == RING_SIZE) {
+                _dropped++;
+                return;
+            }
+            int i = (_head + _size) % RING_SIZE;
+            _levels[i] = level;
+            _texts[i] = text;
+            _size++;
+
+            if(_appender == null) {
+                startAppender();
+            }
+            if(_size == 1) {
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    private static void startAppender() {
+        _appender = new Thread(new Runnable() {
+            public void run() {
+                append();
+            }
+        }, "PollingBot-log");
+        _appender.setDaemon(true);
+        _appender.start();
+    }
+
+    /**
+     *
+     * The appender thread: take batches off the ring and write them.
+     *
+     */
+    private static void append() {
+
+        int[] levels = new int[RING_SIZE];
+        String[] texts = new String[RING_SIZE];
+
+        while(true) {
+
+            int count;
+            int dropped;
+            synchronized(_lock) {
+                _writing = false;
+                _lock.notifyAll();
+                while(_size == 0) {
+                    try {
+                        _lock.wait();
+                    } catch(InterruptedException ie) {
+                        // Keep going, nobody stops this thread.
+                    }
+                }
+                count = _size;
+                for(int n = 0; n < count; n++) {
+                    int i = (_head + n) % RING_SIZE;
+                    levels[n] = _levels[i];
+                    texts[n] = _texts[i];
+                    _texts[i] = null;
+                }
+                _head = (_head + count) % RING_SIZE;
+                _size = 0;
+                dropped = _dropped;
+                _dropped = 0;
+                _writing = true;
+            }
+
+            for(int n = 0; n < count; n++) {
+                BotKernel.getBotKernel().log(NAMES[levels[n]] + " " +
+                                                texts[n]);
+                texts[n] = null;
+            }
+            if(dropped > 0) {
+                BotKernel.getBotKernel().log("WARN Dropped " + dropped +
+                                            " log messages, log ring full");
+            }
+        }
+    }
+
+    /**
+     *
+     * Replace each {} in a format with the next argument.
+     *
+     */
+    static String format(String format, Object[] args) {
+        if(args == null || args.length == 0) {
+            return format;
+        }
+        StringBuffer sb = new StringBuffer(format.length() + 16 * args.length);
+        int arg = 0;
+        int from = 0;
+        int at;
+        while(arg < args.length && (at = format.indexOf("{}", from)) != -1) {
+            sb.append(format, from, at);
+            sb.append(String.valueOf(args[arg++]));
+            from = at + 2;
+        }
+        sb.append(format, from, format.length());
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * A map of longs to ints without boxing.
+ *
+ * Entries are kept in a dense array, so they can be walked by index,
+ * and found through an open addressing table of positions in that
+ * array, like IntSet. Removing an entry moves the last one into its
+ * place. Not thread safe.
+ *
+ */
+public class LongIntMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    //
+    // Entries, in no particular order
+    //
+    private long[] _keys;
+    private int[] _values;
+    private int _size;
+
+    //
+    // Position + 1 of each entry in _keys, 0 for an empty slot
+    //
+    private int[] _slots;
+
+    public LongIntMap() {
+        _keys = new long[INITIAL_CAPACITY];
+        _values = new int[INITIAL_CAPACITY];
+        _slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     *
+     * Return the value of a key, or missing if it has none.
+     *
+     */
+    public int get(long key, int missing) {
+        int slot = _slots[find(key)];
+        return slot == 0 ? missing : _values[slot - 1];
+    }
+
+    public boolean containsKey(long key) {
+        return _slots[find(key)] != 0;
+    }
+
+    public void put(long key, int value) {
+        int i = find(key);
+        if(_slots[i] != 0) {
+            _values[_slots[i] - 1] = value;
+            return;
+        }
+        if(_size == _keys.length) {
+            grow();
+            i = find(key);
+        }
+        _keys[_size] = key;
+        _values[_size] = value;
+        _slots[i] = ++_size;
+    }
+
+    /**
+     *
+     * Add to the value of a key, which is 0 if it has none.
+     *
+     */
+    public void add(long key, int delta) {
+        int i = find(key);
+        if(_slots[i] != 0) {
+            _values[_slots[i] - 1] += delta;
+        } else {
+            put(key, delta);
+        }
+    }
+
+    /**
+     *
+     * Remove a key.
+     *
+     * @return true if it was in the map
+     *
+     */
+    public boolean remove(long key) {
+        int i = find(key);
+        if(_slots[i] == 0) {
+            return false;
+        }
+        int position = _slots[i] - 1;
+
+        //
+        // Close the gap, moving back any entry further along the run
+        // that could not be found past an empty slot.
+        //
+        int mask = _slots.length - 1;
+        _slots[i] = 0;
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(_slots[j] == 0) {
+                break;
+            }
+            int home = mix(_keys[_slots[j] - 1]) & mask;
+            boolean stays = i <= j ? (i < home && home <= j)
+                                   : (i < home || home <= j);
+            if(!stays) {
+                _slots[i] = _slots[j];
+                _slots[j] = 0;
+                i = j;
+            }
+        }
+
+        int last = --_size;
+        if(position != last) {
+            _keys[position] = _keys[last];
+            _values[position] = _values[last];
+            _slots[find(_keys[position])] = position + 1;
+        }
+        return true;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *
+     * Return the key of the i-th entry.
+     *
+     */
+    public long keyAt(int i) {
+        if(i < 0 || i >= _size) {
+            throw new IndexOutOfBoundsException("" + i);
+        }
+        return _keys[i];
+    }
+
+    /**
+     *
+     * Return the value of the i-th entry.
+     *
+     */
+    public int valueAt(int i) {
+        if(i < 0 || i >= _size) {
+            throw new IndexOutOfBoundsException("" + i);
+        }
+        return _values[i];
+    }
+
+    public void clear() {
+        Arrays.fill(_slots, 0);
+        _size = 0;
+    }
+
+    /**
+     * Return the slot of the key, or the empty slot it would go in.
+     */
+    private int find(long key) {
+        int mask = _slots.length - 1;
+        int i = mix(key) & mask;
+        while(_slots[i] != 0 && _keys[_slots[i] - 1] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        int capacity = _keys.length * 2;
+
+        long[] keys = new long[capacity];
+        System.arraycopy(_keys, 0, keys, 0, _size);
+        _keys = keys;
+
+        int[] values = new int[capacity];
+        System.arraycopy(_values, 0, values, 0, _size);
+        _values = values;
+
+        _slots = new int[capacity * 2];
+        int mask = _slots.length - 1;
+        for(int j = 0; j < _size; j++) {
+            int i = mix(_keys[j]) & mask;
+            while(_slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            _slots[i] = j + 1;
+        }
+    }
+
+    /**
+     * Spread keys made of two sequential ids over the table.
+     */
+    static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+}
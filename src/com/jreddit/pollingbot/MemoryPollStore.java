@@ -0,0 +1,353 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *
+ * A poll store held entirely in memory, for load tests and ephemeral
+ * deployments. Nothing survives a restart.
+ *
+ * Everything lives in concurrent maps, except that each poll's votes
+ * are in a primitive map guarded by the poll. Vote tallies are atomic
+ * counters adjusted by the vote that changed them.
+ *
+ */
+public class MemoryPollStore implements PollStore {
+
+    /**
+     *
+     * Everything known about one poll.
+     *
+     */
+    private static class PollRecord {
+        private final int _id;
+        private final String _ucId;
+        private final String _title;
+        private final String _account;
+        private final long _created;
+
+        private volatile String _pcId;
+        private volatile String[] _options = new String[0];
+        private volatile AtomicIntegerArray _tallies = 
+                                                new AtomicIntegerArray(0);
+        private volatile boolean _closed;
+
+        //
+        // user id => option, guarded by the record
+        //
+        private final LongIntMap _votes = new LongIntMap();
+
+        public PollRecord(  int id, String ucId, 
+                            String title, String account ) {
+            _id = id;
+            _ucId = ucId;
+            _title = title;
+            _account = account;
+            _created = System.currentTimeMillis();
+        }
+    }
+
+    private AtomicInteger _lastId = new AtomicInteger();
+    private AtomicInteger _lastUserId = new AtomicInteger();
+
+    private ConcurrentMap<String, Integer> _users = 
+                            new ConcurrentHashMap<String, Integer>();
+
+    private ConcurrentMap<Integer, PollRecord> _polls = 
+                            new ConcurrentHashMap<Integer, PollRecord>();
+    private ConcurrentMap<String, Integer> _pollsByComment = 
+                            new ConcurrentHashMap<String, Integer>();
+    private ConcurrentMap<String, Boolean> _bans = 
+                            new ConcurrentHashMap<String, Boolean>();
+
+    //
+    // "message id/poll id" of votes cast from unread messages
+    //
+    private ConcurrentMap<String, Boolean> _cast = 
+                            new ConcurrentHashMap<String, Boolean>();
+
+    //
+    // Thing id => time matched
+    //
+    private ConcurrentMap<String, Long> _matches = 
+                            new ConcurrentHashMap<String, Long>();
+
+    public void open() { }
+
+    public void close() { }
+
+    public void sync() { }
+
+    public void addBan(String subreddit) {
+        _bans.put(subreddit, Boolean.TRUE);
+    }
+
+    public boolean isBanned(String subreddit) {
+        return _bans.containsKey(subreddit);
+    }
+
+    public boolean isBotReplied(String id) {
+        return _matches.containsKey(id);
+    }
+
+    public void setBotReplied(String id) {
+        _matches.putIfAbsent(id, Long.valueOf(System.currentTimeMillis()));
+    }
+
+    public void setBotReplied(Collection<String> ids) {
+        for(String id: ids) {
+            setBotReplied(id);
+        }
+    }
+
+    public boolean isVotePresent(String username, int id) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        Integer userId = _users.get(username);
+        if(poll == null || userId == null) {
+            return false;
+        }
+        synchronized(poll) {
+            return poll._votes.containsKey(userId.intValue());
+        }
+    }
+
+    public int internUser(String username) {
+        Integer userId = _users.get(username);
+        if(userId == null) {
+            Integer fresh = Integer.valueOf(_lastUserId.incrementAndGet());
+            userId = _users.putIfAbsent(username, fresh);
+            if(userId == null) {
+                userId = fresh;
+            }
+        }
+        return userId.intValue();
+    }
+
+    public int getVote(int id, int userId) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null) {
+            return -1;
+        }
+        synchronized(poll) {
+            return poll._votes.get(userId, -1);
+        }
+    }
+
+    public boolean applyVotes(int[] polls, int[] users, 
+                              int[] options, int count) {
+        for(int i = 0; i < count; i++) {
+            setVote(polls[i], users[i], options[i]);
+        }
+        return true;
+    }
+
+    public boolean castVote(String username, int id, int option) {
+        return setVote(id, internUser(username), option);
+    }
+
+    private boolean setVote(int id, int userId, int option) {
+
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null) {
+            return false;
+        }
+
+        AtomicIntegerArray tallies = poll._tallies;
+        if(option < 0 || option >= tallies.length()) {
+            return false;
+        }
+
+        //
+        // Swapping the vote in tells us exactly which tally to take it 
+        // from, even when the same user votes twice at once.
+        //
+        int previous;
+        synchronized(poll) {
+            if(poll._closed) {
+                return false;
+            }
+            previous = poll._votes.get(userId, -1);
+            if(previous == option) {
+                return false;
+            }
+            poll._votes.put(userId, option);
+        }
+        if(previous != -1) {
+            tallies.decrementAndGet(previous);
+        }
+        tallies.incrementAndGet(option);
+        return true;
+    }
+
+    public int[] getPollVotes(int id) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null) {
+            return new int[0];
+        }
+        AtomicIntegerArray tallies = poll._tallies;
+        int[] ret = new int[tallies.length()];
+        for(int i = 0; i < ret.length; i++) {
+            ret[i] = Math.max(0, tallies.get(i));
+        }
+        return ret;
+    }
+
+    public boolean visitPoll(int id, PollVisitor visitor) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null) {
+            return false;
+        }
+        visitor.poll(poll._title, poll._ucId, poll._pcId, poll._account);
+        return true;
+    }
+
+    public String[] getPollOptions(int id) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null || poll._closed) {
+            return new String[0];
+        }
+        return poll._options;
+    }
+
+    public void setPollOptions(int id, String[] options) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null) {
+            return;
+        }
+        poll._options = options.clone();
+        poll._tallies = new AtomicIntegerArray(options.length);
+    }
+
+    public int createPoll(String userCommentId, String title, String account) {
+        int id = _lastId.incrementAndGet();
+        if(_pollsByComment.putIfAbsent(userCommentId, Integer.valueOf(id)) 
+                                                                != null) {
+            return -1;
+        }
+        _polls.put(Integer.valueOf(id), 
+                   new PollRecord(id, userCommentId, title, account));
+        return id;
+    }
+
+    public void setPollCommentId(int id, String pollCommentId) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll != null) {
+            poll._pcId = pollCommentId;
+        }
+    }
+
+    public boolean visitVotes(int id, VoteVisitor visitor) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll == null) {
+            return true;
+        }
+        for(Map.Entry<String, Integer> user: _users.entrySet()) {
+            int option;
+            synchronized(poll) {
+                option = poll._votes.get(user.getValue().intValue(), -1);
+            }
+            if(option != -1) {
+                visitor.vote(user.getKey(), option);
+            }
+        }
+        return true;
+    }
+
+    public boolean isCast(String messageId, int id) {
+        return _cast.containsKey(messageId + "/" + id);
+    }
+
+    public void setCast(String messageId, int id) {
+        _cast.put(messageId + "/" + id, Boolean.TRUE);
+    }
+
+    public void forgetCast(String messageId) {
+        Iterator<String> it = _cast.keySet().iterator();
+        while(it.hasNext()) {
+            if(it.next().startsWith(messageId + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    public boolean isPoll(String userCommentId) {
+        return _pollsByComment.containsKey(userCommentId);
+    }
+
+    public Map<String, Integer> getAccountLoads(int limit) {
+        Map<String, Integer> ret = new HashMap<String, Integer>();
+        int last = _lastId.get();
+        for(int id = last; id > 0 && id > last - limit; id--) {
+            PollRecord poll = _polls.get(Integer.valueOf(id));
+            if(poll == null) {
+                continue;
+            }
+            Integer count = ret.get(poll._account);
+            ret.put(poll._account, Integer.valueOf(
+                            count == null ? 1 : count.intValue() + 1));
+        }
+        return ret;
+    }
+
+    public List<Integer> getPollsToClose(long cutoff, int limit) {
+        List<PollRecord> polls = new ArrayList<PollRecord>();
+        for(PollRecord poll: _polls.values()) {
+            if(!poll._closed && poll._created < cutoff) {
+                polls.add(poll);
+            }
+        }
+        Collections.sort(polls, new Comparator<PollRecord>() {
+            public int compare(PollRecord a, PollRecord b) {
+                return a._created < b._created ? -1 : 
+                        (a._created > b._created ? 1 : 0);
+            }
+        });
+        List<Integer> ret = new ArrayList<Integer>();
+        for(int i = 0; i < polls.size() && i < limit; i++) {
+            ret.add(Integer.valueOf(polls.get(i)._id));
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * There is nowhere to archive to, so closing a poll keeps its final
+     * tallies and drops its votes.
+     *
+     */
+    public void archivePoll(int id) {
+        PollRecord poll = _polls.get(Integer.valueOf(id));
+        if(poll != null) {
+            synchronized(poll) {
+                poll._closed = true;
+                poll._votes.clear();
+            }
+        }
+    }
+
+    public void deletePoll(int id) {
+        PollRecord poll = _polls.remove(Integer.valueOf(id));
+        if(poll != null) {
+            _pollsByComment.remove(poll._ucId, Integer.valueOf(id));
+        }
+    }
+
+    public int archiveMatches(long cutoff, int limit) {
+        int ret = 0;
+        Iterator<Map.Entry<String, Long>> it = _matches.entrySet().iterator();
+        while(it.hasNext() && ret < limit) {
+            if(it.next().getValue().longValue() < cutoff) {
+                it.remove();
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    public boolean compact(int pages) {
+        return false;
+    }
+
+}
@@ -17,9 +17,23 @@ public class PersistenceUtils {
      *
      *  Location of the db file. This will be relative to the
      *  working directory of the botkernel we are running in.
+     *  The system property pollingbot.db names another, e.g. for
+     *  benchmarks.
      */
-    private static final String DB_FILE = 
-                            "../pollingbot/scratch/pollingbot.db";
+    public static final String DB_PROPERTY = "pollingbot.db";
+    private static final String DB_FILE = System.getProperty(DB_PROPERTY,
+                            "../pollingbot/scratch/pollingbot.db");
+
+    /**
+     *
+     *  Location of the archive db file holding the raw votes, options
+     *  and matches of closed polls. The system property 
+     *  pollingbot.archiveDb names another.
+     */
+    public static final String ARCHIVE_PROPERTY = "pollingbot.archiveDb";
+    private static final String ARCHIVE_FILE = System.getProperty(
+                            ARCHIVE_PROPERTY,
+                            "../pollingbot/scratch/pollingbot-archive.db");
 
     //
     // NOTE How to check for sqlite tables defined in the schema
@@ -47,6 +61,321 @@ public class PersistenceUtils {
      */
     public static Object getDatabaseLock() { return DB_LOCK; }
 
+    //
+    // How long to wait on a db locked by another process, in ms.
+    // Several bot instances may share the db in partitioned mode.
+    //
+    private static final int BUSY_TIMEOUT = 10000;
+
+    /**
+     *
+     * Open a connection to the db.
+     *
+     */
+    private static SQLiteConnection openDatabase() throws SQLiteException {
+        SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
+        db.open(true);
+        db.setBusyTimeout(BUSY_TIMEOUT);
+        return db;
+    }
+
+    //
+    // Current schema version. pollingbot.sql creates a db at this
+    // version; older dbs are brought up to date by upgradeSchema().
+    //
+    public static final int SCHEMA_VERSION = 6;
+
+    /**
+     *
+     * Upgrade an existing database to the current schema version.
+     * Each step is applied once, in order, and recorded in the db's
+     * user_version.
+     *
+     */
+    public static void upgradeSchema() {
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+
+                int version = 0;
+                SQLiteStatement st = db.prepare("PRAGMA user_version");
+                try {
+                    if(st.step()) {
+                        version = st.columnInt(0);
+                    }
+                } finally {
+                    st.dispose();
+                }
+
+                if(version < 1) {
+                    Log.info("Upgrading database to version 1");
+                    //
+                    // Record the account owning each poll.
+                    //
+                    db.exec("BEGIN TRANSACTION;");
+                    db.exec("ALTER TABLE polls ADD COLUMN account TEXT;");
+                    db.exec("PRAGMA user_version = 1;");
+                    db.exec("COMMIT;");
+                }
+
+                if(version < 2) {
+                    Log.info("Upgrading database to version 2");
+                    //
+                    // Shard leases for partitioned mode.
+                    //
+                    db.exec("BEGIN TRANSACTION;");
+                    db.exec("CREATE TABLE leases " +
+                            " (shard INTEGER PRIMARY KEY, " +
+                            "  owner TEXT, expires INTEGER);");
+                    db.exec("CREATE TABLE lease_instances " +
+                            " (instance TEXT PRIMARY KEY, " +
+                            "  heartbeat INTEGER);");
+                    db.exec("PRAGMA user_version = 2;");
+                    db.exec("COMMIT;");
+                }
+
+                if(version < 3) {
+                    Log.info("Upgrading database to version 3");
+                    long before = getDatabaseSize(db);
+
+                    //
+                    // Store voters as ids into a users dictionary, and key
+                    // votes by (poll_id, user_id) without a rowid.
+                    // Only the first vote of a user in a poll counted, so 
+                    // that is the one kept.
+                    //
+                    db.exec("BEGIN TRANSACTION;");
+                    db.exec("CREATE TABLE users " +
+                            " (user_id INTEGER PRIMARY KEY, " +
+                            "  username TEXT UNIQUE);");
+                    db.exec("INSERT OR IGNORE INTO users (username) " +
+                            " SELECT username FROM poll_votes " +
+                            " WHERE username IS NOT NULL " +
+                            " ORDER BY rowid;");
+                    db.exec("CREATE TABLE poll_votes_v3 " +
+                            " (poll_id INTEGER, user_id INTEGER, " +
+                            "  option_num INTEGER, " +
+                            "  PRIMARY KEY (poll_id, user_id), " +
+                            "  FOREIGN KEY(poll_id) " +
+                            "       REFERENCES polls(poll_id) " +
+                            " ) WITHOUT ROWID;");
+                    db.exec("INSERT OR IGNORE INTO poll_votes_v3 " +
+                            " (poll_id, user_id, option_num) " +
+                            " SELECT v.poll_id, u.user_id, v.option_num " +
+                            " FROM poll_votes v " +
+                            " JOIN users u ON u.username = v.username " +
+                            " ORDER BY v.rowid;");
+                    db.exec("DROP TABLE poll_votes;");
+                    db.exec("ALTER TABLE poll_votes_v3 " +
+                            " RENAME TO poll_votes;");
+                    db.exec("PRAGMA user_version = 3;");
+                    db.exec("COMMIT;");
+
+                    //
+                    // Give the space of the old table back.
+                    //
+                    db.exec("VACUUM;");
+                    Log.info("Database size {} bytes before, {} bytes " +
+                            "after version 3", before, getDatabaseSize(db));
+                }
+
+                if(version < 4) {
+                    Log.info("Upgrading database to version 4");
+                    //
+                    // Keep running vote tallies per poll option, so results
+                    // don't need a scan of every vote.
+                    //
+                    db.exec("BEGIN TRANSACTION;");
+                    db.exec("CREATE TABLE poll_tallies " +
+                            " (poll_id INTEGER, option_num INTEGER, " +
+                            "  votes INTEGER, " +
+                            "  PRIMARY KEY (poll_id, option_num) " +
+                            " ) WITHOUT ROWID;");
+                    db.exec("INSERT INTO poll_tallies " +
+                            " (poll_id, option_num, votes) " +
+                            " SELECT poll_id, option_num, COUNT(*) " +
+                            " FROM poll_votes " +
+                            " GROUP BY poll_id, option_num;");
+                    db.exec("CREATE INDEX poll_options_index " +
+                            " ON poll_options (poll_id);");
+                    db.exec("PRAGMA user_version = 4;");
+                    db.exec("COMMIT;");
+                }
+
+                if(version < 5) {
+                    Log.info("Upgrading database to version 5");
+                    //
+                    // Poll lifecycle. Existing polls and matches are 
+                    // dated from now, so they close one close age later.
+                    //
+                    long now = System.currentTimeMillis();
+                    db.exec("BEGIN TRANSACTION;");
+                    db.exec("ALTER TABLE polls ADD COLUMN created INTEGER;");
+                    db.exec("UPDATE polls SET created = " + now + ";");
+                    db.exec("ALTER TABLE matches ADD COLUMN created INTEGER;");
+                    db.exec("UPDATE matches SET created = " + now + ";");
+                    db.exec("CREATE INDEX polls_created_index " +
+                            " ON polls (created);");
+                    db.exec("CREATE INDEX matches_created_index " +
+                            " ON matches (created);");
+                    db.exec("CREATE TABLE poll_results " +
+                            " (poll_id INTEGER PRIMARY KEY, " +
+                            "  total INTEGER, tallies TEXT, " +
+                            "  closed INTEGER);");
+                    db.exec("PRAGMA user_version = 5;");
+                    db.exec("COMMIT;");
+
+                    //
+                    // Free pages are given back in small steps by 
+                    // compactDatabase(). Switching an existing db over 
+                    // takes one full vacuum.
+                    //
+                    db.exec("PRAGMA auto_vacuum = INCREMENTAL;");
+                    db.exec("VACUUM;");
+                }
+
+                if(version < 6) {
+                    Log.info("Upgrading database to version 6");
+                    //
+                    // Votes cast from messages spanning instances.
+                    //
+                    db.exec("BEGIN TRANSACTION;");
+                    db.exec("CREATE TABLE message_votes " +
+                            " (message_id TEXT, poll_id INTEGER, " +
+                            "  PRIMARY KEY (message_id, poll_id) " +
+                            " ) WITHOUT ROWID;");
+                    db.exec("PRAGMA user_version = 6;");
+                    db.exec("COMMIT;");
+                }
+
+                //
+                // The archive db's tables are made here, once, so the 
+                // lookups in it need not check for them.
+                //
+                attachArchive(db);
+                db.exec("CREATE TABLE IF NOT EXISTS archive.poll_options " +
+                        " (poll_id INTEGER, option_num INTEGER, " +
+                        "  option_value TEXT);");
+                db.exec("CREATE TABLE IF NOT EXISTS archive.poll_votes " +
+                        " (poll_id INTEGER, user_id INTEGER, " +
+                        "  option_num INTEGER, " +
+                        "  PRIMARY KEY (poll_id, user_id)) WITHOUT ROWID;");
+                db.exec("CREATE TABLE IF NOT EXISTS archive.matches " +
+                        " (user_comment_id TEXT PRIMARY KEY, " +
+                        "  created INTEGER);");
+
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Return the size of the db in bytes.
+     *
+     */
+    private static long getDatabaseSize(SQLiteConnection db) 
+                                                    throws SQLiteException {
+        long pages = 0;
+        long pageSize = 0;
+        SQLiteStatement st = db.prepare("PRAGMA page_count");
+        try {
+            if(st.step()) {
+                pages = st.columnLong(0);
+            }
+        } finally {
+            st.dispose();
+        }
+        st = db.prepare("PRAGMA page_size");
+        try {
+            if(st.step()) {
+                pageSize = st.columnLong(0);
+            }
+        } finally {
+            st.dispose();
+        }
+        return pages * pageSize;
+    }
+
+    //
+    // Intern cache of voter names to user ids. Ids never change once
+    // assigned, so this stays valid across bot instances sharing the db.
+    // Only committed ids are cached: a user added by a transaction which
+    // rolls back is gone, and its rowid will be given to the next user.
+    //
+    private static final int USER_CACHE_SIZE = 100000;
+
+    private static Map<String, Integer> _userIds = 
+                new LinkedHashMap<String, Integer>(1024, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                                    Map.Entry<String, Integer> eldest) {
+                        return size() > USER_CACHE_SIZE;
+                    }
+                };
+
+    /**
+     *
+     * Look up the id of a user, adding the user to the dictionary if
+     * requested. Must be called holding DB_LOCK.
+     *
+     * @param db        An open connection
+     * @param username  The user name
+     * @param create    True to add the user if not present
+     *
+     * @return the user id, or -1 if the user is not present
+     *
+     */
+    private static int getUserId(   SQLiteConnection db, 
+                                    String username, 
+                                    boolean create ) throws SQLiteException {
+
+        Integer cached = _userIds.get(username);
+        if(cached != null) {
+            return cached.intValue();
+        }
+
+        boolean inserted = false;
+        if(create) {
+            SQLiteStatement st = db.prepare(
+                "INSERT OR IGNORE INTO users (username) VALUES (?)" );
+            try {
+                st.bind(1, username);
+                st.step();
+                inserted = db.getChanges() > 0;
+            } finally {
+                st.dispose();
+            }
+        }
+
+        int ret = -1;
+        SQLiteStatement st = db.prepare(
+            "SELECT user_id FROM users WHERE username = ?" );
+        try {
+            st.bind(1, username);
+            if(st.step()) {
+                ret = st.columnInt(0);
+            }
+        } finally {
+            st.dispose();
+        }
+
+        //
+        // A user just added inside a transaction is cached by the next
+        // lookup after it commits.
+        //
+        if(ret != -1 && (!inserted || db.getAutoCommit())) {
+            _userIds.put(username, Integer.valueOf(ret));
+        }
+        return ret;
+    }
+
     /**
      *
      * Add a ban
@@ -75,8 +404,7 @@ public class PersistenceUtils {
                 // TODO Should this connection be 
                 // cached rather than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
                     "INSERT INTO bans (subreddit) VALUES (?)" );
@@ -91,7 +419,7 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
         }
@@ -122,8 +450,7 @@ public class PersistenceUtils {
                 // TODO Should this connection be 
                 // cached rather than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
                     "SELECT subreddit " +
@@ -144,7 +471,7 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
             return ret;
@@ -154,7 +481,7 @@ public class PersistenceUtils {
     /**
      *
      * Return true if the bot has replied to the specified thing.
-     * False otherwise.
+     * False otherwise. Old matches are looked for in the archive db.
      *
      * @param id    The id of a Thing
      *
@@ -175,29 +502,45 @@ public class PersistenceUtils {
                 // TODO Should this connection be 
                 // cached rather than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
                     "SELECT user_comment_id " +
                     " FROM matches " +
                     " WHERE user_comment_id = ?");
 
+                boolean found;
                 try {
                     st.bind(1, id);
-                    if(st.step()) {
-                        ret = true;
-                    } else {
-                        ret = false;
-                    }
+                    found = st.step();
                 } finally {
                     st.dispose();
                 }
+
+                //
+                // Matches are moved to the archive once they are old,
+                // and crawls of old threads would find them again.
+                // Without an archive file nothing has been moved.
+                //
+                if(!found && new File(ARCHIVE_FILE).exists()) {
+                    attachArchive(db);
+                    st = db.prepare(
+                        "SELECT user_comment_id " +
+                        " FROM archive.matches " +
+                        " WHERE user_comment_id = ?");
+                    try {
+                        st.bind(1, id);
+                        found = st.step();
+                    } finally {
+                        st.dispose();
+                    }
+                }
                 db.dispose();
+                ret = found;
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
             return ret;
@@ -219,15 +562,15 @@ public class PersistenceUtils {
                 // TODO Should this connection be cached rather 
                 // than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
-                    "INSERT INTO matches (user_comment_id) " +
-                    " VALUES (?)" );
+                    "INSERT INTO matches (user_comment_id, created) " +
+                    " VALUES (?, ?)" );
 
                 try {
                     st.bind(1, id);
+                    st.bind(2, System.currentTimeMillis());
                     st.step();
                 } finally {
                     st.dispose();
@@ -236,7 +579,47 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     * 
+     * Set several things as having been replied to by the bot, 
+     * in one transaction.
+     *
+     * @param ids   The ids of the Things
+     *
+     */
+    public static void setBotReplied(Collection<String> ids) {
+        synchronized(DB_LOCK) {
+
+            try {
+                SQLiteConnection db = openDatabase();
+                db.exec("BEGIN TRANSACTION;");
+
+                SQLiteStatement st = db.prepare(
+                    "INSERT OR IGNORE INTO matches " +
+                    " (user_comment_id, created) VALUES (?, ?)" );
+
+                try {
+                    long now = System.currentTimeMillis();
+                    for(String id: ids) {
+                        st.bind(1, id);
+                        st.bind(2, now);
+                        st.step();
+                        st.reset();
+                    }
+                } finally {
+                    st.dispose();
+                }
+                db.exec("COMMIT;");
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
             }
         }
     }
@@ -263,17 +646,23 @@ public class PersistenceUtils {
                 // TODO Should this connection be 
                 // cached rather than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
+
+                int userId = getUserId(db, username, false);
+                if(userId == -1) {
+                    // Never voted in any poll.
+                    db.dispose();
+                    return false;
+                }
 
                 SQLiteStatement st = db.prepare(
-                    "SELECT username " +
+                    "SELECT option_num " +
                     " FROM poll_votes " +
-                    " WHERE username = ? AND poll_id = ?");
+                    " WHERE poll_id = ? AND user_id = ?");
 
                 try {
-                    st.bind(1, username);
-                    st.bind(2, id);
+                    st.bind(1, id);
+                    st.bind(2, userId);
                     if(st.step()) {
                         ret = true;
                     } else {
@@ -286,7 +675,7 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
             return ret;
@@ -295,100 +684,165 @@ public class PersistenceUtils {
  
     /**
      * 
-     * Set a vote
+     * Cast or change a vote.
+     *
+     * A user has one vote per poll. Voting again replaces the earlier 
+     * choice, adjusting the poll tallies by -1 and +1 in the same 
+     * transaction. Votes for options the poll does not have, and votes
+     * for closed polls, are ignored.
      *
      * @param username  The name of the voting user
      * @param id        The id of the poll
-     * @param vote      The option id
+     * @param option    The option id
+     *
+     * @return true if the user's effective vote changed
      *
      */
-    public static void setUserVote(String username, int id, int option) {
+    public static boolean castVote(String username, int id, int option) {
 
         synchronized(DB_LOCK) {
 
+            boolean ret = false;
+
             try {
                 //
                 // TODO Should this connection be cached rather 
                 // than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
 
-                SQLiteStatement st = null;
-               
                 try {
-                
-                    st = db.prepare(
-                            "INSERT INTO poll_votes " + 
-                            " (poll_id, option_num, username) " +
-                            " VALUES (?, ?, ?)" );
-                    st.bind(1, id);
-                    st.bind(2, option);
-                    st.bind(3, username);
 
-                    st.step();
-                } finally {
-                    st.dispose();
+                    int options = 0;
+                    SQLiteStatement st = db.prepare(
+                                "SELECT COUNT(*) FROM poll_options " +
+                                " WHERE poll_id = ?" );
+                    try {
+                        st.bind(1, id);
+                        if(st.step()) {
+                            options = st.columnInt(0);
+                        }
+                    } finally {
+                        st.dispose();
+                    }
+
+                    if(option >= 0 && option < options) {
+                        int userId = getUserId(db, username, true);
+                        ret = setVote(db, id, userId, option);
+                    }
+
+                    db.exec("COMMIT;");
+
+                } catch(SQLiteException se) {
+                    db.exec("ROLLBACK;");
+                    throw se;
                 }
                 db.dispose();
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
+                ret = false;
             }
+
+            return ret;
         }
     }
 
     /**
      *
-     * Query for poll results
+     * Record a user's vote, adjusting the tallies if it changed. Votes 
+     * for closed polls are ignored. Must be called holding DB_LOCK inside
+     * a transaction.
      *
-     * @param id    The id of the poll
+     * @return true if the user's effective vote changed
+     *
+     */
+    private static boolean setVote( SQLiteConnection db,
+                                    int id,
+                                    int userId,
+                                    int option ) throws SQLiteException {
+
+        if(isPollClosed(db, id)) {
+            return false;
+        }
+
+        int previous = getVote(db, id, userId);
+        if(previous == option) {
+            return false;
+        }
+
+        SQLiteStatement st = db.prepare(
+            "INSERT OR REPLACE INTO poll_votes " + 
+            " (poll_id, user_id, option_num) " +
+            " VALUES (?, ?, ?)" );
+        try {
+            st.bind(1, id);
+            st.bind(2, userId);
+            st.bind(3, option);
+            st.step();
+        } finally {
+            st.dispose();
+        }
+
+        if(previous != -1) {
+            adjustTally(db, id, previous, -1);
+        }
+        adjustTally(db, id, option, 1);
+        return true;
+    }
+
+    /**
+     *
+     * Read a user's current vote. Must be called holding DB_LOCK.
      *
-     * @return the poll info (option => vote map)
+     * @return the option voted for, or -1 if the user has not voted
      *
      */
-    public static Map<Integer, Integer> getPollVotes(int id) {
-    
-        Map<Integer, Integer> ret = new HashMap<Integer, Integer>();
+    private static int getVote( SQLiteConnection db, 
+                                int id, 
+                                int userId ) throws SQLiteException {
 
-        synchronized(DB_LOCK) {
+        int ret = -1;
+        SQLiteStatement st = db.prepare(
+                "SELECT option_num FROM poll_votes " + 
+                " WHERE poll_id = ? AND user_id = ?" );
+        try {
+            st.bind(1, id);
+            st.bind(2, userId);
+            if(st.step()) {
+                ret = st.columnInt(0);
+            }
+        } finally {
+            st.dispose();
+        }
+        return ret;
+    }
 
-            try {
+    /**
+     *
+     * Read a user's current vote in a poll.
+     *
+     * @param id        The id of the poll
+     * @param userId    The id of the user, from internUser
+     *
+     * @return the option voted for, or -1 if the user has not voted
+     *
+     */
+    public static int getVote(int id, int userId) {
+        synchronized(DB_LOCK) {
 
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+            int ret = -1;
 
-                SQLiteStatement st = db.prepare(
-                    "SELECT option_num " +
-                    " FROM poll_votes " +
-                    " WHERE poll_id = ?" );
-                
-                try {
-                    st.bind(1, id);
-                    while(st.step()) {
-                        int option = st.columnInt(0);
-                        Integer votes = ret.get(new Integer(option));
-                        if(votes == null) {
-                            ret.put(new Integer(option), new Integer(1));
-                        } else {
-                            ret.put(
-                                    new Integer(option), 
-                                    new Integer(votes.intValue() + 1));
-                        }
-                    } 
-                } finally {
-                    st.dispose();
-                }
+            try {
+                SQLiteConnection db = openDatabase();
+                ret = getVote(db, id, userId);
                 db.dispose();
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
             return ret;
@@ -397,128 +851,446 @@ public class PersistenceUtils {
 
     /**
      *
-     * Query for a poll
+     * Apply a batch of already validated votes in a single transaction.
+     * Later entries for the same poll and user win, so replaying a batch
+     * twice leaves the same result. Entries for closed polls are skipped.
      *
-     * @param id    The id of the poll
+     * @param polls     Poll ids
+     * @param users     User ids, from internUser
+     * @param options   Options voted for
+     * @param count     Number of entries to apply
      *
-     * @return the poll options
+     * @return true if the batch was committed
      *
      */
-    public static Poll getPoll(int id) {
-    
-        Poll ret = null;
-
+    public static boolean applyVotes(   int[] polls, 
+                                        int[] users, 
+                                        int[] options,
+                                        int count ) {
         synchronized(DB_LOCK) {
 
             try {
+                SQLiteConnection db = openDatabase();
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
 
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
-
-                SQLiteStatement st = db.prepare(
-                    "SELECT user_comment_id, poll_comment_id, poll_id, title " +
-                    " FROM polls " +
-                    " WHERE poll_id = ?" );
-                
                 try {
-                    st.bind(1, id);
-                    if(st.step()) {
-                        String ucId = st.columnString(0);
-                        String pcId = st.columnString(1);
-                        int pId = st.columnInt(2);
-                        String title = st.columnString(3);
-                        ret = new Poll(pId, title, ucId, pcId);
-                    } 
-                } finally {
-                    st.dispose();
+                    for(int i = 0; i < count; i++) {
+                        setVote(db, polls[i], users[i], options[i]);
+                    }
+                    db.exec("COMMIT;");
+
+                } catch(SQLiteException se) {
+                    db.exec("ROLLBACK;");
+                    throw se;
                 }
                 db.dispose();
+                return true;
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
+                return false;
             }
-
-            return ret;
         }
     }
 
-
     /**
      *
-     * Query for poll options
-     *
-     * @param id    The id of the poll
+     * Visit the current vote of every voter in a poll. The visitor is
+     * called holding DB_LOCK.
      *
-     * @return the poll options
+     * @return false on a database error
      *
      */
-    public static PollOption[] getPollOptions(int id) {
-    
-        List<PollOption> ret = new ArrayList<PollOption>();
+    public static boolean visitVotes(int id, PollStore.VoteVisitor visitor) {
 
         synchronized(DB_LOCK) {
 
             try {
 
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
-                    "SELECT option_num, option_value " +
-                    " FROM poll_options " +
-                    " WHERE poll_id = ?" );
-                
+                    "SELECT u.username, v.option_num " +
+                    " FROM poll_votes v " +
+                    " JOIN users u ON u.user_id = v.user_id " +
+                    " WHERE v.poll_id = ?");
                 try {
                     st.bind(1, id);
                     while(st.step()) {
-                        int option = st.columnInt(0);
-                        String value = st.columnString(1);
-                        ret.add(
-                            new PollOption(option, value) );
-                    } 
+                        visitor.vote(st.columnString(0), st.columnInt(1));
+                    }
                 } finally {
                     st.dispose();
                 }
                 db.dispose();
+                return true;
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
+                return false;
             }
-
-            return (PollOption[])ret.toArray(new PollOption[0]);
         }
     }
 
     /**
      *
-     * Set poll options
+     * Check if the vote of a message in a poll has been cast.
      *
+     * @param messageId The id of the message
      * @param id        The id of the poll
-     * @param options   The poll options
      *
      */
-    public static void setPollOptions(int id, PollOption[] pollOptions) {
-    
+    public static boolean isCast(String messageId, int id) {
+
         synchronized(DB_LOCK) {
 
+            //
+            // Default to cast, so a database error never casts a vote
+            // twice.
+            //
+            boolean ret = true;
+
             try {
 
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "SELECT poll_id FROM message_votes " +
+                    " WHERE message_id = ? AND poll_id = ?");
+                try {
+                    st.bind(1, messageId);
+                    st.bind(2, id);
+                    ret = st.step();
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Record that the vote of a message in a poll has been cast.
+     *
+     */
+    public static void setCast(String messageId, int id) {
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "INSERT OR IGNORE INTO message_votes " +
+                    " (message_id, poll_id) VALUES (?, ?)");
+                try {
+                    st.bind(1, messageId);
+                    st.bind(2, id);
+                    st.step();
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Forget the votes cast from a message which has been read.
+     *
+     */
+    public static void forgetCast(String messageId) {
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "DELETE FROM message_votes WHERE message_id = ?");
+                try {
+                    st.bind(1, messageId);
+                    st.step();
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Look up the id of a user, adding the user to the dictionary
+     * if needed.
+     *
+     * @param username  The user name
+     *
+     * @return the user id, or -1 on a database error
+     *
+     */
+    public static int internUser(String username) {
+        synchronized(DB_LOCK) {
+
+            Integer cached = _userIds.get(username);
+            if(cached != null) {
+                return cached.intValue();
+            }
+
+            int ret = -1;
+
+            try {
+                SQLiteConnection db = openDatabase();
+                ret = getUserId(db, username, true);
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Add delta to the tally of a poll option.
+     *
+     */
+    private static void adjustTally(    SQLiteConnection db, 
+                                        int id, 
+                                        int option, 
+                                        int delta ) throws SQLiteException {
+
+        SQLiteStatement st = db.prepare(
+                "INSERT OR IGNORE INTO poll_tallies " +
+                " (poll_id, option_num, votes) VALUES (?, ?, 0)" );
+        try {
+            st.bind(1, id);
+            st.bind(2, option);
+            st.step();
+        } finally {
+            st.dispose();
+        }
+
+        st = db.prepare(
+                "UPDATE poll_tallies SET votes = votes + ? " +
+                " WHERE poll_id = ? AND option_num = ?" );
+        try {
+            st.bind(1, delta);
+            st.bind(2, id);
+            st.bind(3, option);
+            st.step();
+        } finally {
+            st.dispose();
+        }
+    }
+
+    /**
+     *
+     * Query for poll results
+     *
+     * @param id    The id of the poll
+     *
+     * @return the votes of each option, empty if the poll has no options
+     *
+     */
+    public static int[] getPollVotes(int id) {
+    
+        int[] ret = new int[0];
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                //
+                // TODO Should this connection be 
+                // cached rather than instantiated each time?
+                //
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "SELECT COUNT(*) FROM poll_options WHERE poll_id = ?" );
+                try {
+                    st.bind(1, id);
+                    if(st.step()) {
+                        ret = new int[st.columnInt(0)];
+                    }
+                } finally {
+                    st.dispose();
+                }
+
+                st = db.prepare(
+                    "SELECT option_num, votes " +
+                    " FROM poll_tallies " +
+                    " WHERE poll_id = ?" );
+                
+                try {
+                    st.bind(1, id);
+                    while(st.step()) {
+                        int option = st.columnInt(0);
+                        int votes = st.columnInt(1);
+                        if(option >= 0 && option < ret.length && votes > 0) {
+                            ret[option] = votes;
+                        }
+                    } 
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Query for a poll
+     *
+     * @param id        The id of the poll
+     * @param visitor   Sees the poll, if there is one
+     *
+     * @return false if there is no such poll
+     *
+     */
+    public static boolean visitPoll(int id, PollStore.PollVisitor visitor) {
+    
+        boolean ret = false;
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                //
+                // TODO Should this connection be 
+                // cached rather than instantiated each time?
+                //
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "SELECT user_comment_id, poll_comment_id, " +
+                    "   title, account " +
+                    " FROM polls " +
+                    " WHERE poll_id = ?" );
+                
+                try {
+                    st.bind(1, id);
+                    if(st.step()) {
+                        String ucId = st.columnString(0);
+                        String pcId = st.columnString(1);
+                        String title = st.columnString(2);
+                        String account = st.columnString(3);
+                        visitor.poll(title, ucId, pcId, account);
+                        ret = true;
+                    } 
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+
+    /**
+     *
+     * Query for poll options
+     *
+     * @param id    The id of the poll
+     *
+     * @return the poll options, indexed by option
+     *
+     */
+    public static String[] getPollOptions(int id) {
+    
+        List<String> ret = new ArrayList<String>();
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                //
+                // TODO Should this connection be 
+                // cached rather than instantiated each time?
+                //
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "SELECT option_value " +
+                    " FROM poll_options " +
+                    " WHERE poll_id = ? " +
+                    " ORDER BY option_num" );
+                
+                try {
+                    st.bind(1, id);
+                    while(st.step()) {
+                        ret.add(st.columnString(0));
+                    } 
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret.toArray(new String[ret.size()]);
+        }
+    }
+
+    /**
+     *
+     * Set poll options
+     *
+     * @param id        The id of the poll
+     * @param options   The poll options, indexed by option
+     *
+     */
+    public static void setPollOptions(int id, String[] options) {
+    
+        synchronized(DB_LOCK) {
+
+            try {
+
+                //
+                // TODO Should this connection be 
+                // cached rather than instantiated each time?
                 //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
                 db.exec("BEGIN TRANSACTION;");
 
                 SQLiteStatement st = db.prepare(
@@ -527,10 +1299,10 @@ public class PersistenceUtils {
                     " VALUES (?, ?, ?)" );
                 
                 try {
-                    for(PollOption pollOption: pollOptions) {
+                    for(int i = 0; i < options.length; i++) {
                         st.bind(1, id);
-                        st.bind(2, pollOption.getOption());
-                        st.bind(3, pollOption.getValue());
+                        st.bind(2, i);
+                        st.bind(3, options[i]);
                         st.step();
                         st.reset();
                     } 
@@ -542,7 +1314,7 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
         }
@@ -555,9 +1327,12 @@ public class PersistenceUtils {
      * @param userCommentId         The id of the user comment requesting 
      *                              this poll.
      * @param title                 The poll title (question)
+     * @param account               The bot account owning the poll
      *
      */
-    public static int createPoll(String userCommentId, String title) {
+    public static int createPoll(   String userCommentId, 
+                                    String title, 
+                                    String account ) {
    
         int ret = -1;
 
@@ -569,19 +1344,20 @@ public class PersistenceUtils {
                 // TODO Should this connection be 
                 // cached rather than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
                     "INSERT INTO polls " +
-                    "   (user_comment_id, poll_id, title) " + 
+                    "   (user_comment_id, poll_id, title, account, created) " + 
                     " VALUES (?, " +
                     "   (SELECT IFNULL(MAX(poll_id), 0) + 1 FROM polls), " +
-                    " ?)" );
+                    " ?, ?, ?)" );
                 
                 try {
                     st.bind(1, userCommentId);
                     st.bind(2, title);
+                    st.bind(3, account);
+                    st.bind(4, System.currentTimeMillis());
                     st.step();
                 } finally {
                     st.dispose();
@@ -604,7 +1380,7 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
             return ret;
@@ -613,26 +1389,69 @@ public class PersistenceUtils {
 
     /**
      *
-     * Once we have posted the poll and know the comment id, update it in the
-     * poll database.
+     * Remove a poll whose comment could not be posted, with its options.
+     * Nobody has seen it, so it has no votes.
      *
      */
-    public static void setPollCommentId(int id, String pollCommentId) {
-    
+    public static void deletePoll(int id) {
+
         synchronized(DB_LOCK) {
 
             try {
 
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
 
-                SQLiteStatement st = db.prepare(
-                    "UPDATE polls " +
-                    " SET poll_comment_id = ? " +
+                try {
+                    String[] tables = new String[] {
+                        "poll_options", "poll_votes", "poll_tallies", 
+                        "polls" };
+                    for(String table: tables) {
+                        SQLiteStatement st = db.prepare(
+                            "DELETE FROM " + table + " WHERE poll_id = ?");
+                        try {
+                            st.bind(1, id);
+                            st.step();
+                        } finally {
+                            st.dispose();
+                        }
+                    }
+                    db.exec("COMMIT;");
+
+                } catch(SQLiteException se) {
+                    db.exec("ROLLBACK;");
+                    throw se;
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Once we have posted the poll and know the comment id, update it in the
+     * poll database.
+     *
+     */
+    public static void setPollCommentId(int id, String pollCommentId) {
+    
+        synchronized(DB_LOCK) {
+
+            try {
+
+                //
+                // TODO Should this connection be 
+                // cached rather than instantiated each time?
+                //
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "UPDATE polls " +
+                    " SET poll_comment_id = ? " +
                     " WHERE poll_id = ?");
                 
                 try {
@@ -646,13 +1465,590 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
         }
     }
 
 
+    /**
+     *
+     * Count the most recent polls owned by each account.
+     *
+     * @param limit     The number of recent polls to consider
+     *
+     * @return account name => poll count. Polls with no recorded 
+     *          account are counted under a null key.
+     *
+     */
+    public static Map<String, Integer> getAccountLoads(int limit) {
+
+        Map<String, Integer> ret = new HashMap<String, Integer>();
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                //
+                // TODO Should this connection be 
+                // cached rather than instantiated each time?
+                //
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "SELECT account, COUNT(*) FROM " +
+                    "   (SELECT account FROM polls " +
+                    "       ORDER BY poll_id DESC LIMIT ?) " +
+                    " GROUP BY account" );
+                
+                try {
+                    st.bind(1, limit);
+                    while(st.step()) {
+                        ret.put(st.columnString(0), 
+                                Integer.valueOf(st.columnInt(1)));
+                    }
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Heartbeat for a bot instance in partitioned mode.
+     *
+     * Renews the leases held by the instance, then evens out its share
+     * of the shards: an instance holding more than its fair share 
+     * releases the excess, an instance holding less claims shards whose
+     * lease has expired. All in one transaction, so instances in other 
+     * processes see a consistent lease table.
+     *
+     * @param instance      The instance name
+     * @param shards        The total number of shards
+     * @param leaseMillis   How long a lease or heartbeat lasts
+     *
+     * @return the shards held by the instance, null on db error
+     *
+     */
+    public static Set<Integer> renewLeases( String instance, 
+                                            int shards, 
+                                            long leaseMillis ) {
+
+        Set<Integer> ret = new HashSet<Integer>();
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+
+                long now = System.currentTimeMillis();
+
+                //
+                // Take the write lock up front so the instance count and 
+                // free shards can't change under us.
+                //
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
+
+                try {
+
+                    SQLiteStatement st = db.prepare(
+                        "INSERT OR REPLACE INTO lease_instances " +
+                        "   (instance, heartbeat) VALUES (?, ?)" );
+                    try {
+                        st.bind(1, instance);
+                        st.bind(2, now);
+                        st.step();
+                    } finally {
+                        st.dispose();
+                    }
+
+                    st = db.prepare(
+                        "DELETE FROM lease_instances WHERE heartbeat < ?" );
+                    try {
+                        st.bind(1, now - leaseMillis);
+                        st.step();
+                    } finally {
+                        st.dispose();
+                    }
+
+                    int instances = 1;
+                    st = db.prepare("SELECT COUNT(*) FROM lease_instances");
+                    try {
+                        if(st.step()) {
+                            instances = Math.max(1, st.columnInt(0));
+                        }
+                    } finally {
+                        st.dispose();
+                    }
+
+                    int share = (shards + instances - 1) / instances;
+
+                    //
+                    // Renew what we still hold
+                    //
+                    st = db.prepare(
+                        "UPDATE leases SET expires = ? " +
+                        " WHERE owner = ? AND expires >= ?" );
+                    try {
+                        st.bind(1, now + leaseMillis);
+                        st.bind(2, instance);
+                        st.bind(3, now);
+                        st.step();
+                    } finally {
+                        st.dispose();
+                    }
+
+                    st = db.prepare(
+                        "SELECT shard FROM leases " +
+                        " WHERE owner = ? AND expires >= ? ORDER BY shard" );
+                    try {
+                        st.bind(1, instance);
+                        st.bind(2, now);
+                        while(st.step()) {
+                            int shard = st.columnInt(0);
+                            if(shard < shards) {
+                                ret.add(Integer.valueOf(shard));
+                            }
+                        }
+                    } finally {
+                        st.dispose();
+                    }
+
+                    if(ret.size() > share) {
+
+                        //
+                        // Hand the excess back for newer instances.
+                        //
+                        List<Integer> held = new ArrayList<Integer>(ret);
+                        Collections.sort(held);
+                        st = db.prepare(
+                            "UPDATE leases SET owner = NULL, expires = 0 " +
+                            " WHERE shard = ? AND owner = ?" );
+                        try {
+                            for(int i = share; i < held.size(); i++) {
+                                st.bind(1, held.get(i).intValue());
+                                st.bind(2, instance);
+                                st.step();
+                                st.reset();
+                                ret.remove(held.get(i));
+                            }
+                        } finally {
+                            st.dispose();
+                        }
+
+                    } else if(ret.size() < share) {
+
+                        //
+                        // Claim free or expired shards.
+                        //
+                        SQLiteStatement claim = db.prepare(
+                            "INSERT OR REPLACE INTO leases " +
+                            "   (shard, owner, expires) VALUES (?, ?, ?)" );
+                        st = db.prepare(
+                            "SELECT expires FROM leases WHERE shard = ?" );
+                        try {
+                            for(int shard = 0; 
+                                shard < shards && ret.size() < share; 
+                                shard++) {
+
+                                if(ret.contains(Integer.valueOf(shard))) {
+                                    continue;
+                                }
+                                st.bind(1, shard);
+                                boolean free = true;
+                                if(st.step()) {
+                                    free = st.columnLong(0) < now;
+                                }
+                                st.reset();
+                                if(!free) {
+                                    continue;
+                                }
+
+                                claim.bind(1, shard);
+                                claim.bind(2, instance);
+                                claim.bind(3, now + leaseMillis);
+                                claim.step();
+                                claim.reset();
+                                ret.add(Integer.valueOf(shard));
+                            }
+                        } finally {
+                            st.dispose();
+                            claim.dispose();
+                        }
+                    }
+
+                    db.exec("COMMIT;");
+
+                } catch(SQLiteException se) {
+                    db.exec("ROLLBACK;");
+                    throw se;
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+                ret = null;
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Release all leases held by an instance, so other instances can 
+     * take over its shards right away.
+     *
+     */
+    public static void releaseLeases(String instance) {
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
+
+                SQLiteStatement st = db.prepare(
+                    "UPDATE leases SET owner = NULL, expires = 0 " +
+                    " WHERE owner = ?" );
+                try {
+                    st.bind(1, instance);
+                    st.step();
+                } finally {
+                    st.dispose();
+                }
+
+                st = db.prepare(
+                    "DELETE FROM lease_instances WHERE instance = ?" );
+                try {
+                    st.bind(1, instance);
+                    st.step();
+                } finally {
+                    st.dispose();
+                }
+
+                db.exec("COMMIT;");
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Attach the archive db to a connection as "archive". Its tables are
+     * created by upgradeSchema(). Must be called outside a transaction.
+     *
+     */
+    private static void attachArchive(SQLiteConnection db) 
+                                                    throws SQLiteException {
+        SQLiteStatement st = db.prepare("ATTACH DATABASE ? AS archive");
+        try {
+            st.bind(1, new File(ARCHIVE_FILE).getPath());
+            st.step();
+        } finally {
+            st.dispose();
+        }
+    }
+
+    /**
+     *
+     * Return true if the poll is closed, i.e. has frozen results. Must be
+     * called holding DB_LOCK.
+     *
+     */
+    private static boolean isPollClosed(SQLiteConnection db, int id)
+                                                    throws SQLiteException {
+        SQLiteStatement st = db.prepare(
+                "SELECT poll_id FROM poll_results WHERE poll_id = ?" );
+        try {
+            st.bind(1, id);
+            return st.step();
+        } finally {
+            st.dispose();
+        }
+    }
+
+    /**
+     *
+     * Find open polls created before the cutoff.
+     *
+     * @param cutoff    Creation time in ms
+     * @param limit     Max number of polls to return
+     *
+     */
+    public static List<Integer> getPollsToClose(long cutoff, int limit) {
+
+        List<Integer> ret = new ArrayList<Integer>();
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                    "SELECT poll_id FROM polls " +
+                    " WHERE created < ? " +
+                    " AND poll_id NOT IN (SELECT poll_id FROM poll_results) " +
+                    " ORDER BY created LIMIT ?" );
+                
+                try {
+                    st.bind(1, cutoff);
+                    st.bind(2, limit);
+                    while(st.step()) {
+                        ret.add(Integer.valueOf(st.columnInt(0)));
+                    }
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Close a poll. The final tallies are frozen into poll_results, 
+     * and the poll's options and raw votes are moved to the archive db.
+     * Votes for a closed poll are ignored from then on.
+     *
+     * @param id    The id of the poll
+     *
+     */
+    public static void archivePoll(int id) {
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+                attachArchive(db);
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
+
+                try {
+
+                    int options = 0;
+                    SQLiteStatement st = db.prepare(
+                        "SELECT COUNT(*) FROM poll_options WHERE poll_id = ?" );
+                    try {
+                        st.bind(1, id);
+                        if(st.step()) {
+                            options = st.columnInt(0);
+                        }
+                    } finally {
+                        st.dispose();
+                    }
+
+                    int[] tallies = new int[options];
+                    int total = 0;
+                    st = db.prepare(
+                        "SELECT option_num, votes FROM poll_tallies " +
+                        " WHERE poll_id = ?" );
+                    try {
+                        st.bind(1, id);
+                        while(st.step()) {
+                            int option = st.columnInt(0);
+                            if(option >= 0 && option < options) {
+                                tallies[option] = st.columnInt(1);
+                                total += tallies[option];
+                            }
+                        }
+                    } finally {
+                        st.dispose();
+                    }
+
+                    StringBuffer sb = new StringBuffer();
+                    for(int i = 0; i < options; i++) {
+                        if(i > 0) {
+                            sb.append(",");
+                        }
+                        sb.append(tallies[i]);
+                    }
+
+                    st = db.prepare(
+                        "INSERT OR REPLACE INTO poll_results " +
+                        " (poll_id, total, tallies, closed) " +
+                        " VALUES (?, ?, ?, ?)" );
+                    try {
+                        st.bind(1, id);
+                        st.bind(2, total);
+                        st.bind(3, sb.toString());
+                        st.bind(4, System.currentTimeMillis());
+                        st.step();
+                    } finally {
+                        st.dispose();
+                    }
+
+                    String[] moves = new String[] {
+                        "INSERT OR IGNORE INTO archive.poll_votes " +
+                        " SELECT poll_id, user_id, option_num " +
+                        " FROM main.poll_votes WHERE poll_id = ?",
+                        "INSERT INTO archive.poll_options " +
+                        " SELECT poll_id, option_num, option_value " +
+                        " FROM main.poll_options WHERE poll_id = ?",
+                        "DELETE FROM main.poll_votes WHERE poll_id = ?",
+                        "DELETE FROM main.poll_options WHERE poll_id = ?",
+                        "DELETE FROM main.poll_tallies WHERE poll_id = ?" };
+
+                    for(String sql: moves) {
+                        st = db.prepare(sql);
+                        try {
+                            st.bind(1, id);
+                            st.step();
+                        } finally {
+                            st.dispose();
+                        }
+                    }
+
+                    db.exec("COMMIT;");
+
+                } catch(SQLiteException se) {
+                    db.exec("ROLLBACK;");
+                    throw se;
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Move matches recorded before the cutoff to the archive db.
+     *
+     * @param cutoff    Match time in ms
+     * @param limit     Max number of matches to move
+     *
+     * @return the number of matches moved
+     *
+     */
+    public static int archiveMatches(long cutoff, int limit) {
+
+        int ret = 0;
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+                attachArchive(db);
+                db.exec("BEGIN IMMEDIATE TRANSACTION;");
+
+                try {
+
+                    db.exec("CREATE TEMP TABLE IF NOT EXISTS old_matches " +
+                            " (user_comment_id TEXT PRIMARY KEY);");
+                    db.exec("DELETE FROM old_matches;");
+
+                    SQLiteStatement st = db.prepare(
+                        "INSERT INTO old_matches " +
+                        " SELECT user_comment_id FROM main.matches " +
+                        " WHERE created < ? LIMIT ?" );
+                    try {
+                        st.bind(1, cutoff);
+                        st.bind(2, limit);
+                        st.step();
+                    } finally {
+                        st.dispose();
+                    }
+                    ret = db.getChanges();
+
+                    db.exec("INSERT OR IGNORE INTO archive.matches " +
+                            " SELECT user_comment_id, created " +
+                            " FROM main.matches WHERE user_comment_id IN " +
+                            " (SELECT user_comment_id FROM old_matches);");
+                    db.exec("DELETE FROM main.matches WHERE user_comment_id IN " +
+                            " (SELECT user_comment_id FROM old_matches);");
+
+                    db.exec("COMMIT;");
+
+                } catch(SQLiteException se) {
+                    db.exec("ROLLBACK;");
+                    throw se;
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     *
+     * Give up to the specified number of free pages back to the file 
+     * system. Kept small so the db lock is only held briefly.
+     *
+     * @return true if free pages remain
+     *
+     */
+    public static boolean compactDatabase(int pages) {
+
+        boolean ret = false;
+
+        synchronized(DB_LOCK) {
+
+            try {
+
+                SQLiteConnection db = openDatabase();
+
+                SQLiteStatement st = db.prepare(
+                        "PRAGMA incremental_vacuum(" + pages + ")" );
+                try {
+                    while(st.step()) {
+                        // Steps once per page freed.
+                    }
+                } finally {
+                    st.dispose();
+                }
+
+                st = db.prepare("PRAGMA freelist_count");
+                try {
+                    if(st.step()) {
+                        ret = st.columnInt(0) > 0;
+                    }
+                } finally {
+                    st.dispose();
+                }
+                db.dispose();
+
+            } catch(SQLiteException se) {
+                se.printStackTrace();
+                Log.severe("error with database.");
+            }
+
+            return ret;
+        }
+    }
+
     /**
      *
      * Check if this user comment already has a poll created for it.
@@ -672,8 +2068,7 @@ public class PersistenceUtils {
                 // TODO Should this connection be 
                 // cached rather than instantiated each time?
                 //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+                SQLiteConnection db = openDatabase();
 
                 SQLiteStatement st = db.prepare(
                     "SELECT poll_id FROM polls " +
@@ -693,7 +2088,7 @@ public class PersistenceUtils {
 
             } catch(SQLiteException se) {
                 se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                Log.severe("error with database.");
             }
 
             return ret;
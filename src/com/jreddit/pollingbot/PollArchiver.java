@@ -0,0 +1,137 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Background maintenance of the poll database.
+ *
+ * Polls older than the close age are closed: their final tallies are 
+ * frozen and their raw votes and options moved to the archive db, along
+ * with old matches. The space freed is then given back to the file 
+ * system a few pages at a time.
+ *
+ * Every step is its own short transaction, so the vote path only ever 
+ * waits for one small step rather than a whole pass.
+ *
+ */
+public class PollArchiver implements Runnable {
+
+    //
+    // Time between maintenance passes, in ms
+    //
+    private static final long INTERVAL = 1000L * 60 * 10;
+
+    //
+    // Pause between steps, letting waiting db users in
+    //
+    private static final long STEP_PAUSE = 100;
+
+    //
+    // Work done per step
+    //
+    private static final int POLLS_PER_PASS     = 100;
+    private static final int MATCHES_PER_STEP   = 1000;
+    private static final int VACUUM_PAGES       = 64;
+
+    private static final long DAY = 1000L * 60 * 60 * 24;
+
+    private PollingBot _bot;
+    private long _closeAge;
+
+    private volatile boolean _stopped;
+    private Thread _thread;
+
+    /**
+     *
+     * @param bot           The bot
+     * @param closeAgeDays  Age at which polls close, 0 to never close
+     *
+     */
+    public PollArchiver(PollingBot bot, int closeAgeDays) {
+        _bot = bot;
+        _closeAge = closeAgeDays * DAY;
+    }
+
+    public void start() {
+        _thread = new Thread(this, "PollingBot-archiver");
+        _thread.setDaemon(true);
+        _thread.setPriority(Thread.MIN_PRIORITY);
+        _thread.start();
+    }
+
+    public void stop() {
+        _stopped = true;
+        if(_thread != null) {
+            _thread.interrupt();
+        }
+    }
+
+    public void run() {
+        while(!_stopped) {
+            try {
+                Thread.sleep(INTERVAL);
+                maintain();
+            } catch(InterruptedException ie) {
+                // Stopping
+            }
+        }
+    }
+
+    /**
+     *
+     * One maintenance pass.
+     *
+     */
+    private void maintain() throws InterruptedException {
+
+        //
+        // In partitioned mode one instance is enough.
+        //
+        if(!_bot.getLeases().isCoordinator()) {
+            return;
+        }
+
+        if(_closeAge > 0) {
+
+            long cutoff = System.currentTimeMillis() - _closeAge;
+
+            List<Integer> polls = 
+                    _bot.getStore().getPollsToClose(cutoff, POLLS_PER_PASS);
+            for(Integer pollId: polls) {
+                if(_stopped) {
+                    return;
+                }
+                Log.info("Closing poll {}", pollId);
+                _bot.getStore().archivePoll(pollId.intValue());
+                _bot.getVoterIndex().evict(pollId.intValue());
+                _bot.getPollTable().evict(pollId.intValue());
+                Thread.sleep(STEP_PAUSE);
+            }
+
+            int moved = 0;
+            int count;
+            do {
+                if(_stopped) {
+                    return;
+                }
+                count = _bot.getStore().archiveMatches(cutoff, 
+                                                        MATCHES_PER_STEP);
+                moved += count;
+                Thread.sleep(STEP_PAUSE);
+            } while(count == MATCHES_PER_STEP);
+
+            if(polls.size() > 0 || moved > 0) {
+                Log.info("Archived {} polls, {} matches", polls.size(), moved);
+            }
+        }
+
+        while(!_stopped && _bot.getStore().compact(VACUUM_PAGES)) {
+            Thread.sleep(STEP_PAUSE);
+        }
+    }
+
+}
@@ -0,0 +1,344 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Creates requested polls on a bounded pool of worker threads, so the 
+ * crawler thread which found a request never waits on reddit. Comments
+ * are posted in the background; a worker goes on to the next request
+ * while they are retried.
+ *
+ * When the queue is full new requests are rejected; they have not been 
+ * recorded as handled, so the crawler finds them again on a later pass.
+ *
+ * Keeps the status of recent requests and overall counts.
+ *
+ */
+public class PollCreationService implements Drainable {
+
+    /**
+     * Status of a poll request.
+     */
+    public enum Status {
+        QUEUED,         // Waiting for a worker
+        RUNNING,        // Being created
+        CREATED,        // Poll posted
+        DUPLICATE,      // A poll already exists for the target
+        THROTTLED,      // User or subreddit over its poll limit
+        FAILED,         // Error talking to reddit
+        REJECTED        // Queue was full
+    }
+
+    /**
+     *
+     * Does the work of creating a poll.
+     *
+     */
+    public interface PollCreator {
+
+        /**
+         *
+         * Start creating a poll, telling done how it ended. done may be
+         * told on any thread, after this returns.
+         *
+         */
+        void createPoll(PollRequest request, Completion done);
+
+        /**
+         *
+         * Told about a request given up on at shutdown, queued or not
+         * yet done.
+         *
+         */
+        void dropped(PollRequest request);
+    }
+
+    /**
+     *
+     * Told how a request ended, once.
+     *
+     */
+    public interface Completion {
+        void done(Status status);
+    }
+
+    //
+    // Number of request statuses remembered
+    //
+    private static final int STATUS_HISTORY = 1000;
+
+    private PollCreator _creator;
+    private ThreadPoolExecutor _executor;
+
+    //
+    // Recent request ids => status. Guarded by itself.
+    //
+    private Map<String, Status> _status = 
+                new LinkedHashMap<String, Status>() {
+                    protected boolean removeEldestEntry(
+                                    Map.Entry<String, Status> eldest) {
+                        return size() > STATUS_HISTORY;
+                    }
+                };
+
+    private AtomicLong _submitted   = new AtomicLong();
+    private AtomicLong _rejected    = new AtomicLong();
+    private AtomicLong _created     = new AtomicLong();
+    private AtomicLong _refused     = new AtomicLong();
+    private AtomicLong _failed      = new AtomicLong();
+    private AtomicLong _latency     = new AtomicLong();
+
+    //
+    // Requests started by a worker and not yet done, e.g. waiting on
+    // their comments. Guarded by _status.
+    //
+    private Set<PollRequest> _running = new HashSet<PollRequest>();
+
+    /**
+     *
+     * A queued request.
+     *
+     */
+    private class Task implements Runnable {
+        private PollRequest _request;
+
+        public Task(PollRequest request) {
+            _request = request;
+        }
+
+        public void run() {
+            process(_request);
+        }
+    }
+
+    /**
+     *
+     * @param creator   Creates the polls
+     * @param workers   Number of worker threads
+     * @param capacity  Max number of queued requests
+     *
+     */
+    public PollCreationService( PollCreator creator, 
+                                int workers, 
+                                int capacity ) {
+        _creator = creator;
+        _executor = new ThreadPoolExecutor(
+                        workers, workers, 
+                        0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(capacity),
+                        new ThreadFactory() {
+                            private int _count;
+                            public synchronized Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, 
+                                    "PollingBot-creator-" + (++_count));
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        },
+                        new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     *
+     * Queue a request.
+     *
+     * @return false if the request is already queued or running, or the
+     *          queue is full
+     *
+     */
+    public boolean submit(final PollRequest request) {
+
+        synchronized(_status) {
+            Status status = _status.get(request.getId());
+            if(status == Status.QUEUED || status == Status.RUNNING) {
+                return false;
+            }
+            _status.put(request.getId(), Status.QUEUED);
+        }
+
+        try {
+            _executor.execute(new Task(request));
+        } catch(RejectedExecutionException ree) {
+            _rejected.incrementAndGet();
+            setStatus(request, Status.REJECTED);
+            Log.warn("Poll creation queue full, deferring {}", request);
+            return false;
+        }
+
+        _submitted.incrementAndGet();
+        Log.info("Queued {}", request);
+        return true;
+    }
+
+    private void process(final PollRequest request) {
+
+        synchronized(_status) {
+            _status.put(request.getId(), Status.RUNNING);
+            _running.add(request);
+        }
+
+        Completion done = new Completion() {
+            private boolean _done;
+            public void done(Status status) {
+                synchronized(this) {
+                    if(_done) {
+                        return;
+                    }
+                    _done = true;
+                }
+                finished(request, status);
+            }
+        };
+
+        try {
+            _creator.createPoll(request, done);
+        } catch(RuntimeException re) {
+            re.printStackTrace();
+            Log.error("creating {}: {}", request, re);
+            done.done(Status.FAILED);
+        }
+    }
+
+    private void finished(final PollRequest request, Status status) {
+
+        synchronized(_status) {
+            _status.put(request.getId(), status);
+            _running.remove(request);
+            _status.notifyAll();
+        }
+
+        switch(status) {
+            case CREATED:
+                _created.incrementAndGet();
+                break;
+            case DUPLICATE:
+            case THROTTLED:
+                _refused.incrementAndGet();
+                break;
+            default:
+                _failed.incrementAndGet();
+                break;
+        }
+        _latency.addAndGet(System.currentTimeMillis() - request.getQueued());
+
+        //
+        // The metrics are only put together if the line is written.
+        //
+        final Status result = status;
+        Log.log(Log.INFO, new Log.Message() {
+            public String build() {
+                return request + " " + result + ", " + getMetrics();
+            }
+        });
+    }
+
+    private void setStatus(PollRequest request, Status status) {
+        synchronized(_status) {
+            _status.put(request.getId(), status);
+        }
+    }
+
+    /**
+     *
+     * Return the status of a recent request, null if unknown.
+     *
+     */
+    public Status getStatus(String requestId) {
+        synchronized(_status) {
+            return _status.get(requestId);
+        }
+    }
+
+    public int getQueueDepth()      { return _executor.getQueue().size(); }
+    public long getSubmitted()      { return _submitted.get(); }
+    public long getRejected()       { return _rejected.get(); }
+    public long getCreated()        { return _created.get(); }
+    public long getRefused()        { return _refused.get(); }
+    public long getFailed()         { return _failed.get(); }
+
+    /**
+     *
+     * Return the number of requests started and not yet done.
+     *
+     */
+    public int getActiveCount() {
+        synchronized(_status) {
+            return _running.size();
+        }
+    }
+
+    /**
+     *
+     * Return the mean time from queueing to completion, in ms.
+     *
+     */
+    public long getMeanLatency() {
+        long done = _created.get() + _refused.get() + _failed.get();
+        return done == 0 ? 0 : _latency.get() / done;
+    }
+
+    public String getMetrics() {
+        return "queued " + getQueueDepth() + 
+                " active " + getActiveCount() +
+                " submitted " + getSubmitted() +
+                " rejected " + getRejected() +
+                " created " + getCreated() +
+                " refused " + getRefused() +
+                " failed " + getFailed() +
+                " mean latency " + getMeanLatency() + "ms";
+    }
+
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    public String getName() {
+        return "poll requests";
+    }
+
+    /**
+     *
+     * Finish the queued requests and wait for the running ones to be
+     * done. Workers still busy at the deadline are interrupted, and the
+     * creator is told about every request given up on.
+     *
+     */
+    public int drain(long deadline) {
+        _executor.shutdown();
+        try {
+            long wait = deadline - System.currentTimeMillis();
+            if(wait > 0) {
+                _executor.awaitTermination(wait, TimeUnit.MILLISECONDS);
+            }
+            synchronized(_status) {
+                while(_running.size() > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0) {
+                        break;
+                    }
+                    _status.wait(wait);
+                }
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        List<PollRequest> dropped = new ArrayList<PollRequest>();
+        for(Runnable task: _executor.shutdownNow()) {
+            dropped.add(((Task)task)._request);
+        }
+        synchronized(_status) {
+            dropped.addAll(_running);
+        }
+        for(PollRequest request: dropped) {
+            _creator.dropped(request);
+        }
+        return dropped.size();
+    }
+
+}
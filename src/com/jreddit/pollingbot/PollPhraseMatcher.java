@@ -0,0 +1,134 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * Scores how much a post looks like a question which would make a good
+ * poll, such as "what is the best ...".
+ *
+ * Question phrases are every question word followed by every verb 
+ * ("who is", "what are", ...). Each comparison word ("better", "best",
+ * ...) following a question phrase scores 2 if on the same line, and 1 
+ * if on a later line. A post needs at least the minimum score to be 
+ * suggested, the default 2 being a question and a comparison on one line.
+ *
+ */
+public class PollPhraseMatcher {
+
+    public static final String DEFAULT_QUESTIONS    = "who,what,when,where";
+    public static final String DEFAULT_VERBS        = "is,are,were";
+    public static final String DEFAULT_COMPARISONS  = "better,best,worse,worst";
+    public static final int DEFAULT_MIN_SCORE       = 2;
+
+    private static final int QUESTION   = 0;
+    private static final int COMPARISON = 1;
+    private static final int NEWLINE    = 2;
+
+    private KeywordAutomaton _automaton;
+
+    //
+    // Kind of each phrase in the automaton
+    //
+    private int[] _kinds;
+
+    private int _minScore;
+
+    /**
+     *
+     * @param questions     Comma separated question words
+     * @param verbs         Comma separated verbs following a question word
+     * @param comparisons   Comma separated comparison words
+     * @param minScore      Minimum score of a suggested post
+     *
+     */
+    public PollPhraseMatcher(   String questions, 
+                                String verbs, 
+                                String comparisons,
+                                int minScore ) {
+
+        List<String> phrases = new ArrayList<String>();
+        List<Integer> kinds = new ArrayList<Integer>();
+
+        for(String question: split(questions)) {
+            for(String verb: split(verbs)) {
+                phrases.add(question + " " + verb);
+                kinds.add(Integer.valueOf(QUESTION));
+            }
+        }
+        for(String comparison: split(comparisons)) {
+            phrases.add(comparison);
+            kinds.add(Integer.valueOf(COMPARISON));
+        }
+        phrases.add("\n");
+        kinds.add(Integer.valueOf(NEWLINE));
+
+        _automaton = new KeywordAutomaton(
+                        phrases.toArray(new String[phrases.size()]));
+        _kinds = new int[kinds.size()];
+        for(int i = 0; i < _kinds.length; i++) {
+            _kinds[i] = kinds.get(i).intValue();
+        }
+        _minScore = minScore;
+    }
+
+    private static List<String> split(String list) {
+        List<String> ret = new ArrayList<String>();
+        for(String item: list.split(",")) {
+            item = item.trim();
+            if(!item.equals("")) {
+                ret.add(item);
+            }
+        }
+        return ret;
+    }
+
+    public int getMinScore() { return _minScore; }
+
+    /**
+     *
+     * Score a post body in one pass.
+     *
+     */
+    public int score(CharSequence body) {
+
+        final int[] state = new int[] {
+                            0,      // score
+                            0,      // question seen before
+                            0 };    // question seen on this line
+
+        _automaton.scan(body, new KeywordAutomaton.MatchListener() {
+            public void match(int phrase, int start, int end) {
+                switch(_kinds[phrase]) {
+                    case QUESTION:
+                        state[1] = 1;
+                        state[2] = 1;
+                        break;
+                    case COMPARISON:
+                        if(state[2] == 1) {
+                            state[0] += 2;
+                        } else if(state[1] == 1) {
+                            state[0] += 1;
+                        }
+                        break;
+                    case NEWLINE:
+                        state[2] = 0;
+                        break;
+                }
+            }
+        });
+
+        return state[0];
+    }
+
+    /**
+     *
+     * Return the score if it reaches the minimum, 0 otherwise.
+     *
+     */
+    public int match(CharSequence body) {
+        int score = score(body);
+        return score >= _minScore ? score : 0;
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.jreddit.pollingbot;
+
+import java.text.DecimalFormat;
+import java.util.*;
+
+/**
+ *
+ * Renders poll comments, keeping the parts that never change.
+ *
+ * The question, the option list with its vote links and the signature
+ * are built once per poll. Rendering only adds the total, the bar chart
+ * and the counts in between.
+ *
+ */
+public class PollRenderCache {
+
+    //
+    // Number of polls cached
+    //
+    private static final int CACHE_SIZE = 1000;
+
+    //
+    // Width of the bar chart, one step per 5%
+    //
+    private static final int BAR_WIDTH = 20;
+
+    /**
+     *
+     * The static parts of one poll.
+     *
+     */
+    private static class Entry {
+        private String _header;
+        private String _footer;
+        private int _options;
+    }
+
+    private String _signature;
+
+    //
+    // Bar of each width, _bars[n] is n steps filled.
+    //
+    private String[] _bars = new String[BAR_WIDTH + 1];
+
+    private Map<Integer, Entry> _entries =
+                new LinkedHashMap<Integer, Entry>(256, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                                    Map.Entry<Integer, Entry> eldest) {
+                        return size() > CACHE_SIZE;
+                    }
+                };
+
+    /**
+     *
+     * @param bar       A filled bar step
+     * @param space     An empty bar step
+     * @param signature Appended to signed renderings
+     *
+     */
+    public PollRenderCache(String bar, String space, String signature) {
+        _signature = signature;
+        for(int n = 0; n <= BAR_WIDTH; n++) {
+            StringBuffer sb = new StringBuffer();
+            for(int j = 0; j < BAR_WIDTH; j++) {
+                sb.append(j < n ? bar : space);
+            }
+            _bars[n] = sb.toString();
+        }
+    }
+
+    /**
+     *
+     * Generate the markup text representation of a poll.
+     *
+     * @param account   The account owning the poll, votes are sent
+     *                  to this account.
+     * @param votes     Votes per option, one entry per option
+     * @param signed    True to append the signature
+     *
+     */
+    public String render(   int pollId,
+                            String account,
+                            String title,
+                            String[] options,
+                            int[] votes,
+                            boolean signed ) {
+
+        Entry entry = getEntry(pollId, account, title, options);
+
+        int total = 0;
+        for(int i = 0; i < votes.length; i++) {
+            total += votes[i];
+        }
+
+        StringBuffer sb = new StringBuffer(
+                    entry._header.length() + entry._footer.length() +
+                    _signature.length() + votes.length * 80);
+        sb.append(entry._header);
+        sb.append("Total votes: ").append(total).append("  \n\n");
+
+        DecimalFormat twoDForm = new DecimalFormat("#.##");
+
+        for(int i = 0; i < votes.length; i++) {
+
+            double percent = ((double)votes[i] / (double)total) * 100.0;
+
+            //
+            // Round to two places
+            //
+            if(!Double.isNaN(percent)) {
+                percent = Double.valueOf(twoDForm.format(percent));
+            } else {
+                percent = 0.0;
+            }
+
+            // Round to nearest five.
+            int iPercent = (int)percent;
+            int tmp = iPercent % 5;
+            if(tmp < 3) {
+                iPercent -= tmp;
+            } else {
+                iPercent += 5 - tmp;
+            }
+
+            // Convert to increments of 5%
+            iPercent = Math.min(BAR_WIDTH, iPercent / 5);
+
+            sb.append("    ").append((char)('A' + i)).append(". ");
+            sb.append(_bars[iPercent]);
+            sb.append("  " +
+                String.format("%6.2f", percent) + "%  " +
+                String.format("%4d", votes[i]) + " votes  \n" );
+        }
+
+        sb.append(entry._footer);
+        if(signed) {
+            sb.append(_signature);
+        }
+        return sb.toString();
+    }
+
+    private synchronized Entry getEntry(int pollId,
+                                        String account,
+                                        String title,
+                                        String[] options ) {
+
+        Entry entry = _entries.get(Integer.valueOf(pollId));
+        if(entry != null && entry._options == options.length) {
+            return entry;
+        }
+
+        entry = new Entry();
+        entry._options = options.length;
+        entry._header = "Poll question: **" + title + "**  \n\n";
+
+        //
+        // Poll options with vote links
+        //
+        StringBuffer sb = new StringBuffer();
+        sb.append("\n\n");
+        for(int i = 0; i < options.length; i++) {
+            sb.append("- " + ((char)('A'+i)) + ". ");
+            sb.append(options[i] + " " +
+                "\\([vote](http://www.reddit.com/message/compose/?to=" +
+                account +
+                "&message=vote+" +
+                (char)('a'+i) +
+                "&subject=Poll+" +
+                pollId + ")\\)  \n");
+        }
+        entry._footer = sb.toString();
+
+        _entries.put(Integer.valueOf(pollId), entry);
+        return entry;
+    }
+
+}
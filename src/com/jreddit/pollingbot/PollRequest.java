@@ -0,0 +1,63 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * A poll request parsed from a post, waiting to be created.
+ *
+ */
+public class PollRequest {
+
+    private Thing _thing;
+    private String _title;
+    private String[] _options;
+    private String _submissionId;
+    private String _commentId;
+    private long _queued;
+
+    /**
+     *
+     * @param thing         The post requesting the poll
+     * @param title         The poll question
+     * @param options       The poll options, indexed by option
+     * @param submissionId  Id of the submission to post the poll in
+     * @param commentId     Id of the comment to reply to with the poll, 
+     *                      null to reply to the submission
+     *
+     */
+    public PollRequest( Thing thing, 
+                        String title, 
+                        String[] options, 
+                        String submissionId,
+                        String commentId ) {
+        _thing = thing;
+        _title = title;
+        _options = options;
+        _submissionId = submissionId;
+        _commentId = commentId;
+        _queued = System.currentTimeMillis();
+    }
+
+    public Thing getThing()             { return _thing; }
+    public String getId()               { return _thing.getId(); }
+    public String getTitle()            { return _title; }
+    public String[] getOptions()        { return _options; }
+    public String getSubmissionId()     { return _submissionId; }
+    public String getCommentId()        { return _commentId; }
+
+    /**
+     * When the request was queued, in ms.
+     */
+    public long getQueued()             { return _queued; }
+
+    public String toString() {
+        return "PollRequest " + getId() + " \"" + _title + "\" " +
+                _options.length + " options in " + 
+                _submissionId + (_commentId == null ? "" : "/" + _commentId);
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.jreddit.pollingbot;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -13,24 +14,45 @@ import com.jreddit.botkernel.*;
  *
  *
  */
-public class PollRequestMatchCriteria extends BaseMatchCriteria {
+public class PollRequestMatchCriteria extends BaseMatchCriteria 
+                                implements PollCreationService.PollCreator {
 
-    private static final int MAX_OPTIONS = 20;
-
-    private static final int USER_LIMIT         = 5;
-    private static final int SUBREDDIT_LIMIT    = 5;
+    //
+    // Most options a poll can have, whatever the config says
+    //
+    static final int MAX_OPTIONS = 20;
 
     private static final long RESET_TIME = 1000 * 60 * 60 * 24;
 
+    //
+    // This should match a poll request 
+    //
+    private static final Pattern REQUEST_PATTERN = Pattern.compile(
+        ".*(http(s)?:\\/\\/([^\\s]+))(\\s+)([^\\?]+\\?)\\n+(([\\-\\*\\+])\\s+([^\\n])+\\n)+");
+
+    private static final Pattern OPTION_PATTERN = Pattern.compile(
+        "(([\\-\\*\\+])\\s+([^\\n]+))\\n");
+
+    private static final Pattern TARGET_PATTERN = Pattern.compile(
+        "(http(s)?:\\/\\/([^\\s]+))\\/comments\\/(\\w+)(\\/\\w+\\/?(\\w+)?)?(\\/)?(\\s+)");
 
     //
     // Try to protect from abuse.
+    // Guarded by _creationLock.
     //
     private Map<String, CreationStat> _creationMap = 
                                         new HashMap<String, CreationStat>();
     private Map<String, CreationStat> _subredditMap = 
                                         new HashMap<String, CreationStat>();
 
+    //
+    // Held while checking for existing polls and limits and recording 
+    // a new poll, so two workers can't both create a poll for one target.
+    //
+    private Object _creationLock = new Object();
+
+    private PollCreationService _creationService;
+
     private static class CreationStat {
         private Date _lastActivity;
         private int _pollCount;
@@ -46,250 +68,485 @@ public class PollRequestMatchCriteria extends BaseMatchCriteria {
         public void setCount(int c) { _pollCount = c; }
     }
 
-    public PollRequestMatchCriteria(PollingBot bot) {
+    /**
+     *
+     * @param bot       The bot
+     * @param workers   Number of poll creation workers
+     * @param capacity  Max number of requests waiting for a worker
+     *
+     */
+    public PollRequestMatchCriteria(PollingBot bot, int workers, int capacity) {
         super(bot);
+        _creationService = new PollCreationService(this, workers, capacity);
+    }
+
+    public PollCreationService getCreationService() { 
+        return _creationService; 
     }
 
-    protected boolean matchBody(Thing thing, String body) {
+    public void stop() {
+        _creationService.shutdown();
+    }
+
+    /**
+     *
+     * Keep the abuse counters along with the seen-set, so a restart does
+     * not reset everyone's daily limits.
+     *
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        super.writeSnapshot(out);
+        synchronized(_creationLock) {
+            writeStats(out, _creationMap);
+            writeStats(out, _subredditMap);
+        }
+    }
+
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        super.readSnapshot(in);
+        synchronized(_creationLock) {
+            readStats(in, _creationMap);
+            readStats(in, _subredditMap);
+        }
+    }
+
+    private static void writeStats( DataOutput out, 
+                                    Map<String, CreationStat> stats ) 
+                                                    throws IOException {
+        out.writeInt(stats.size());
+        for(Map.Entry<String, CreationStat> entry: stats.entrySet()) {
+            StateSnapshot.writeString(out, entry.getKey());
+            out.writeLong(entry.getValue().getLastActivity().getTime());
+            out.writeInt(entry.getValue().getCount());
+        }
+    }
+
+    private static void readStats(  ByteBuffer in, 
+                                    Map<String, CreationStat> stats ) 
+                                                    throws IOException {
+        int count = in.getInt();
+        for(int i = 0; i < count; i++) {
+            String key = StateSnapshot.readString(in);
+            CreationStat stat = new CreationStat(new Date(in.getLong()));
+            stat.setCount(in.getInt());
+            stats.put(key, stat);
+        }
+    }
+
+    /**
+     *
+     * Parse a poll request. No db or network calls.
+     *
+     * @return the PollRequest, or null if there is none
+     *
+     */
+    protected Object evaluate(Thing thing, String body) {
         
         // Some basic checks
         if(thing.getAuthor() == null) {
-            return false;
+            return null;
+        }
+
+        //
+        // In partitioned mode another instance may own this thing, for
+        // now.
+        //
+        if(!_bot.getLeases().ownsKey(thing.getId())) {
+            return RETRY;
+        }
+
+        //
+        // Not known until the bot's last comment has been looked up.
+        // Nor can the poll be posted until the bot is logged in, which
+        // the crawlers do not wait for at startup.
+        //
+        Date replyAfter = _bot.getReplyAfterDate();
+        if(replyAfter == null || !_bot.isConnected()) {
+            return RETRY;
         }
 
+        if(thing.getCreatedDate().before(replyAfter)) {
+            //
+            // log("Comment too old to check for poll request " +
+            //            thing.getCreatedDate());
+            return null;
+        }
+
+        Matcher m = REQUEST_PATTERN.matcher(body);
+        if(!m.find()) { 
+            // BotKernel.getBotKernel().log("INFO no match in body: \n" +
+            // body);
+            return null;
+        }
+
+        String title = m.group(5);
+
+        m = OPTION_PATTERN.matcher(body);
+
+        List<String> list = new ArrayList<String>();
+        int max = _bot.getConfig().getMaxOptions();
+        while(m.find() && list.size() < max) {
+            list.add(m.group(3));
+        }
+
+        //
+        // Get the comment or submission we are to reply to.
+        //
+        m = TARGET_PATTERN.matcher(body);
+        if(!m.find()) {
+            return null;
+        }
+
+        String submission = m.group(4);     // Submission
+        String comment = m.group(6);        // Comment
+        if(submission == null) {
+            return null;
+        }
+
+        return new PollRequest(
+                    thing,
+                    title,
+                    list.toArray(new String[list.size()]),
+                    submission,
+                    comment );
+    }
+
+    /**
+     *
+     * Queue a parsed poll request for creation, unless already handled.
+     * Does no network calls, so the crawler is never held up by reddit.
+     *
+     */
+    protected boolean apply(Thing thing, String body, Object match) {
+
         //
         // Check that we haven't already started a poll for this request
         //
-        Object lock = PersistenceUtils.getDatabaseLock();
-        synchronized(lock) {
-            
-            if(PersistenceUtils.isBotReplied(thing.getId())) {
-                BotKernel.getBotKernel().log(
-                        "FINEST Already handled request:\n" + thing);
-                return false;
-            }
+        PollCreationService.Status status = 
+                                _creationService.getStatus(thing.getId());
+        if( status == PollCreationService.Status.QUEUED ||
+            status == PollCreationService.Status.RUNNING ) {
+            return false;
+        }
 
-            if(thing.getCreatedDate().before(_bot.getReplyAfterDate())) {
-                //
-                // log("Comment too old to check for poll request " +
-                //            thing.getCreatedDate());
-                return false;
-            }
-            
+        if(_bot.getStore().isBotReplied(thing.getId())) {
+            Log.finest("Already handled request:\n{}", thing);
+            return false;
+        }
+
+        Log.info("Found poll request in: \n{}", body);
+
+        setPending(thing);
+        if(!_creationService.submit((PollRequest)match)) {
             //
-            // This should match a poll request 
+            // Queue full, look at it again on the next crawl.
             //
-            String pattern = 
-                ".*(http(s)?:\\/\\/([^\\s]+))(\\s+)([^\\?]+\\?)\\n+(([\\-\\*\\+])\\s+([^\\n])+\\n)+";
-    
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(body);
-            if(m.find()) { 
-
-                BotKernel.getBotKernel().log("INFO " +
-                        "Found poll request in: \n" + body);
-                String url = m.group(1);
-                String title = m.group(5);
-
-                pattern = "(([\\-\\*\\+])\\s+([^\\n]+))\\n";
-                r = Pattern.compile(pattern);
-                m = r.matcher(body);
-
-                List<PollOption> list = new ArrayList<PollOption>();
-                int i = 0;
-                while(m.find()) {
-                    String value = m.group(3);
-                    list.add(new PollOption(i, value));
-                    if(i > MAX_OPTIONS) {
-                        break;
+            forget(thing);
+            retryLater();
+        }
+
+        return false;
+    }
+
+    /**
+     *
+     * Create a requested poll. Runs on a creation worker, the comments
+     * are posted in the background. A request which fails is evaluated
+     * again by the next crawl.
+     *
+     */
+    public void createPoll( final PollRequest request, 
+                            final PollCreationService.Completion done ) {
+        PollCreationService.Completion forgetting = 
+            new PollCreationService.Completion() {
+                public void done(PollCreationService.Status status) {
+                    if(status == PollCreationService.Status.FAILED) {
+                        forget(request.getThing());
+                    } else {
+                        setRecorded(request.getThing());
                     }
+                    done.done(status);
                 }
+            };
+        try {
+            create(request, forgetting);
+        } catch(RuntimeException re) {
+            forgetting.done(PollCreationService.Status.FAILED);
+            throw re;
+        }
+    }
 
-                //
-                // Get the comment or submission we are to reply to.
-                //
-                pattern = "(http(s)?:\\/\\/([^\\s]+))\\/comments\\/(\\w+)(\\/\\w+\\/?(\\w+)?)?(\\/)?(\\s+)";
-                r = Pattern.compile(pattern);
-                m = r.matcher(body);
+    /**
+     *
+     * A request dropped at shutdown is evaluated again after a restart.
+     *
+     */
+    public void dropped(PollRequest request) {
+        forget(request.getThing());
+    }
 
-                if(m.find()) {
+    private void create(final PollRequest request,
+                        final PollCreationService.Completion done) {
 
-                    String submission = m.group(4);     // Submission
-                    String comment = m.group(6);     // Comment
-                    Thing replyTo = null;
+        final Thing thing = request.getThing();
+        String title = request.getTitle();
+        String[] options = request.getOptions();
 
-                    User user = _bot.getUser();
+        Thing replyTo = null;
 
-                    try {
+        final User user = _bot.getUser();
 
-                        if(submission != null && comment == null) {
-                                replyTo = Submissions.getSubmission(
-                                    user, Thing.KIND_LINK + "_" + submission);
+        //
+        // One config for the whole request.
+        //
+        BotConfig config = _bot.getConfig();
+
+        try {
+
+            if(request.getCommentId() == null) {
+                replyTo = Submissions.getSubmission(
+                    user, Thing.KIND_LINK + "_" + request.getSubmissionId());
+            } else {
+                replyTo = Comments.getComment(
+                    user, Thing.KIND_COMMENT + "_" + request.getCommentId());
+            }
+
+            if(replyTo == null) {
+                done.done(PollCreationService.Status.FAILED);
+                return;
+            }
+
+            User owner = null;
+            int pollId = -1;
+            String refusal = null;
+            PollCreationService.Status status = null;
+            CreationStat subredditStat = null;
+            CreationStat userStat = null;
+
+            synchronized(_creationLock) {
+
+                if(_bot.getStore().isPoll(replyTo.getId())) {
+                    //
+                    // Already started a poll for this URL.
+                    //
+                    Log.info("Already started a poll for comment {}", replyTo);
+                    refusal = 
+                        "Sorry but I have already created a " +
+                        "poll in response to that comment or " +
+                        "submission.";
+                    status = PollCreationService.Status.DUPLICATE;
+                }
+                
+                userStat = _creationMap.get(thing.getAuthor());
+
+                if(status != null) {
+                    // Refused already
+                } else if(userStat == null) {
+                    userStat = new CreationStat(new Date());
+                    userStat.setCount(0);
+                    _creationMap.put(thing.getAuthor(), userStat);
+                } else {
+                    Date d = new Date();
+                    long diff = 
+                        (d.getTime()) - 
+                        (userStat.getLastActivity().getTime());
+
+                    if(diff > RESET_TIME) {
+                        userStat.setLastActivity(new Date());
+                        userStat.setCount(0);
+                    }
+
+                    if(userStat.getCount() > config.getUserLimit()) {
+                        refusal = 
+                            "Sorry but you have already created " +
+                            "too many polls today. " +
+                            "Come back in a day or so " +
+                            "and try again. ";
+                        status = PollCreationService.Status.THROTTLED;
+                    }
+                }
+               
+                if( status == null &&
+                    !config.isUnlimited(replyTo.getSubreddit())) {
+                    subredditStat = 
+                        _subredditMap.get(replyTo.getSubreddit());
+
+                    if(subredditStat == null) {
+                        subredditStat = 
+                                    new CreationStat(new Date());
+                        subredditStat.setCount(0);
+                        _subredditMap.put(  replyTo.getSubreddit(),
+                                            subredditStat);
+                    } else {
+
+                        Date d = new Date();
+                        long diff = 
+                            (d.getTime()) - 
+                            (subredditStat.getLastActivity().getTime());
+
+                        if(diff > RESET_TIME) {
+                            subredditStat.setLastActivity(
+                                                        new Date());
+                            subredditStat.setCount(0);
                         }
-                        if(submission != null && comment != null) {
-                                replyTo = Comments.getComment(
-                                    user, Thing.KIND_COMMENT + "_" + comment);
+
+                        if(subredditStat.getCount() > 
+                                config.getSubredditLimit(
+                                            replyTo.getSubreddit())) {
+                            refusal = 
+                                "Sorry but I have already " +
+                                "created too many polls in " +
+                                "that subreddit today. " + 
+                                "If you are a moderator of " +
+                                "that subreddit and you would " +
+                                "like for these restrictions to " +
+                                "be lifted for your subreddit " +
+                                "allowing unlimited PollingBot " +
+                                "polls, please contact my " +
+                                "human. Otherwise try again in " +
+                                "about a day or so.";
+                            status = PollCreationService.Status.THROTTLED;
                         }
+                    }
+                }
 
-                        if(replyTo != null) {
-
-                            if(PersistenceUtils.isPoll(replyTo.getId())) {
-                                //
-                                // Already started a poll for this URL.
-                                //
-                                BotKernel.getBotKernel().log("INFO " +
-                                    "Already started a poll for comment " + replyTo);
-                                _bot.sendComment(thing, 
-                                    "Sorry but I have already created a " +
-                                    "poll in response to that comment or " +
-                                    "submission." );
-
-                                return false;
-                            }
-                            
-                            CreationStat subredditStat = null;
-                            CreationStat userStat = 
-                                            _creationMap.get(thing.getAuthor());
-
-                            if(userStat == null) {
-                                userStat = new CreationStat(new Date());
-                                userStat.setCount(0);
-                                _creationMap.put(thing.getAuthor(), userStat);
-                            } else {
-                                Date d = new Date();
-                                long diff = 
-                                    (d.getTime()) - 
-                                    (userStat.getLastActivity().getTime());
-
-                                if(diff > RESET_TIME) {
-                                    userStat.setLastActivity(new Date());
-                                    userStat.setCount(0);
-                                }
-
-                                if(userStat.getCount() > USER_LIMIT) {
-
-                                    _bot.sendComment(thing, 
-                                        "Sorry but you have already created " +
-                                        "too many polls today. " +
-                                        "Come back in a day or so " +
-                                        "and try again. ");
-
-                                    return false;
-                                }
-                            }
-                           
-                            if(!_bot.getUnlimitedSubreddits().contains(replyTo.getSubreddit())) {
-                                subredditStat = 
-                                    _subredditMap.get(replyTo.getSubreddit());
-
-                                if(subredditStat == null) {
-                                    subredditStat = 
-                                                new CreationStat(new Date());
-                                    subredditStat.setCount(0);
-                                    _subredditMap.put(  replyTo.getSubreddit(),
-                                                        subredditStat);
-                                } else {
-            
-                                    Date d = new Date();
-                                    long diff = 
-                                        (d.getTime()) - 
-                                        (subredditStat.getLastActivity().getTime());
-
-                                    if(diff > RESET_TIME) {
-                                        subredditStat.setLastActivity(
-                                                                    new Date());
-                                        subredditStat.setCount(0);
-                                    }
-
-                                    if(subredditStat.getCount() > USER_LIMIT) {
-
-                                        _bot.sendComment(thing, 
-                                            "Sorry but I have already " +
-                                            "created too many polls in " +
-                                            "that subreddit today. " + 
-                                            "If you are a moderator of " +
-                                            "that subreddit and you would " +
-                                            "like for these restrictions to " +
-                                            "be lifted for your subreddit " +
-                                            "allowing unlimited PollingBot " +
-                                            "polls, please contact my " +
-                                            "human. Otherwise try again in " +
-                                            "about a day or so.");
-    
-                                        return false;
-                                    }
-                                }
-                            }
-
-                            PollOption[] options = 
-                                (PollOption[])list.toArray(new PollOption[0]);
+                if(status == null) {
+
+                    //
+                    // Pick the account to own the poll
+                    //
+                    owner = _bot.getAccounts().assign();
+
+                    //
+                    // Create poll in db. It holds the request's place
+                    // until the comment is posted, and is deleted if
+                    // that fails.
+                    //
+                    pollId = 
+                        _bot.getStore().createPoll(replyTo.getId(),
+                                                    title,
+                                                    owner.getUsername() );
+                    //
+                    // Associate options
+                    //
+                    _bot.getStore().setPollOptions( pollId, options );
+
+                    //
+                    // Update our creation stats
+                    //
+                    userStat.setCount(userStat.getCount()+1);
+                    userStat.setLastActivity(new Date());
+
+                    if(subredditStat != null) {
+                        subredditStat.setCount(
+                                        subredditStat.getCount()+1);
+                        subredditStat.setLastActivity(new Date());
+                    }
+                }
+            }
 
-                            //
-                            // Create poll in db
-                            //
-                            int pollId = 
-                                PersistenceUtils.createPoll(replyTo.getId(),
-                                                            title );
-                            //
-                            // Associate options
-                            //
-                            PersistenceUtils.setPollOptions( pollId, options );
+            if(status != null) {
+                //
+                // Tell the user why, once.
+                //
+                final PollCreationService.Status refused = status;
+                _bot.sendComment(user, thing, refusal,
+                    new RetryScheduler.Callback<String>() {
+                        public void succeeded(String commentId) {
+                            _bot.getStore().setBotReplied(thing.getId());
+                            done.done(refused);
+                        }
+                        public void failed(IOException cause) {
+                            done.done(PollCreationService.Status.FAILED);
+                        }
+                    });
+                return;
+            }
 
-                            //
-                            // Generate pretty markdown for the poll
-                            //
-                            String text = _bot.generatePollText( 
-                                            pollId,
-                                            title,
-                                            options, 
-                                            new HashMap<Integer, Integer>() );
+            final int id = pollId;
+            final CreationStat userCount = userStat;
+            final CreationStat subredditCount = subredditStat;
 
-                            //
-                            // Post the poll comment content
-                            //
-                            String commentId = _bot.sendComment(replyTo, text);
+            //
+            // Generate pretty markdown for the poll
+            //
+            String text;
+            try {
+                text = _bot.generatePollText( 
+                                pollId,
+                                owner.getUsername(),
+                                title,
+                                options, 
+                                new int[options.length] );
+            } catch(RuntimeException re) {
+                undoCreate(id, userCount, subredditCount);
+                throw re;
+            }
 
+            //
+            // Post the poll comment content
+            //
+            _bot.sendComment(owner, replyTo, text,
+                new RetryScheduler.Callback<String>() {
+                    public void succeeded(String commentId) {
+
+                        if(commentId == null) {
                             //
-                            // Update poll in db with comment id
-                            //
-                            PersistenceUtils.setPollCommentId(
-                                                    pollId, commentId );
-                           
-                            //
-                            // Update our creation stats
+                            // Rate limited past the retries, not posted.
                             //
-                            userStat.setCount(userStat.getCount()+1);
-                            userStat.setLastActivity(new Date());
-
-                            if(subredditStat != null) {
-                                subredditStat.setCount(
-                                                subredditStat.getCount()+1);
-                                subredditStat.setLastActivity(new Date());
-                            }
-
-                            PersistenceUtils.setBotReplied(thing.getId());
-            
-                            _bot.sendComment(
-                                    thing, 
-                                    "Your poll has been created.");
+                            undoCreate(id, userCount, subredditCount);
+                            done.done(PollCreationService.Status.FAILED);
+                            return;
                         }
 
-                    } catch(IOException ioe) {
-                            ioe.printStackTrace();
-                            BotKernel.getBotKernel().log("ERROR caught " + ioe);
-                    }
-                }
-            } else {
-                // BotKernel.getBotKernel().log("INFO no match in body: \n" +
-                // body);
-            }
-        }
+                        //
+                        // Update poll in db with comment id
+                        //
+                        _bot.getStore().setPollCommentId(id, commentId);
 
-        return false;
-    }
+                        _bot.getStore().setBotReplied(thing.getId());
 
-}
+                        _bot.sendComment(
+                                user,
+                                thing, 
+                                "Your poll has been created.",
+                                null);
 
+                        done.done(PollCreationService.Status.CREATED);
+                    }
+                    public void failed(IOException cause) {
+                        undoCreate(id, userCount, subredditCount);
+                        done.done(PollCreationService.Status.FAILED);
+                    }
+                });
 
+        } catch(IOException ioe) {
+                ioe.printStackTrace();
+                Log.error("caught {}", ioe);
+                done.done(PollCreationService.Status.FAILED);
+        }
+    }
 
+    /**
+     *
+     * Take back a poll whose comment was not posted: delete its row, so
+     * the request is not refused as a duplicate when it is evaluated
+     * again, and give back the user's and subreddit's counts.
+     *
+     */
+    private void undoCreate(int pollId,
+                            CreationStat userStat,
+                            CreationStat subredditStat) {
+        synchronized(_creationLock) {
+            _bot.getStore().deletePoll(pollId);
+            if(userStat != null) {
+                userStat.setCount(Math.max(0, userStat.getCount() - 1));
+            }
+            if(subredditStat != null) {
+                subredditStat.setCount(
+                            Math.max(0, subredditStat.getCount() - 1));
+            }
+        }
+    }
 
+}
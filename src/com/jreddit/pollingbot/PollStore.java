@@ -0,0 +1,246 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * Storage of polls, options, votes, bans and matches.
+ *
+ * Every method is safe to call from any thread, and compound operations
+ * such as castVote() are atomic, so callers need no locking of their own.
+ *
+ */
+public interface PollStore {
+
+    /**
+     *
+     * Told about each vote of a poll, see visitVotes().
+     *
+     */
+    public interface VoteVisitor {
+        void vote(String username, int option);
+    }
+
+    /**
+     *
+     * Sees a poll, see visitPoll().
+     *
+     */
+    interface PollVisitor {
+        void poll(  String title, 
+                    String userCommentId, 
+                    String pollCommentId,
+                    String account );
+    }
+
+    /**
+     *
+     * Prepare the store for use, e.g. upgrade its schema.
+     *
+     */
+    void open();
+
+    /**
+     *
+     * Flush anything buffered and release the store.
+     *
+     */
+    void close();
+
+    /**
+     *
+     * Make the votes cast so far durable. Stores writing each vote
+     * through have nothing to do.
+     *
+     */
+    void sync();
+
+    /**
+     * Add a ban from a subreddit.
+     */
+    void addBan(String subreddit);
+
+    /**
+     * Return true if the bot is banned from the subreddit.
+     */
+    boolean isBanned(String subreddit);
+
+    /**
+     * Return true if the bot has handled the thing with this id.
+     */
+    boolean isBotReplied(String id);
+
+    /**
+     * Record a thing as handled by the bot.
+     */
+    void setBotReplied(String id);
+
+    /**
+     * Record several things as handled by the bot at once.
+     */
+    void setBotReplied(Collection<String> ids);
+
+    /**
+     * Return true if the user has a vote in the poll.
+     */
+    boolean isVotePresent(String username, int id);
+
+    /**
+     *
+     * Cast or change a user's vote. Votes for options the poll does not
+     * have, and votes for closed polls, are ignored.
+     *
+     * @return true if the user's effective vote changed
+     *
+     */
+    boolean castVote(String username, int id, int option);
+
+    /**
+     *
+     * Look up the id of a user, assigning one if needed. Ids are stable
+     * for the life of the store.
+     *
+     * @return the user id, -1 on failure
+     *
+     */
+    int internUser(String username);
+
+    /**
+     *
+     * Return the option a user voted for, -1 if the user has no vote.
+     *
+     */
+    int getVote(int id, int userId);
+
+    /**
+     *
+     * Apply a batch of already validated votes atomically. Later entries
+     * for the same poll and user win, and applying a batch twice leaves
+     * the same result. Entries for closed polls are skipped.
+     *
+     * @return true if the batch was applied
+     *
+     */
+    boolean applyVotes(int[] polls, int[] users, int[] options, int count);
+
+    /**
+     *
+     * Visit the current vote of every voter in a poll.
+     *
+     * @return false on failure
+     *
+     */
+    boolean visitVotes(int id, VoteVisitor visitor);
+
+    /**
+     *
+     * Return true if the vote of a message in a poll has been cast. A
+     * message voting in polls owned by several instances is read by
+     * each of them until all the votes are in.
+     *
+     */
+    boolean isCast(String messageId, int id);
+
+    /**
+     * Record that the vote of a message in a poll has been cast.
+     */
+    void setCast(String messageId, int id);
+
+    /**
+     * Forget the votes cast from a message, once it is read.
+     */
+    void forgetCast(String messageId);
+
+    /**
+     *
+     * Return the votes of each option of a poll, indexed by option. 
+     * Empty if the poll has no options.
+     *
+     */
+    int[] getPollVotes(int id);
+
+    /**
+     *
+     * Show a poll to a visitor. The account is null for polls created
+     * before accounts were tracked, the poll comment id until the poll
+     * is posted.
+     *
+     * @return false if there is no such poll
+     *
+     */
+    boolean visitPoll(int id, PollVisitor visitor);
+
+    /**
+     * Return the options of a poll, indexed by option.
+     */
+    String[] getPollOptions(int id);
+
+    /**
+     * Set the options of a new poll, indexed by option.
+     */
+    void setPollOptions(int id, String[] options);
+
+    /**
+     *
+     * Create a poll in response to a user comment.
+     *
+     * @return the new poll id, -1 on failure
+     *
+     */
+    int createPoll(String userCommentId, String title, String account);
+
+    /**
+     *
+     * Remove a poll whose comment was never posted, with its options,
+     * so the request can be made again.
+     *
+     */
+    void deletePoll(int id);
+
+    /**
+     * Record the id of the comment showing a poll.
+     */
+    void setPollCommentId(int id, String pollCommentId);
+
+    /**
+     * Return true if a poll was created for this user comment.
+     */
+    boolean isPoll(String userCommentId);
+
+    /**
+     *
+     * Count the most recent polls owned by each account. Polls with no
+     * recorded account are counted under a null key.
+     *
+     */
+    Map<String, Integer> getAccountLoads(int limit);
+
+    /**
+     * Return open polls created before the cutoff time.
+     */
+    List<Integer> getPollsToClose(long cutoff, int limit);
+
+    /**
+     * Close a poll, freezing its results and archiving its votes.
+     */
+    void archivePoll(int id);
+
+    /**
+     *
+     * Archive matches recorded before the cutoff time.
+     *
+     * @return the number archived
+     *
+     */
+    int archiveMatches(long cutoff, int limit);
+
+    /**
+     *
+     * Give some free space back.
+     *
+     * @return true if there is more to give back
+     *
+     */
+    boolean compact(int pages);
+
+}
@@ -0,0 +1,526 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * The active polls, laid out as parallel arrays with one row per poll.
+ *
+ * A row holds the poll id, comment id, title and owning account, its
+ * options in a flat array with a fixed stride, the latest tallies read
+ * from the store and the tallies it was last published with. Rows are
+ * found through an open addressing table keyed by poll id, so looking
+ * up a poll allocates nothing.
+ *
+ * Rows are loaded from the store on first use, without holding the
+ * table's lock. When the table is full the least recently used row is
+ * reused. The store stays the record of
+ * polls and votes; the table only saves going back to it on every vote
+ * and edit.
+ *
+ */
+public class PollTable {
+
+    /**
+     *
+     * Sees the rows of the table, see visit(). The arrays are copies.
+     *
+     */
+    public interface RowVisitor {
+        void visit( int pollId,
+                    String title,
+                    String account,
+                    String[] options,
+                    int[] votes,
+                    long votesTime,
+                    int[] published );
+    }
+
+    //
+    // Most options in a poll, the stride of the option arrays
+    //
+    public static final int MAX_OPTIONS =
+                                PollRequestMatchCriteria.MAX_OPTIONS;
+
+    //
+    // Most polls held at once
+    //
+    private static final int ROWS = 1024;
+
+    private PollStore _store;
+
+    //
+    // Columns, one entry per row
+    //
+    private int[] _ids = new int[ROWS];
+    private String[] _commentIds = new String[ROWS];
+    private String[] _titles = new String[ROWS];
+    private String[] _accounts = new String[ROWS];
+    private int[] _optionCounts = new int[ROWS];
+    private long[] _used = new long[ROWS];
+
+    //
+    // Total of the published tallies, -1 if not known
+    //
+    private int[] _publishedTotals = new int[ROWS];
+
+    //
+    // When the latest tallies were read, 0 if never
+    //
+    private long[] _votesTimes = new long[ROWS];
+
+    //
+    // Row r's options are at r * MAX_OPTIONS
+    //
+    private String[] _options = new String[ROWS * MAX_OPTIONS];
+    private int[] _published = new int[ROWS * MAX_OPTIONS];
+    private int[] _votes = new int[ROWS * MAX_OPTIONS];
+
+    private int _rows;
+    private long _clock;
+
+    //
+    // Bumped by every change to the polls or their tallies
+    //
+    private long _version;
+
+    //
+    // Row + 1 of each poll, 0 for an empty slot
+    //
+    private int[] _slots = new int[ROWS * 2];
+
+    public PollTable(PollStore store) {
+        _store = store;
+    }
+
+    /**
+     *
+     * Make sure a poll is in the table.
+     *
+     * @return false if there is no such poll, or it has no comment yet
+     *
+     */
+    public boolean load(int pollId) {
+        synchronized(this) {
+            if(use(pollId) != -1) {
+                return true;
+            }
+        }
+        return fetch(pollId);
+    }
+
+    public String getCommentId(int pollId) {
+        do {
+            synchronized(this) {
+                int r = use(pollId);
+                if(r != -1) {
+                    return _commentIds[r];
+                }
+            }
+        } while(fetch(pollId));
+        return null;
+    }
+
+    public String getTitle(int pollId) {
+        do {
+            synchronized(this) {
+                int r = use(pollId);
+                if(r != -1) {
+                    return _titles[r];
+                }
+            }
+        } while(fetch(pollId));
+        return null;
+    }
+
+    /**
+     * Return the account owning the poll, null if not known.
+     */
+    public String getAccount(int pollId) {
+        do {
+            synchronized(this) {
+                int r = use(pollId);
+                if(r != -1) {
+                    return _accounts[r];
+                }
+            }
+        } while(fetch(pollId));
+        return null;
+    }
+
+    /**
+     * Return the number of options, 0 if the poll is not known.
+     */
+    public int getOptionCount(int pollId) {
+        do {
+            synchronized(this) {
+                int r = use(pollId);
+                if(r != -1) {
+                    return _optionCounts[r];
+                }
+            }
+        } while(fetch(pollId));
+        return 0;
+    }
+
+    /**
+     * Return the text of each option, empty if the poll is not known.
+     */
+    public String[] getOptions(int pollId) {
+        do {
+            synchronized(this) {
+                int r = use(pollId);
+                if(r != -1) {
+                    String[] ret = new String[_optionCounts[r]];
+                    System.arraycopy(_options, r * MAX_OPTIONS, 
+                                     ret, 0, ret.length);
+                    return ret;
+                }
+            }
+        } while(fetch(pollId));
+        return new String[0];
+    }
+
+    /**
+     *
+     * Return true if the poll was last published with these tallies.
+     *
+     */
+    public synchronized boolean isPublished(int pollId, int[] tallies) {
+        int r = use(pollId);
+        if(r == -1 || _publishedTotals[r] == -1 ||
+            tallies.length != _optionCounts[r]) {
+            return false;
+        }
+        int base = r * MAX_OPTIONS;
+        for(int i = 0; i < tallies.length; i++) {
+            if(_published[base + i] != tallies[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * Record the tallies a poll was published with.
+     *
+     */
+    public synchronized void setPublished(int pollId, int[] tallies) {
+        int r = find(pollId);
+        if(r == -1 || tallies.length != _optionCounts[r]) {
+            return;
+        }
+        int base = r * MAX_OPTIONS;
+        int total = 0;
+        for(int i = 0; i < tallies.length; i++) {
+            _published[base + i] = tallies[i];
+            total += tallies[i];
+        }
+        _publishedTotals[r] = total;
+        _version++;
+    }
+
+    /**
+     *
+     * Record the latest tallies read for a poll in the table, e.g.
+     * after votes were cast in it.
+     *
+     */
+    public synchronized void setVotes(int pollId, int[] tallies) {
+        int r = find(pollId);
+        if(r == -1 || tallies.length != _optionCounts[r]) {
+            return;
+        }
+        System.arraycopy(tallies, 0, _votes, r * MAX_OPTIONS,
+                                                        tallies.length);
+        _votesTimes[r] = System.currentTimeMillis();
+        _version++;
+    }
+
+    /**
+     *
+     * Return a number which changes whenever the polls or their
+     * tallies do.
+     *
+     */
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    /**
+     *
+     * Show every row to a visitor, most recently used first. Never
+     * goes to the store.
+     *
+     */
+    public synchronized void visit(RowVisitor visitor) {
+        Integer[] rows = new Integer[_rows];
+        for(int r = 0; r < _rows; r++) {
+            rows[r] = Integer.valueOf(r);
+        }
+        Arrays.sort(rows, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long ua = _used[a.intValue()];
+                long ub = _used[b.intValue()];
+                return ua > ub ? -1 : (ua < ub ? 1 : 0);
+            }
+        });
+        for(Integer r: rows) {
+            visitRow(r.intValue(), visitor);
+        }
+    }
+
+    /**
+     *
+     * Show one poll to a visitor, if it is in the table. Never goes to
+     * the store.
+     *
+     * @return false if the poll is not in the table
+     *
+     */
+    public synchronized boolean visit(int pollId, RowVisitor visitor) {
+        int r = find(pollId);
+        if(r == -1) {
+            return false;
+        }
+        visitRow(r, visitor);
+        return true;
+    }
+
+    private void visitRow(int r, RowVisitor visitor) {
+        int base = r * MAX_OPTIONS;
+        int count = _optionCounts[r];
+        String[] options = new String[count];
+        System.arraycopy(_options, base, options, 0, count);
+        int[] votes = new int[count];
+        System.arraycopy(_votes, base, votes, 0, count);
+        int[] published = null;
+        if(_publishedTotals[r] != -1) {
+            published = new int[count];
+            System.arraycopy(_published, base, published, 0, count);
+        }
+        visitor.visit(  _ids[r], _titles[r], _accounts[r], options,
+                        votes, _votesTimes[r], published );
+    }
+
+    /**
+     *
+     * Forget a poll, e.g. when it closes.
+     *
+     */
+    public synchronized void evict(int pollId) {
+        int r = find(pollId);
+        if(r == -1) {
+            return;
+        }
+        unlink(pollId);
+
+        //
+        // Move the last row into the hole.
+        //
+        int last = _rows - 1;
+        if(r != last) {
+            unlink(_ids[last]);
+            copyRow(last, r);
+            link(_ids[r], r);
+        }
+        clearRow(last);
+        _rows--;
+        _version++;
+    }
+
+    /**
+     *
+     * Return the number of polls held.
+     *
+     */
+    public synchronized int size() {
+        return _rows;
+    }
+
+    /**
+     *
+     * Return the row of a poll in the table and mark it used, -1 if 
+     * not there. Called holding the lock.
+     *
+     */
+    private int use(int pollId) {
+        int r = find(pollId);
+        if(r != -1) {
+            _used[r] = ++_clock;
+        }
+        return r;
+    }
+
+    /**
+     *
+     * Load a poll from the store into the table. The store is read 
+     * without holding the lock, so readers of the table never wait on 
+     * the db.
+     *
+     * @return false if there is no such poll, or it has no comment yet
+     *
+     */
+    private boolean fetch(int pollId) {
+
+        //
+        // Title, poll comment id and account
+        //
+        final String[] poll = new String[3];
+        boolean found = _store.visitPoll(pollId, new PollStore.PollVisitor() {
+            public void poll(   String title, 
+                                String userCommentId, 
+                                String pollCommentId,
+                                String account ) {
+                poll[0] = title;
+                poll[1] = pollCommentId;
+                poll[2] = account;
+            }
+        });
+        if(!found || poll[1] == null) {
+            return false;
+        }
+        String[] options = _store.getPollOptions(pollId);
+        int[] tallies = _store.getPollVotes(pollId);
+
+        int count = Math.min(options.length, MAX_OPTIONS);
+        if(count < options.length) {
+            Log.warn("Poll {} has more than {} options", pollId, MAX_OPTIONS);
+        }
+
+        synchronized(this) {
+
+            //
+            // Another thread may have loaded it meanwhile.
+            //
+            if(use(pollId) != -1) {
+                return true;
+            }
+
+            int r;
+            if(_rows < ROWS) {
+                r = _rows++;
+            } else {
+                r = 0;
+                for(int i = 1; i < _rows; i++) {
+                    if(_used[i] < _used[r]) {
+                        r = i;
+                    }
+                }
+                unlink(_ids[r]);
+                clearRow(r);
+            }
+
+            _ids[r] = pollId;
+            _titles[r] = poll[0];
+            _commentIds[r] = poll[1];
+            _accounts[r] = poll[2];
+            _publishedTotals[r] = -1;
+            _used[r] = ++_clock;
+            _version++;
+
+            int base = r * MAX_OPTIONS;
+            System.arraycopy(options, 0, _options, base, count);
+            _optionCounts[r] = count;
+
+            System.arraycopy(tallies, 0, _votes, base,
+                                        Math.min(count, tallies.length));
+            _votesTimes[r] = System.currentTimeMillis();
+
+            link(pollId, r);
+        }
+        return true;
+    }
+
+    /**
+     * Return the row of a poll in the table, -1 if not there.
+     */
+    private int find(int pollId) {
+        int s = _slots[slot(pollId)];
+        return s - 1;
+    }
+
+    /**
+     * Return the slot of a poll, or the empty slot it would go in.
+     */
+    private int slot(int pollId) {
+        int mask = _slots.length - 1;
+        int i = IntSet.mix(pollId) & mask;
+        while(_slots[i] != 0 && _ids[_slots[i] - 1] != pollId) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void link(int pollId, int r) {
+        _slots[slot(pollId)] = r + 1;
+    }
+
+    /**
+     *
+     * Remove a poll from the slots, shifting back the slots after it so
+     * no probe sequence is broken.
+     *
+     */
+    private void unlink(int pollId) {
+        int mask = _slots.length - 1;
+        int i = slot(pollId);
+        if(_slots[i] == 0) {
+            return;
+        }
+        _slots[i] = 0;
+
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(_slots[j] == 0) {
+                return;
+            }
+            int home = IntSet.mix(_ids[_slots[j] - 1]) & mask;
+
+            //
+            // Slot j may move to the hole at i unless its home lies
+            // cyclically in (i, j].
+            //
+            boolean stays = i <= j ? (i < home && home <= j) :
+                                     (i < home || home <= j);
+            if(!stays) {
+                _slots[i] = _slots[j];
+                _slots[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void copyRow(int from, int to) {
+        _ids[to] = _ids[from];
+        _commentIds[to] = _commentIds[from];
+        _titles[to] = _titles[from];
+        _accounts[to] = _accounts[from];
+        _optionCounts[to] = _optionCounts[from];
+        _used[to] = _used[from];
+        _publishedTotals[to] = _publishedTotals[from];
+        _votesTimes[to] = _votesTimes[from];
+        System.arraycopy(_options, from * MAX_OPTIONS,
+                         _options, to * MAX_OPTIONS, MAX_OPTIONS);
+        System.arraycopy(_published, from * MAX_OPTIONS,
+                         _published, to * MAX_OPTIONS, MAX_OPTIONS);
+        System.arraycopy(_votes, from * MAX_OPTIONS,
+                         _votes, to * MAX_OPTIONS, MAX_OPTIONS);
+    }
+
+    private void clearRow(int r) {
+        _commentIds[r] = null;
+        _titles[r] = null;
+        _accounts[r] = null;
+        _optionCounts[r] = 0;
+        _publishedTotals[r] = -1;
+        _votesTimes[r] = 0;
+        Arrays.fill(_votes, r * MAX_OPTIONS, (r + 1) * MAX_OPTIONS, 0);
+        Arrays.fill(_options, r * MAX_OPTIONS, (r + 1) * MAX_OPTIONS, null);
+    }
+
+}
@@ -1,9 +1,10 @@
 package com.jreddit.pollingbot;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.util.regex.*;
-import java.text.DecimalFormat;
+import java.util.concurrent.*;
 
 import com.omrlnr.jreddit.*;
 import com.omrlnr.jreddit.utils.Utils;
@@ -15,7 +16,8 @@ import com.jreddit.botkernel.*;
  * PollingBot
  *
  */
-public class PollingBot extends BaseBot implements Bot, CrawlerListener {
+public class PollingBot extends BaseBot 
+                implements Bot, CrawlerListener, SnapshotParticipant {
 
     //
     // Unique bot name
@@ -25,7 +27,7 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
     private static final String HOME_CRAWLER_NAME = "POLLING_CRAWLER";
 
     //
-    // Retry limit for RateLimitException
+    // Most attempts at a reddit call
     //
     public static final int RETRY_LIMIT = 5;
 
@@ -35,9 +37,29 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
     private static final int LIMIT = 25;
 
     //
-    // Time to sleep between checking for messages
+    // Time allowed for a poll edit, and for calls whose caller waits 
+    // for the outcome, retries included, in ms
     //
-    private static final int SLEEP = 60;
+    private static final long EDIT_TIMEOUT = 1000L * 60 * 10;
+    private static final long CALL_TIMEOUT = 1000L * 60 * 3;
+
+    //
+    // Longest a message voting in polls of several instances is left
+    // unread for the others to cast their votes, in ms
+    //
+    private static final long SPLIT_WAIT = 1000L * 60 * 60 * 24;
+
+    //
+    // How often account loads are read again from the recent polls, 
+    // in ms
+    //
+    private static final long LOAD_REFRESH = 1000L * 60 * 5;
+
+    //
+    // States of a poll being edited
+    //
+    private static final int EDIT_RUNNING = 0;
+    private static final int EDIT_CHANGED = 1;
 
     //
     // Config file(s)
@@ -47,15 +69,133 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
     private static final String CONFIG_FILE = 
                         "../pollingbot/scratch/config.properties";
 
-    protected Date _replyAfterDate;
+    //
+    // System property naming another config file, e.g. for load tests
+    //
+    public static final String CONFIG_PROPERTY = "pollingbot.config";
+    private static final String JOURNAL_DIR = 
+                        "../pollingbot/scratch/journal";
+    private static final String SNAPSHOT_FILE = 
+                        "../pollingbot/scratch/state.snap";
+
+    //
+    // Poll requests before this are ignored, null until looked up
+    //
+    protected volatile Date _replyAfterDate;
 
     private User _user;
 
-    private String _owner;
-    private String _subreddit;
-    private String _suggestionSub;
+    //
+    // Seconds between passes, read once at startup
+    //
+    private volatile int _sleepSeconds = BotConfig.SLEEP;
+
+    private AccountPool _accounts;
+
+    //
+    // Accounts logged in, the others are tried again each pass
+    //
+    private Set<User> _connected = 
+            Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
+
+    //
+    // First connect of each account, primary first, started by init()
+    // and not waited for there.
+    //
+    private List<Future<?>> _connects = new ArrayList<Future<?>>();
+
+    private PollStore _store;
+
+    //
+    // Snapshot of in-memory state, for fast restarts
+    //
+    private StateSnapshot _snapshot;
+
+    //
+    // Current votes in active polls, to turn away repeat votes
+    //
+    private VoterIndex _voters;
+
+    //
+    // Polls being voted on and edited
+    //
+    private PollTable _polls;
+
+    //
+    // Only used by the run() thread
+    //
+    private VoteMessageParser _voteParser = new VoteMessageParser();
+
+    private PollRenderCache _renderCache = 
+                            new PollRenderCache(BAR, SPACE, SIGNATURE);
+
+    private LeaseManager _leases;
+
+    private PollArchiver _archiver;
+
+    //
+    // Home crawler in incremental mode, null otherwise
+    //
+    private IncrementalCrawler _homeCrawler;
+
+    //
+    // Makes the bot's reddit calls: poll edits, comments and replies.
+    // One thread per account, plus one.
+    //
+    private RetryScheduler _retries;
+
+    //
+    // Orderly shutdown, see shutdown()
+    //
+    private Lifecycle _lifecycle = new Lifecycle();
+    private int _shutdownSeconds;
+
+    //
+    // True while run() is running
+    //
+    private volatile boolean _running;
+
+    //
+    // Counted down when run() returns
+    //
+    private CountDownLatch _runDone = new CountDownLatch(1);
+
+    //
+    // When the message loop last started a pass, 0 before the first
+    //
+    private volatile long _lastPass;
+
+    //
+    // When account loads were last read from the store
+    //
+    private volatile long _loadRefreshed;
+
+    //
+    // Live results endpoint, null if off
+    //
+    private StatusServer _status;
 
-    private List<String> _unlimitedSubreddits = new ArrayList<String>();
+    //
+    // Timed steps of init(), and whether it has finished
+    //
+    private Startup _startup;
+    private volatile boolean _ready;
+
+    //
+    // Polls being edited, => EDIT_CHANGED if they changed again since
+    // the edit started. Guarded by itself.
+    //
+    private LongIntMap _editing = new LongIntMap();
+
+    //
+    // The current config, read again when the file changes
+    //
+    private ConfigWatcher _config;
+
+    //
+    // The home subreddit, as crawled since startup
+    //
+    private String _subreddit;
 
     private static final String BAR     = "█";
     private static final String SPACE   = "░";
@@ -70,10 +210,59 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
 
     public String getSubreddit() { return _subreddit; }
 
+    /**
+     * Return the primary account.
+     */
     public User getUser() { return _user; }
 
-    private CrawlerMatchCriteria _suggestCriteria;
-    private CrawlerMatchCriteria _reqCriteria;
+    /**
+     * Return the pool of accounts polls are spread across.
+     */
+    public AccountPool getAccounts() { return _accounts; }
+
+    /**
+     * Return the configured poll store.
+     */
+    public PollStore getStore() { return _store; }
+
+    /**
+     * Return the lease manager deciding which polls this instance handles.
+     */
+    public LeaseManager getLeases() { return _leases; }
+
+    public VoterIndex getVoterIndex() { return _voters; }
+    public PollTable getPollTable() { return _polls; }
+    public RetryScheduler getRetries() { return _retries; }
+
+    public PollRequestMatchCriteria getRequestCriteria() { 
+        return _reqCriteria; 
+    }
+    public PotentialPollMatchCriteria getSuggestCriteria() { 
+        return _suggestCriteria; 
+    }
+
+    public boolean isStopping() { return _lifecycle.isStopping(); }
+    public long getLastPass() { return _lastPass; }
+    public boolean isReady() { return _ready; }
+    public Startup getStartup() { return _startup; }
+
+    /**
+     * Return the seconds between checking for messages, and between 
+     * crawls. Read once at startup, like the home crawler's.
+     */
+    public int getSleepSeconds() { return _sleepSeconds; }
+
+    /**
+     * Return the number of poll edits in progress.
+     */
+    public int getEditCount() {
+        synchronized(_editing) {
+            return _editing.size();
+        }
+    }
+
+    private PotentialPollMatchCriteria _suggestCriteria;
+    private PollRequestMatchCriteria _reqCriteria;
 
     /**
      *
@@ -86,35 +275,144 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
         // Use this to keep track of when we are shutting down
         //
         _shutdown = false;
+
+        //
+        // Steps which wait on the disk or on reddit run at once, see
+        // Startup.
+        //
+        _startup = new Startup();
         
-        Properties props = new Properties();
-        try {
-            log("Loading PollingBot config properties...");
-            FileInputStream in = new FileInputStream(CONFIG_FILE);
-            props.load(in);
-            in.close();
-        } catch(IOException ioe) {
-            ioe.printStackTrace();
-            log("ERROR init()'ing " + BOT_NAME);
+        final File configFile = 
+                    new File(System.getProperty(CONFIG_PROPERTY, CONFIG_FILE));
+        _startup.run("config", new Runnable() {
+            public void run() {
+                BotConfig config;
+                try {
+                    Log.info("Loading PollingBot config properties...");
+                    config = BotConfig.load(configFile);
+                } catch(IOException ioe) {
+                    ioe.printStackTrace();
+                    Log.error("init()'ing {}", BOT_NAME);
+                    config = new BotConfig(new Properties());
+                }
+                _config = new ConfigWatcher(configFile, config, 
+                    new ConfigWatcher.Listener() {
+                        public void configChanged( BotConfig old, 
+                                                   BotConfig config ) {
+                            applyConfig(old, config);
+                        }
+                    });
+            }
+        });
+        final BotConfig config = _config.get();
+        applyConfig(null, config);
+        _sleepSeconds = config.getSleepSeconds();
+
+        //
+        // Live results for moderators, reporting "starting" until we
+        // are ready.
+        //
+        int statusPort = config.getInt("statusPort", 0);
+        if(statusPort > 0) {
+            try {
+                _status = new StatusServer(
+                        this,
+                        config.getProperty("statusAddress", "127.0.0.1"),
+                        statusPort );
+                _status.start();
+            } catch(IOException ioe) {
+                ioe.printStackTrace();
+                Log.error("Cannot start status endpoint: {}", ioe);
+            }
         }
 
         //
         // Get user info from properties file
         //
-        String username = props.getProperty("username");
-        String password = props.getProperty("password");
+        String username = config.getProperty("username");
+        String password = config.getProperty("password");
 
         _user   = new User(username, password);
 
-        _owner = props.getProperty("owner");
+        //
+        // Additional accounts to spread polls across, numbered from 1.
+        //
+        List<User> users = new ArrayList<User>();
+        users.add(_user);
+        for(int i = 1; ; i++) {
+            String name = config.getProperty("account." + i + ".username");
+            String pass = config.getProperty("account." + i + ".password");
+            if(name == null || name.trim().equals("")) {
+                break;
+            }
+            users.add(new User(name.trim(), pass));
+        }
+        _accounts = new AccountPool(users);
+        _retries = new RetryScheduler(_accounts.size() + 1, RETRY_LIMIT);
+
+        //
+        // Connect every account at once, in the background. Crawling, 
+        // posting and the message loop wait for the logins they need.
+        // An account which fails is connected again by the message loop.
+        //
+        for(final User user: _accounts.getUsers()) {
+            _connects.add(_startup.background(
+                    "connect " + user.getUsername(), 
+                    new Runnable() {
+                        public void run() {
+                            connect(user);
+                        }
+                    }));
+        }
 
-        _suggestionSub = props.getProperty("suggestionSub");
+        _snapshot = new StateSnapshot(
+                new File(config.getProperty("snapshotFile", SNAPSHOT_FILE)));
+        final int snapshotMinutes = config.getInt("snapshotMinutes", 5);
+        _startup.run("snapshot", new Runnable() {
+            public void run() {
+                if(snapshotMinutes > 0) {
+                    _snapshot.load();
+                }
+            }
+        });
 
-        String unlimitedSubreddits = props.getProperty("unlimitedReddits");
-        String[] subs = unlimitedSubreddits.split(",");
-        for(String sub: subs) {
-            _unlimitedSubreddits.add(sub);
+        //
+        // Storage engine, opened while the accounts connect.
+        //
+        int shards = config.getInt("shards", 0);
+        if("memory".equalsIgnoreCase(config.getProperty("store")) && 
+            shards > 0) {
+            Log.warn("Partitioned mode needs a shared store, disabled.");
+            shards = 0;
         }
+        Future<?> store = _startup.submit("store", new Runnable() {
+            public void run() {
+                openStore(config);
+            }
+        });
+
+        //
+        // Partitioned mode, when several instances share the db.
+        //
+        _leases = new LeaseManager( config.getProperty("instance"),
+                                    shards,
+                                    config.getInt("leaseSeconds", 90));
+        _leases.addListener(new LeaseManager.Listener() {
+            public void shardsLost(Set<Integer> shards) {
+                evictShards(shards);
+            }
+        });
+
+        //
+        // Upgrading the schema creates the lease table.
+        //
+        _startup.await(store);
+
+        _startup.run("leases", new Runnable() {
+            public void run() {
+                _leases.start();
+            }
+        });
 
         //
         // In the event we have rebuilt the database,
@@ -126,36 +424,49 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
         // Of course if the database is hosed then the votes are all 
         // screwed. (We could parse the existing poll comments...?)
         //
-        _replyAfterDate = new Date();
-        try {
-            List<Comment> comments = Comments.getUserComments(
-                                            _user,
-                                            _user.getUsername(),
-                                            1 );
-            if(comments.size() > 0) {
-                Comment comment = comments.get(0);
-                Date d = comment.getCreatedDate();
-                if(d != null) {
-                    _replyAfterDate = d;
+        // The snapshot keeps the date found at the last startup, which
+        // saves looking it up again. Otherwise it is looked up in the
+        // background once the primary account is connected; poll 
+        // requests are left for later until it is known.
+        //
+        if(_snapshot.restore(this) && _replyAfterDate != null) {
+            Log.info("Replying after {} (snapshot)", _replyAfterDate);
+        } else {
+            _startup.background("reply after date", new Runnable() {
+                public void run() {
+                    awaitPrimary();
+                    _replyAfterDate = findReplyAfterDate();
                 }
-            }
-        } catch( IOException ioe) {
-            log("Could not find last comment posted for " +
-                _user.getUsername());
+            });
         }
 
+        _subreddit = config.getSubreddit();
 
+        //
+        // Close and archive old polls in the background.
+        //
+        _archiver = new PollArchiver(   this, 
+                                        config.getInt("closeAgeDays", 0));
+        _archiver.start();
 
+        //
+        // Create a match criteria for the crawler to notify us
+        // when we need to respond to a post.
+        //
+        _suggestCriteria = new PotentialPollMatchCriteria(this);
+        _suggestCriteria.start();
+        _reqCriteria = new PollRequestMatchCriteria(
+                                this,
+                                config.getInt("creationWorkers", 2),
+                                config.getInt("creationQueue", 50));
+        _snapshot.restore(_suggestCriteria);
+        _snapshot.restore(_reqCriteria);
 
-        _subreddit = props.getProperty("subreddit");
-
-        // Connect
-        try {
-            _user.connect();
-        } catch(IOException ioe) {
-            log("ERROR conecting user for " + BOT_NAME);
-        }
-
+        //
+        // The crawlers start before the primary account is connected.
+        // Listings need no login, and poll requests found meanwhile are
+        // left for later; see PollRequestMatchCriteria.
+        //
         List<String> subReddits = new ArrayList<String>();
         subReddits.add(_subreddit);
 
@@ -168,20 +479,13 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
                                         Submissions.ListingType.HOT,
                                         Submissions.ListingType.NEW },
                                 LIMIT,
-                                SLEEP);
+                                _sleepSeconds);
 
         //
         // Register ourselves with the Crawler
         //
         homeCrawler.addListener(this);
 
-        //
-        // Create a match criteria for the crawler to notify us
-        // when we need to respond to a post.
-        //
-        _suggestCriteria = new PotentialPollMatchCriteria(this);
-        _reqCriteria = new PollRequestMatchCriteria(this);
-
         //
         // Add out match criteria to the crawler.
         //
@@ -192,6 +496,56 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
         //
         BotKernel.getBotKernel().addCrawler(homeCrawler);
 
+        if(config.isTrue("incrementalCrawl")) {
+
+            //
+            // Only fetch what is new in the home sub each pass. It 
+            // lists submissions only, so poll requests made in comments
+            // are still found by the crawler above; what either has
+            // evaluated is skipped by the other.
+            //
+            _homeCrawler = new IncrementalCrawler(  this,
+                                                    _subreddit,
+                                                    _reqCriteria,
+                                                    LIMIT );
+            _snapshot.restore(_homeCrawler);
+            _homeCrawler.start();
+            Log.info("Crawling {} submissions incrementally", _subreddit);
+        }
+
+        //
+        // Work to finish at shutdown, in order. Poll requests and
+        // suggestions post through the retry scheduler, so it goes last.
+        //
+        _shutdownSeconds = config.getInt("shutdownSeconds", 30);
+        _lifecycle.add(new Drainable() {
+            public String getName() {
+                return "message loop";
+            }
+            public int drain(long deadline) {
+                if(!_running) {
+                    return 0;
+                }
+                try {
+                    long wait = deadline - System.currentTimeMillis();
+                    if(_runDone.await(Math.max(0, wait), 
+                                      TimeUnit.MILLISECONDS)) {
+                        return 0;
+                    }
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            }
+        });
+        _lifecycle.add(getBatches(_reqCriteria, "poll request batches"));
+        _lifecycle.add(_reqCriteria.getCreationService());
+        _lifecycle.add(getBatches(_suggestCriteria, "suggestion batches"));
+        _lifecycle.add(_suggestCriteria.getDigest());
+        _lifecycle.add(_retries);
+
+        _snapshot.start(1000L * 60 * snapshotMinutes);
+
         //
         // Add the default crawler for finding potential polls
         //
@@ -210,364 +564,757 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
         // crawler.addListener(this);
         // BotKernel.getBotKernel().addCrawler(crawler);
         // crawler.wake();
- 
+
+        //
+        // Pick up changes to the config file as they are made.
+        //
+        if(!"false".equalsIgnoreCase(config.getProperty("watchConfig"))) {
+            try {
+                _config.start();
+            } catch(IOException ioe) {
+                ioe.printStackTrace();
+                Log.error("Cannot watch {}: {}", configFile, ioe);
+            }
+        }
+
+        _startup.finish();
+        _ready = true;
     }
 
     /**
      *
-     * Return our unique name.
+     * Put the settings of a new config into effect. Most are read from 
+     * the config where they are used, this handles the rest.
+     *
+     * @param old   The config replaced, null at startup
      *
      */
-    public String getName() {
-        return BOT_NAME;
+    private void applyConfig(BotConfig old, BotConfig config) {
+        String level = config.getLogLevel();
+        if(!Log.setLevel(level)) {
+            Log.error("bad value for logLevel: {}", level);
+        }
+        if(old == null || _suggestCriteria == null) {
+            return;
+        }
+        for(String name: config.getChanges(old)) {
+            if(name.startsWith(PotentialPollMatchCriteria.PREFIX)) {
+                _suggestCriteria.setConfig(config);
+                break;
+            }
+        }
     }
 
     /**
      *
-     * Called when shutting down.
+     * Open the configured poll store and the tables in front of it.
      *
      */
-    public void shutdown() {
+    private void openStore(BotConfig config) {
+        if("memory".equalsIgnoreCase(config.getProperty("store"))) {
+            Log.warn("Using in-memory poll store, nothing will be kept.");
+            _store = new MemoryPollStore();
+        } else {
+            _store = new SQLitePollStore();
+        }
+        if(config.isTrue("voteJournal")) {
+            String dir = config.getProperty("journalDir", JOURNAL_DIR);
+            Log.info("Journaling votes in {}", dir);
+            JournaledPollStore journaled = 
+                                new JournaledPollStore(_store, new File(dir));
+            _snapshot.restore(journaled);
+            _store = journaled;
+        }
+        _store.open();
+        _polls = new PollTable(_store);
+        _voters = new VoterIndex(_store, _polls);
 
-        //
-        // Indicate to sleeping threads that we need to shut down.
-        //
-        _shutdown = true;
+        _accounts.setLoad(
+                _store.getAccountLoads(AccountPool.RECENT_POLLS));
+        _loadRefreshed = System.currentTimeMillis();
     }
 
-
-
-    /** 
+    /**
      *
-     * Main game loop. Check for players responding to games,
-     * and then respond back to player. 
+     * Forget the cached voters of polls in shards we lost. Another 
+     * instance takes their votes until we get them back.
      *
      */
-    public void run() {
-
-        /**
-         *  Main loop
-         */
-        while(true) {
-
-            if(_shutdown) {
-                return;
-            }
-        
-            //
-            // Connect
-            //
-            try {
-                _user.connect();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-                log("Error cannot connect.");
-                sleep(SLEEP);
-                continue;
+    private void evictShards(Set<Integer> shards) {
+        VoterIndex voters = _voters;
+        if(voters == null) {
+            return;
+        }
+        for(Integer pollId: voters.getPollIds()) {
+            int shard = _leases.getShard(pollId.intValue());
+            if(shards.contains(Integer.valueOf(shard))) {
+                voters.evict(pollId.intValue());
             }
+        }
+    }
 
-            //
-            // Cache any polls affected, then update each affected poll once.
-            //
-            Set<String> modifiedPolls = new HashSet<String>();
+    /**
+     *
+     * Log an account in.
+     *
+     * @return false if it could not be connected
+     *
+     */
+    private boolean connect(User user) {
+        try {
+            user.connect();
+            _connected.add(user);
+            return true;
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            Log.error("cannot connect {}", user.getUsername());
+            return false;
+        }
+    }
 
-            //
-            // Check messages
-            //
-            List<Message> messages = new ArrayList<Message>();
+    /**
+     *
+     * Wait for the first connect of the primary account, started by 
+     * init(). It may have failed, see isConnected().
+     *
+     */
+    public void awaitPrimary() {
+        awaitConnect(_connects.get(0));
+    }
 
-            log("INFO Fetching messages.");
-            try {
-                messages = Messages.getMessages(
-                                                _user,
-                                                Messages.MessageType.UNREAD );
-            } catch (IOException ioe) {
-                log("ERROR retrieving messages " + ioe);
+    private static void awaitConnect(Future<?> connect) {
+        try {
+            connect.get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException ee) {
+            Log.error("connecting: {}", ee.getCause());
+        }
+    }
+
+    /**
+     *
+     * Return true if the primary account is logged in.
+     *
+     */
+    public boolean isConnected() {
+        return _connected.contains(_user);
+    }
+
+    /**
+     *
+     * Look up the date of the bot's last comment.
+     *
+     */
+    private Date findReplyAfterDate() {
+        try {
+            List<Comment> comments = Comments.getUserComments(
+                                            _user,
+                                            _user.getUsername(),
+                                            1 );
+            if(comments.size() > 0) {
+                Comment comment = comments.get(0);
+                Date d = comment.getCreatedDate();
+                if(d != null) {
+                    Log.info("Replying after {}", d);
+                    return d;
+                }
             }
+        } catch( IOException ioe) {
+            Log.warn("Could not find last comment posted for {}",
+                    _user.getUsername());
+        }
+        return new Date();
+    }
 
-            log("INFO Found messages: " + messages.size());
+    public String getSnapshotTag() {
+        return "bot";
+    }
 
-            Set<Integer> affectedPolls = new HashSet<Integer>();
+    public void writeSnapshot(DataOutput out) throws IOException {
+        Date date = _replyAfterDate;
+        out.writeLong(date == null ? -1 : date.getTime());
+    }
 
-            for(Message message: messages) {
+    public void readSnapshot(ByteBuffer in) throws IOException {
+        long time = in.getLong();
+        if(time != -1) {
+            _replyAfterDate = new Date(time);
+        }
+    }
 
-                try {
+    /**
+     *
+     * Return our unique name.
+     *
+     */
+    public String getName() {
+        return BOT_NAME;
+    }
 
-                    if(!message.getKind().equals(Thing.KIND_MESSAGE)) {
-                        // Ignore non PMs, these are post responses probably.
-                        log("INFO Ignoring non-PM message " + message);
-                        Messages.markAsRead(_user, message);
-                        continue;
-                    }
-                
-                    String author = message.getAuthor();
-                    if(author == null) {
-                        log("INFO Ignoring message with no author (deleted?)");
-                        Messages.markAsRead(_user, message);
-                        continue;
-                    }
+    /**
+     *
+     * Return the batches of a criteria as work to finish at shutdown.
+     * They must be matched before what they queue is drained.
+     *
+     */
+    private Drainable getBatches(   final BaseMatchCriteria criteria,
+                                    final String name ) {
+        return new Drainable() {
+            public String getName() {
+                return name;
+            }
+            public int drain(long deadline) {
+                return criteria.drainBatches(deadline);
+            }
+        };
+    }
 
-                    if(author.equals(_owner) &&
-                        message.getSubject().trim().toLowerCase().equals("crawl") ) {
-                        log("INFO Handling crawl command");
-                        String name = message.getBody().trim();
-                        Crawler crawler = CrawlerFactory.getCrawler(name);
-                        if(crawler != null) {
-                            crawler.addMatchCriteria(_suggestCriteria);
-                            crawler.addListener(this);
-                            BotKernel.getBotKernel().addCrawler(crawler);
-                            crawler.wake();
-                        } else {
-                            log("ERROR cannot find crawler " + name);
-                        }
-                        Messages.markAsRead(_user, message);
-                        continue;
-                    }
+    /**
+     *
+     * Called when shutting down.
+     *
+     */
+    public void shutdown() {
 
-                    log("INFO Attempting to parse poll id");
+        //
+        // Indicate to sleeping threads that we need to shut down.
+        //
+        _shutdown = true;
+        _lifecycle.beginStop();
 
-                    //
-                    // Parse poll id and vote...
-                    //
-                    String subject = message.getSubject();
-                    String[] subjectItems = subject.split(" ");
-                    if(subjectItems.length == 2) {
-                        try {
-                            int id = Integer.parseInt(subjectItems[1]);
-
-                            log("INFO Checking for votes in poll " + id);
-
-                            Object lock = 
-                                        PersistenceUtils.getDatabaseLock();
-
-                            synchronized(lock) {
-
-                                if(PersistenceUtils.isVotePresent(author, id)) {
-                                    // This user has already voted. Ignore this.
-                                    log("INFO vote already present for user " + author);
-                                    Messages.markAsRead(_user, message);
-                                    continue;
-                                }
-
-                                log("INFO Parsing vote in poll " + id);
-
-                                String body = message.getBody();
-                                String[] bodyItems = body.split(" ");
-                                if( bodyItems.length == 2 && 
-                                    bodyItems[1].length() == 1) {
-
-                                    log("INFO Found vote: " + bodyItems[1]);
-
-                                    char c = bodyItems[1].charAt(0);
-                                    if(c >= 'a' && c <= 'z') {
-                                        int option = c - 'a';
-
-                                        log("INFO Updating votes with user " +
-                                                author + " option " + option);
-
-                                        PersistenceUtils.setUserVote(
-                                                                author,
-                                                                id,
-                                                                option);
-                                        affectedPolls.add(new Integer(id));
-                                    }
-                                }
-                            }
-    
-                        } catch (NumberFormatException nfe) {
-                            log("Error parsing poll id");
-                            Messages.markAsRead(_user, message);
-                            continue;
-                        }
-                    } else {
-                        log("Cannot parse subject " + subject);
-                    }
+        //
+        // Stop finding new work.
+        //
+        if(_homeCrawler != null) {
+            _homeCrawler.stop();
+        }
+        _archiver.stop();
+        _reqCriteria.stopBatching();
+        _suggestCriteria.stopBatching();
+
+        //
+        // Finish the votes being handled, their poll edits, queued poll
+        // requests and pending suggestions.
+        //
+        _lifecycle.stop(1000L * _shutdownSeconds);
 
-                
-                    Messages.markAsRead(_user, message);
+        _suggestCriteria.stop();
+        _reqCriteria.stop();
+
+        _leases.stop();
+
+        if(_status != null) {
+            _status.stop();
+        }
+
+        //
+        // Write everything out.
+        //
+        _config.stop();
+        _snapshot.stop();
+        _store.close();
+        Log.flush(5000);
+    }
+
+    /** 
+     *
+     * Main game loop. Check for players responding to games,
+     * and then respond back to player. 
+     *
+     */
+    public void run() {
+
+        _running = true;
+        try {
+            loop();
+        } finally {
+            _running = false;
+            _runDone.countDown();
+        }
+    }
+
+    private void loop() {
+
+        //
+        // Let the logins started by init() finish rather than race them.
+        //
+        for(Future<?> connect: _connects) {
+            awaitConnect(connect);
+        }
+
+        /**
+         *  Main loop
+         */
+        while(!_lifecycle.isStopping()) {
+
+            _lastPass = System.currentTimeMillis();
+            IntSet affectedPolls = new IntSet();
+
+            if(_lastPass - _loadRefreshed >= LOAD_REFRESH) {
+                _accounts.setLoad(
+                        _store.getAccountLoads(AccountPool.RECENT_POLLS));
+                _loadRefreshed = _lastPass;
+            }
+
+            //
+            // Votes are sent to the account owning a poll, so check the 
+            // inbox of every account.
+            //
+            for(User user: _accounts.getUsers()) {
+
+                if(_lifecycle.isStopping()) {
+                    break;
+                }
+        
+                //
+                // Accounts are logged in by init(), this only retries
+                // the ones which failed or were dropped.
+                //
+                if(!_connected.contains(user) && !connect(user)) {
                     continue;
+                }
 
-                } catch (IOException ioe) {
-                    log("ERROR caught " + ioe);
+                processMessages(user, affectedPolls);
+            }
+
+            Log.info("Editing affected polls: {}", affectedPolls.size());
+
+            //
+            // Edits are retried in the background, and each account's 
+            // rate limit only holds back the polls it owns.
+            //
+            for(int i = 0; i < affectedPolls.size(); i++) {
+
+                int pollId = affectedPolls.get(i);
+                if(!_polls.load(pollId)) {
+                    Log.warn("No poll {}", pollId);
+                    continue;
                 }
 
+                //
+                // Show the new tallies at once, the edit may be held
+                // back by a rate limit.
+                //
+                _polls.setVotes(pollId, getTallies(pollId));
+
+                updatePoll(pollId);
             }
 
-            log("INFO Editing affected polls: " + affectedPolls.size());
+            _lifecycle.sleep(1000L * getSleepSeconds());
+        }
+    }
+
+    /**
+     *
+     * Handle the unread messages in an account's inbox.
+     * Polls which received votes are added to affectedPolls.
+     *
+     */
+    private void processMessages(User user, IntSet affectedPolls) {
+
+        //
+        // Check messages
+        //
+        List<Message> messages = new ArrayList<Message>();
+
+        Log.info("Fetching messages for {}", user.getUsername());
+        try {
+            messages = Messages.getMessages(
+                                            user,
+                                            Messages.MessageType.UNREAD );
+        } catch (IOException ioe) {
+            Log.error("retrieving messages {}", ioe);
 
             //
-            // Extract the vote data for all affected polls and
-            // perform edits.
+            // Maybe the session expired, log in again next pass.
             //
-            for(Integer pollId: affectedPolls) {
-
-                log("Fetching poll " + pollId);
-                Poll poll = PersistenceUtils.getPoll(pollId);
-
-                log("Poll is " + poll);
-
-                PollOption[] options = 
-                                PersistenceUtils.getPollOptions(pollId);
-                Map<Integer, Integer> voteMap  = 
-                                PersistenceUtils.getPollVotes(pollId);
-                
-                String text = generatePollText( poll.getPollId(),
-                                                poll.getTitle(),
-                                                options,
-                                                voteMap );
-                Comment comment = null;
-                try {
-                    comment = Comments.getComment(
-                                            _user, 
-                                            poll.getPollCommentId() );
+            _connected.remove(user);
+        }
 
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                    log("Error caught " + ioe);
+        Log.info("Found messages: {}", messages.size());
+
+        //
+        // Messages whose votes were cast, marked read once the votes
+        // are durable. Those spanning instances also have their cast
+        // markers to forget.
+        //
+        List<Message> voted = new ArrayList<Message>();
+        List<Message> spanning = new ArrayList<Message>();
+
+        for(Message message: messages) {
+
+            //
+            // Leave the rest unread for the next run.
+            //
+            if(_lifecycle.isStopping()) {
+                break;
+            }
+
+            try {
+
+                //
+                // In partitioned mode messages not tied to a poll are
+                // handled by the coordinator instance, votes by the 
+                // instance owning the poll. Everything else is left 
+                // unread for the instance it belongs to.
+                //
+                boolean coordinator = _leases.isCoordinator();
+
+                if(!message.getKind().equals(Thing.KIND_MESSAGE)) {
+                    if(!coordinator) {
+                        continue;
+                    }
+                    // Ignore non PMs, these are post responses probably.
+                    Log.fine("Ignoring non-PM message {}", message);
+                    Messages.markAsRead(user, message);
+                    continue;
+                }
+            
+                String author = message.getAuthor();
+                if(author == null) {
+                    if(!coordinator) {
+                        continue;
+                    }
+                    Log.fine("Ignoring message with no author (deleted?)");
+                    Messages.markAsRead(user, message);
                     continue;
                 }
 
-                if(comment == null) {
+                if(author.equals(getOwner()) &&
+                    message.getSubject().trim().toLowerCase().equals("crawl") ) {
+                    if(!coordinator) {
+                        continue;
+                    }
+                    Log.info("Handling crawl command");
+                    String name = message.getBody().trim();
+                    Crawler crawler = CrawlerFactory.getCrawler(name);
+                    if(crawler != null) {
+                        crawler.addMatchCriteria(_suggestCriteria);
+                        crawler.addListener(this);
+                        BotKernel.getBotKernel().addCrawler(crawler);
+                        crawler.wake();
+                    } else {
+                        Log.error("cannot find crawler {}", name);
+                    }
+                    Messages.markAsRead(user, message);
                     continue;
                 }
 
-                if(PersistenceUtils.isBanned(comment.getSubreddit())) {
-                    log("WARN Cannot update poll results in banned sub " +
-                        comment.getSubreddit());
+                //
+                // Parse poll ids and votes...
+                //
+                VoteMessageParser.Result votes = 
+                        _voteParser.parse(  message.getSubject(), 
+                                            message.getBody() );
+
+                if(votes.getCount() == 0) {
+                    if(!coordinator) {
+                        continue;
+                    }
+                    Log.fine("Cannot parse vote {}", message.getSubject());
+                    Messages.markAsRead(user, message);
+                    continue;
                 }
 
+                //
+                // A message voting in several polls may span instances.
+                // Each casts the votes for the polls it owns, once, and
+                // the message stays unread until all of them are in.
+                // Which votes are cast is kept in the store, so it 
+                // survives restarts.
+                //
+                boolean others = false;
+                for(int i = 0; i < votes.getCount(); i++) {
+                    if(!_leases.ownsPoll(votes.getPollId(i))) {
+                        others = true;
+                    }
+                }
+                if(!others) {
+                    castVotes(null, author, votes, affectedPolls);
+                    voted.add(message);
+                } else {
+                    castVotes(message.getId(), author, votes, affectedPolls);
+                    if(isDone(message, votes)) {
+                        spanning.add(message);
+                    }
+                }
+                continue;
 
-                for(int i = 0; i < RETRY_LIMIT; i++) {
-                    
-                    try {
+            } catch (IOException ioe) {
+                Log.error("caught {}", ioe);
+            }
 
-                        editComment(poll.getPollCommentId(), text);
-                        
-                        // break out of the retry loop
-                        break;  
+        }
 
-                    } catch(BannedUserException bue) {
+        if(voted.isEmpty() && spanning.isEmpty()) {
+            return;
+        }
 
-                        log("WARN Adding ban " + comment.getSubreddit());
-                        PersistenceUtils.addBan(comment.getSubreddit());
+        //
+        // One sync for the whole batch, so a crash never leaves a
+        // message read whose votes are lost.
+        //
+        _store.sync();
 
-                    } catch(IOException ioe) {
-                        ioe.printStackTrace();
-                        log("ERROR Caught IOException editing poll comment.");
-                    }
-                }
+        for(Message message: voted) {
+            try {
+                Messages.markAsRead(user, message);
+            } catch (IOException ioe) {
+                Log.error("caught {}", ioe);
+            }
+        }
+        for(Message message: spanning) {
+            try {
+                Messages.markAsRead(user, message);
+                _store.forgetCast(message.getId());
+            } catch (IOException ioe) {
+                Log.error("caught {}", ioe);
             }
-
-            sleep(SLEEP);
         }
     }
 
     /**
      *
-     * To implement CrawlerListener
+     * Cast the votes of a message in the polls this instance owns.
+     * Polls which received votes are added to affectedPolls.
+     *
+     * @param messageId The message, to record each vote as cast in the
+     *                  store, or null if the message is read at once
      *
      */
-    public void handleCrawlerEvent(CrawlerEvent event) {
+    private void castVotes( String messageId,
+                            String author, 
+                            VoteMessageParser.Result votes,
+                            IntSet affectedPolls ) {
+
+        for(int i = 0; i < votes.getCount(); i++) {
+            int id = votes.getPollId(i);
+            int option = votes.getOption(i);
+            if(!_leases.ownsPoll(id)) {
+                continue;
+            }
+            if(messageId != null && _store.isCast(messageId, id)) {
+                //
+                // Cast before, the user may have voted again since.
+                //
+                continue;
+            }
 
-        if(event.getType() == CrawlerEvent.CRAWLER_COMPLETE
-            && !event.getCrawler().getName().equals(HOME_CRAWLER_NAME) ) {
+            Log.fine("Updating votes in poll {} with user {} " +
+                    "option {}", id, author, option);
 
-            // We have completed a crawl outside of our home sub.
-            // Remove ourselves from this crawler.
-            event.getCrawler().removeListener(this);
+            //
+            // A user voting again changes their vote.
+            // Only re-render if the vote changed.
+            //
+            if(_voters.castVote(author, id, option)) {
+                affectedPolls.add(id);
+            } else {
+                Log.fine("vote unchanged for user {}", author);
+            }
+            if(messageId != null) {
+                _store.setCast(messageId, id);
+            }
         }
-
     }
 
     /**
      *
-     * Generate the markup text representation of a poll.
+     * Return true if the votes of a message in polls owned by other
+     * instances have been cast, or the message is too old to wait for.
+     * Votes the store would ignore count as cast.
      *
      */
-    public String generatePollText( int pollId,
-                                    String title,
-                                    PollOption[] options, 
-                                    Map<Integer, Integer> voteMap ) {
-
-        StringBuffer sb = new StringBuffer();
-        sb.append("Poll question: **" + title + "**  \n\n");
-
-        int total = 0;
-        for(int i = 0; i < options.length; i++) {
-            Integer o = voteMap.get(new Integer(i));
-            if(o != null) {
-                total += o.intValue();
+    private boolean isDone(Message message, VoteMessageParser.Result votes) {
+        Date created = message.getCreatedDate();
+        if( created != null && 
+            System.currentTimeMillis() - created.getTime() > SPLIT_WAIT) {
+            Log.warn("Gave up waiting for votes of {}", message.getId());
+            return true;
+        }
+        for(int i = 0; i < votes.getCount(); i++) {
+            int id = votes.getPollId(i);
+            int option = votes.getOption(i);
+            if(_leases.ownsPoll(id)) {
+                continue;
+            }
+            int options = _polls.getOptionCount(id);
+            if(option < 0 || option >= options) {
+                continue;
+            }
+            if(!_store.isCast(message.getId(), id)) {
+                return false;
             }
         }
-        sb.append("Total votes: " + total + "  \n\n");
+        return true;
+    }
 
-        for(int i = 0; i < options.length; i++) {
-            Integer o = voteMap.get(new Integer(i));
-            int votes = 0;
-            if(o == null) {
-                votes = 0;
-            } else {
-                votes = o.intValue();
+    /**
+     *
+     * Extract the vote data for a poll and edit the poll comment 
+     * using the account owning the poll.
+     *
+     * The edit runs in the background. Only one edit of a poll runs at
+     * a time; if the poll changes meanwhile, it is edited once more
+     * when the running edit ends.
+     *
+     */
+    private void updatePoll(int id) {
+        synchronized(_editing) {
+            if(_editing.containsKey(id)) {
+                _editing.put(id, EDIT_CHANGED);
+                return;
             }
+            _editing.put(id, EDIT_RUNNING);
+        }
+        startEdit(id);
+    }
 
-            double percent = ((double)votes / (double)total) * 100.0;
+    private void startEdit(final int pollId) {
 
-            // 
-            // Round to two places
-            //
-            // log("Percent " + percent);
-            if(!Double.isNaN(percent)) {
-                DecimalFormat twoDForm = new DecimalFormat("#.##");
-                percent = Double.valueOf(twoDForm.format(percent));
-            } else {
-                percent = 0.0;
-            }
+        final User user = _accounts.getUser(_polls.getAccount(pollId));
+        final String commentId = _polls.getCommentId(pollId);
+        final String title = _polls.getTitle(pollId);
 
-            // Round to nearest five.
-            int iPercent = (int)percent;
-            int tmp = iPercent % 5;
-            if(tmp < 3) {
-                iPercent -= tmp;
-            } else {
-                iPercent += 5 - tmp;
-            }
+        //
+        // Subreddit of the poll comment, once known
+        //
+        final String[] subreddit = new String[1];
 
-            // Convert to increments of 5%
-            iPercent = iPercent / 5;
-           
-            sb.append("    " + ((char)('A'+i)) + ". ");
-            for(int j = 0; j < 20; j++) {
-                if(j < iPercent) {
-                    sb.append(BAR);
-                } else {
-                    sb.append(SPACE);
+        _retries.submit("edit:" + user.getUsername(), EDIT_TIMEOUT,
+            new RetryScheduler.Call<Object>() {
+                public Object call() throws IOException {
+
+                    //
+                    // Read the tallies on each attempt, so a retry
+                    // shows the latest votes.
+                    //
+                    String[] options = _polls.getOptions(pollId);
+                    int[] tallies = getTallies(pollId);
+                    _polls.setVotes(pollId, tallies);
+
+                    //
+                    // Votes may have changed and changed back since 
+                    // the last edit.
+                    //
+                    if(_polls.isPublished(pollId, tallies)) {
+                        Log.info("Poll {} is up to date", pollId);
+                        return null;
+                    }
+
+                    Comment comment = Comments.getComment(user, commentId);
+                    if(comment == null) {
+                        return null;
+                    }
+                    subreddit[0] = comment.getSubreddit();
+
+                    if(_store.isBanned(comment.getSubreddit())) {
+                        Log.warn("Cannot update poll results in banned sub {}",
+                                comment.getSubreddit());
+                    }
+
+                    String text = _renderCache.render(  pollId,
+                                                        user.getUsername(),
+                                                        title,
+                                                        options,
+                                                        tallies,
+                                                        true );
+                    Comments.editComment(user, commentId, text);
+                    _polls.setPublished(pollId, tallies);
+                    return null;
                 }
-            }
-            sb.append("  " +
-                String.format("%6.2f", percent) + "%  " +
-                String.format("%4d", votes) + " votes  \n" );
+            },
+            new RetryScheduler.Callback<Object>() {
+                public void succeeded(Object result) {
+                    endEdit(pollId);
+                }
+                public void failed(IOException cause) {
+                    if( cause instanceof BannedUserException &&
+                        subreddit[0] != null) {
+                        Log.warn("Adding ban {}", subreddit[0]);
+                        _store.addBan(subreddit[0]);
+                    } else {
+                        Log.error("Could not edit poll {}: {}", pollId, cause);
+                    }
+                    endEdit(pollId);
+                }
+            });
+    }
 
+    /**
+     *
+     * Read the tallies of a poll from the store, one per option.
+     *
+     */
+    private int[] getTallies(int pollId) {
+        int[] tallies = _store.getPollVotes(pollId);
+        int options = _polls.getOptionCount(pollId);
+        if(tallies.length != options) {
+            tallies = Arrays.copyOf(tallies, options);
         }
+        return tallies;
+    }
 
-        //
-        // Add poll options with vote links
-        //
-        sb.append("\n\n");
-        for(int i = 0; i < options.length; i++) {
-            sb.append("- " + ((char)('A'+i)) + ". ");
-            sb.append(options[i].getValue() + " " +
-                "\\([vote](http://www.reddit.com/message/compose/?to=" +
-                _user.getUsername() + 
-                "&message=vote+" + 
-                (char)('a'+i) +
-                "&subject=Poll+" +
-                pollId + ")\\)  \n");
+    private void endEdit(int id) {
+        synchronized(_editing) {
+            if(_editing.get(id, EDIT_RUNNING) == EDIT_RUNNING) {
+                _editing.remove(id);
+                return;
+            }
+            _editing.put(id, EDIT_RUNNING);
+        }
+        startEdit(id);
+    }
+
+    /**
+     *
+     * To implement CrawlerListener
+     *
+     */
+    public void handleCrawlerEvent(CrawlerEvent event) {
+
+        if(event.getType() == CrawlerEvent.CRAWLER_COMPLETE
+            && !event.getCrawler().getName().equals(HOME_CRAWLER_NAME) ) {
+
+            // We have completed a crawl outside of our home sub.
+            // Remove ourselves from this crawler.
+            event.getCrawler().removeListener(this);
+
+            //
+            // Match the rest of the things it found.
+            //
+            _suggestCriteria.flush();
         }
 
-        return sb.toString();
     }
 
-    public Date getReplyAfterDate() { return _replyAfterDate; }
+    /**
+     *
+     * Generate the markup text representation of a poll.
+     *
+     * @param account   The account owning the poll, votes are sent 
+     *                  to this account.
+     *
+     */
+    public String generatePollText( int pollId,
+                                    String account,
+                                    String title,
+                                    String[] options, 
+                                    int[] votes ) {
+        return _renderCache.render( pollId, account, title, 
+                                    options, votes, false );
+    }
+
+    /**
+     *
+     * Return the date poll requests must be after, null while it is
+     * being looked up at startup.
+     *
+     */
+    public Date getReplyAfterDate() {
+        return _replyAfterDate;
+    }
 
     /**
      *
@@ -579,32 +1326,49 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
                 "[FAQ](http://www.reddit.com/r/PollingBot/wiki/faq) | " +
                 "[Contact My Human](http://www.reddit.com/message/compose/?to=BlackjackPitboss)    ";
 
+    private static final String SIGNATURE = "\n\n----\n" + BOT_SIG;
+
     /**
      *
      * Edit a comment, append the bot's signature.
      *
      */
     public void editComment(String id, String text) throws IOException {
-        text += "\n\n" +
-                "----\n" +
-                BOT_SIG;
-
-        for(int i = 0; i < RETRY_LIMIT; i++) {
-            try {
-                Comments.editComment(_user, id, text);
-                break;
-            } catch (RateLimitException rle) {
-                // rle.printStackTrace();
-                log("Caught RateLimitException: " + rle.getMessage());
-                int sleepSecs = rle.getRetryTime();
-                log("Sleeping " + sleepSecs +
-                            " seconds to recover from rate limit exception...");
-                sleep(sleepSecs);
-            }
-        }
+        editComment(_user, id, text);
     }
 
+    /**
+     *
+     * Edit a comment owned by the specified account, 
+     * append the bot's signature.
+     *
+     */
+    public void editComment(User user, String id, String text) 
+                                                        throws IOException {
+        editSignedComment(user, id, text + SIGNATURE);
+    }
 
+    /**
+     *
+     * Edit a comment owned by the specified account. The text already
+     * ends with the bot's signature.
+     *
+     */
+    public void editSignedComment(  final User user, 
+                                    final String id, 
+                                    final String text ) throws IOException {
+        try {
+            _retries.call("edit:" + user.getUsername(), CALL_TIMEOUT,
+                new RetryScheduler.Call<Object>() {
+                    public Object call() throws IOException {
+                        Comments.editComment(user, id, text);
+                        return null;
+                    }
+                });
+        } catch (RateLimitException rle) {
+            Log.info("Caught RateLimitException: {}", rle.getMessage());
+        }
+    }
 
     /**
      *
@@ -612,38 +1376,99 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
      *
      */
     public String sendComment(Thing thing, String text) throws IOException {
-        text += "\n\n" +
-                "----\n" +
-                BOT_SIG;
-        
-        for(int i = 0; i < RETRY_LIMIT; i++) {
-            try {
-                String ret = Comments.comment(_user, thing, text);
-                return ret;
-            } catch (RateLimitException rle) {
-                // rle.printStackTrace();
-                log("Caught RateLimitException: " + rle.getMessage());
-                int sleepSecs = rle.getRetryTime();
-                log("Sleeping " + sleepSecs +
-                            " seconds to recover from rate limit exception...");
-                sleep(sleepSecs);
-            }
+        return sendComment(_user, thing, text);
+    }
+
+    /**
+     *
+     * Send a comment from the specified account, 
+     * append the bot's signature.
+     *
+     */
+    public String sendComment(  final User user, 
+                                final Thing thing, 
+                                String text ) throws IOException {
+        final String signed = text + SIGNATURE;
+        try {
+            return _retries.call("comment:" + user.getUsername(), 
+                                 CALL_TIMEOUT,
+                new RetryScheduler.Call<String>() {
+                    public String call() throws IOException {
+                        return Comments.comment(user, thing, signed);
+                    }
+                });
+        } catch (RateLimitException rle) {
+            Log.info("Caught RateLimitException: {}", rle.getMessage());
+            return null;
         }
-        return null;
     }
 
     /**
-     * Return the list of subreddits which should not be limited by
-     * poll creation throttling for preventing abuse. 
-     **/
-    public List<String> getUnlimitedSubreddits() {
-        return _unlimitedSubreddits;
+     *
+     * Send a comment from the specified account in the background,
+     * append the bot's signature.
+     *
+     * @param callback  Told the comment id, null if rate limited past 
+     *                  our retries, may be null
+     *
+     */
+    public RetryScheduler.Handle sendComment(   
+                            User user, 
+                            Thing thing, 
+                            String text,
+                            RetryScheduler.Callback<String> callback ) {
+        return sendComment(user, thing, text, Long.MAX_VALUE, callback);
+    }
+
+    /**
+     *
+     * Send a comment in the background, giving up at the deadline.
+     *
+     * @param deadline  Time to give up, in ms since the epoch
+     *
+     */
+    public RetryScheduler.Handle sendComment(   
+                    final User user, 
+                    final Thing thing, 
+                    String text,
+                    long deadline,
+                    final RetryScheduler.Callback<String> callback ) {
+        long timeout = Math.min(CALL_TIMEOUT, 
+                                deadline - System.currentTimeMillis());
+        final String signed = text + SIGNATURE;
+        return _retries.submit("comment:" + user.getUsername(), 
+                               Math.max(0, timeout),
+            new RetryScheduler.Call<String>() {
+                public String call() throws IOException {
+                    return Comments.comment(user, thing, signed);
+                }
+            },
+            new RetryScheduler.Callback<String>() {
+                public void succeeded(String commentId) {
+                    if(callback != null) {
+                        callback.succeeded(commentId);
+                    }
+                }
+                public void failed(IOException cause) {
+                    if(cause instanceof RateLimitException) {
+                        Log.info("Caught RateLimitException: {}", 
+                                cause.getMessage());
+                        succeeded(null);
+                        return;
+                    }
+                    Log.error("Could not comment on {}: {}", 
+                            thing.getId(), cause);
+                    if(callback != null) {
+                        callback.failed(cause);
+                    }
+                }
+            });
     }
 
     /**
      * Return bot owner.
      */
-    public String getOwner() { return _owner; }
+    public String getOwner() { return _config.get().getOwner(); }
 
     /**
      *
@@ -651,7 +1476,17 @@ public class PollingBot extends BaseBot implements Bot, CrawlerListener {
      * to post possible poll comments.
      *
      */
-    public String getSuggestionSub() { return _suggestionSub; }
+    public String getSuggestionSub() { 
+        return _config.get().getSuggestionSub(); 
+    }
+
+    /**
+     *
+     * Return the current config. Hold on to it rather than calling this
+     * again where settings must agree with each other.
+     *
+     */
+    public BotConfig getConfig() { return _config.get(); }
 
 
 }
@@ -17,79 +17,182 @@ import com.jreddit.botkernel.*;
  */
 public class PotentialPollMatchCriteria extends BaseMatchCriteria {
                
-    private static final int LIMIT = 10;
-    
-    private static final String SUGGESTIONS_TITLE = "poll suggestion";
+    static final String PREFIX = "potentialPoll.";
+
+    private static final int BATCH_SIZE = 100;
+
+    private SuggestionThreadCache _threads;
+    private SuggestionDigest _digest;
+
+    //
+    // Phrase matcher for subreddits without overrides, and for those 
+    // with overrides keyed by lower case subreddit name. Each is
+    // replaced whole when the config changes.
+    //
+    private volatile PollPhraseMatcher _matcher;
+    private volatile Map<String, PollPhraseMatcher> _subredditMatchers;
 
     public PotentialPollMatchCriteria(PollingBot bot) {
         super(bot);
+        _threads = new SuggestionThreadCache(bot);
+        _digest = new SuggestionDigest(bot, _threads, this);
+
+        //
+        // Owner crawls hand us a lot of things, evaluate them in batches.
+        //
+        setBatchSize(BATCH_SIZE);
+
+        setConfig(bot.getConfig());
     }
 
-    protected boolean matchBody(Thing thing, String body) {
+    /**
+     *
+     * Build the phrase matchers from a config.
+     *
+     */
+    public void setConfig(BotConfig config) {
+        PollPhraseMatcher matcher = createMatcher(config, PREFIX);
+
         //
-        // Check for potentials game requests which 
-        // will need a human to look at.
+        // Subreddit overrides look like potentialPoll.<sub>.comparisons
         //
-        Object lock = PersistenceUtils.getDatabaseLock();
-        synchronized(lock) {
-            if(PersistenceUtils.isBotReplied(thing.getId())) {
-                BotKernel.getBotKernel().log(
-                        "FINEST Already matched:\n" + thing);
-                return false;
+        Set<String> subreddits = new HashSet<String>();
+        for(String name: config.getPropertyNames()) {
+            if(!name.startsWith(PREFIX)) {
+                continue;
             }
-            
-            String pattern = 
-                "(who|what|when|where) (is|are|were) (.*)?(better|best|worse|worst)";
-
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(body.toLowerCase());
-            if(m.find()) { 
-
-                BotKernel.getBotKernel().log(
-                        "INFO Found potential poll match in:\n" + body);
-
-                String subreddit = _bot.getSuggestionSub();
-                if(subreddit != null && !subreddit.equals("")) {
-              
-                    BotKernel.getBotKernel().log(
-                                "INFO Looking for suggestions thread");
-
-                    try {
-                        List<Submission> submissions =
-                                Submissions.getSubmissions(
-                                                _bot.getUser(),
-                                                subreddit,
-                                                Submissions.ListingType.HOT,
-                                                LIMIT,
-                                                (String)null,
-                                                (String)null );
-
-                        for(Submission submission: submissions) {
-
-                            if(submission.getTitle().toLowerCase().indexOf(SUGGESTIONS_TITLE) != -1) {
-                                BotKernel.getBotKernel().log(
-                                            "INFO Found suggestions thread");
-                                String url = thing.getUrl();
-                                _bot.sendComment( submission, 
-                                    "Potential poll comment in " +
-                                    "/r/" + thing.getSubreddit() + " " +
-                                    thing.getCreatedDate() + "  \n\n" +
-                                    "----\n" + 
-                                    (url == null ? 
-                                        submission.getUrl() : url) + "  \n\n" +
-                                    body + "  \n\n");
-                                PersistenceUtils.setBotReplied(thing.getId());
-                                break;
-                            }
-                        }
-
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
-                        BotKernel.getBotKernel().log("ERROR caught " + ioe);
-                    }
-                }
+            int dot = name.lastIndexOf('.');
+            if(dot > PREFIX.length()) {
+                subreddits.add(name.substring(PREFIX.length(), dot));
             }
         }
+        Map<String, PollPhraseMatcher> subredditMatchers = 
+                                    new HashMap<String, PollPhraseMatcher>();
+        for(String subreddit: subreddits) {
+            subredditMatchers.put(
+                    subreddit.toLowerCase(),
+                    createMatcher(config, PREFIX + subreddit + "."));
+        }
+
+        _matcher = matcher;
+        _subredditMatchers = subredditMatchers;
+    }
+
+    /**
+     *
+     * Build a phrase matcher from the settings under a prefix, falling 
+     * back to the global settings, then to the defaults.
+     *
+     */
+    private static PollPhraseMatcher createMatcher( BotConfig config,
+                                                    String prefix ) {
+        String questions = config.getProperty(prefix + "questions",
+            config.getProperty(PREFIX + "questions", 
+                               PollPhraseMatcher.DEFAULT_QUESTIONS));
+        String verbs = config.getProperty(prefix + "verbs",
+            config.getProperty(PREFIX + "verbs", 
+                               PollPhraseMatcher.DEFAULT_VERBS));
+        String comparisons = config.getProperty(prefix + "comparisons",
+            config.getProperty(PREFIX + "comparisons", 
+                               PollPhraseMatcher.DEFAULT_COMPARISONS));
+        String minScore = config.getProperty(prefix + "minScore",
+            config.getProperty(PREFIX + "minScore", 
+                               "" + PollPhraseMatcher.DEFAULT_MIN_SCORE));
+
+        int min = PollPhraseMatcher.DEFAULT_MIN_SCORE;
+        try {
+            min = Integer.parseInt(minScore.trim());
+        } catch(NumberFormatException nfe) {
+            Log.error("bad minScore {}", minScore);
+        }
+
+        return new PollPhraseMatcher(questions, verbs, comparisons, min);
+    }
+
+    /**
+     *
+     * Return the phrase matcher for a subreddit.
+     *
+     */
+    private PollPhraseMatcher getMatcher(String subreddit) {
+        Map<String, PollPhraseMatcher> matchers = _subredditMatchers;
+        if(subreddit != null && matchers.size() > 0) {
+            PollPhraseMatcher matcher = 
+                            matchers.get(subreddit.toLowerCase());
+            if(matcher != null) {
+                return matcher;
+            }
+        }
+        return _matcher;
+    }
+
+    /**
+     *
+     * Start looking up the suggestion thread in the background.
+     *
+     */
+    public void start() {
+        _threads.start();
+        _digest.start();
+    }
+
+    /**
+     *
+     * Stop. Pending suggestions are posted when the digest is drained.
+     *
+     */
+    public void stop() {
+        stopBatching();
+        _digest.stop();
+        _threads.stop();
+    }
+
+    public SuggestionDigest getDigest() { return _digest; }
+
+    /**
+     *
+     * Score the body. Pure CPU, run in parallel for batches.
+     *
+     */
+    protected Object evaluate(Thing thing, String body) {
+        //
+        // Check for potentials game requests which 
+        // will need a human to look at.
+        //
+        if(!_bot.getLeases().ownsKey(thing.getId())) {
+            // Partitioned mode, another instance owns this thing for
+            // now.
+            return RETRY;
+        }
+
+        int score = getMatcher(thing.getSubreddit()).match(body);
+        if(score == 0) {
+            return null;
+        }
+        return Integer.valueOf(score);
+    }
+
+    protected boolean apply(Thing thing, String body, Object match) {
+
+        if(_bot.getStore().isBotReplied(thing.getId())) {
+            Log.finest("Already matched:\n{}", thing);
+            return false;
+        }
+
+        int score = ((Integer)match).intValue();
+
+        Log.info("Found potential poll match (score {}) in:\n{}", score, body);
+
+        //
+        // Queue it for the next digest comment in the suggestion 
+        // thread. It is recorded as replied once the digest posts.
+        // If the digest has no room, look at it again next crawl.
+        //
+        setPending(thing);
+        if(!_digest.add(thing, body, score)) {
+            forget(thing);
+            retryLater();
+        }
 
         //
         // Don't bother having the framework call back into the bot with
@@ -99,4 +202,3 @@ public class PotentialPollMatchCriteria extends BaseMatchCriteria {
     }
 
 }
-
@@ -0,0 +1,540 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.omrlnr.jreddit.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Runs reddit calls with retries, without parking threads in between.
+ *
+ * A failed attempt is rescheduled on a scheduled executor after a
+ * jittered exponential backoff, or after the retry time of a rate limit.
+ * Every operation has a deadline; an attempt that could not start
+ * before it fails the operation instead.
+ *
+ * An operation can be cancelled until an attempt starts running. Once
+ * one runs its outcome stands, so a caller that gives up never misses
+ * a comment that was posted after all.
+ *
+ * Calls are grouped by endpoint, e.g. one per account. A rate limit
+ * holds back every call to its endpoint until it has passed, and an
+ * endpoint failing several times in a row is opened like a circuit
+ * breaker: calls wait for it to cool down, then one trial call decides
+ * whether it closes again.
+ *
+ */
+public class RetryScheduler implements Drainable {
+
+    /**
+     *
+     * One attempt at an operation.
+     *
+     */
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     *
+     * Told how an operation ended, on a scheduler thread.
+     *
+     */
+    public interface Callback<T> {
+        void succeeded(T result);
+        void failed(IOException cause);
+    }
+
+    /**
+     *
+     * An operation started with submit().
+     *
+     */
+    public interface Handle {
+
+        /**
+         *
+         * Cancel the operation. If no attempt is running the callback
+         * is told it failed. Otherwise the running attempt is the last
+         * one and its outcome is told as usual.
+         *
+         * @return true if the operation was cancelled before an attempt
+         *          ran or while waiting to retry
+         *
+         */
+        boolean cancel();
+    }
+
+    //
+    // Backoff of the first retry and most backoff, in ms
+    //
+    private static final long BASE_DELAY = 1000;
+    private static final long MAX_DELAY = 1000L * 60;
+
+    //
+    // Consecutive failures which open an endpoint, and how long it
+    // stays open, in ms
+    //
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_TIME = 1000L * 60;
+
+    /**
+     *
+     * State of one endpoint. Guarded by itself.
+     *
+     */
+    private static class Endpoint {
+        private String _name;
+        private int _failures;
+
+        //
+        // No calls before this time, 0 if none
+        //
+        private long _heldUntil;
+
+        //
+        // True while a trial call after opening is running
+        //
+        private boolean _trial;
+
+        public Endpoint(String name) {
+            _name = name;
+        }
+    }
+
+    private ScheduledExecutorService _executor;
+    private int _maxAttempts;
+    private Random _random = new Random();
+
+    private ConcurrentMap<String, Endpoint> _endpoints =
+                                new ConcurrentHashMap<String, Endpoint>();
+
+    //
+    // Operations not yet ended. Guarded by _endpoints.
+    //
+    private int _pending;
+
+    /**
+     *
+     * @param threads       Threads running attempts
+     * @param maxAttempts   Most attempts per operation
+     *
+     */
+    public RetryScheduler(int threads, int maxAttempts) {
+        _maxAttempts = maxAttempts;
+        _executor = Executors.newScheduledThreadPool(threads,
+            new ThreadFactory() {
+                private int _count;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingBot-retry-" + _count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     *
+     * Start an operation.
+     *
+     * @param endpoint  Endpoint of the call, e.g. "edit:account"
+     * @param timeout   Time the operation may take, in ms
+     * @param call      The call to make
+     * @param callback  Told of the outcome, may be null
+     *
+     */
+    public <T> Handle submit(   String endpoint,
+                                long timeout,
+                                Call<T> call,
+                                Callback<T> callback ) {
+        synchronized(_endpoints) {
+            _pending++;
+        }
+        Operation<T> op = new Operation<T>( getEndpoint(endpoint),
+                                System.currentTimeMillis() + timeout,
+                                call, callback );
+        schedule(op, 0);
+        return op;
+    }
+
+    /**
+     *
+     * Run an operation and wait for its outcome. For callers that need
+     * the result before they can go on; the retries still run on the
+     * scheduler.
+     *
+     * At the timeout the operation is cancelled. If an attempt is
+     * running then, its outcome is waited for, so a failure thrown here
+     * means nothing was done.
+     *
+     */
+    public <T> T call(  String endpoint,
+                        long timeout,
+                        Call<T> call ) throws IOException {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final IOException[] error = new IOException[1];
+
+        Handle op = submit(endpoint, timeout, call, new Callback<T>() {
+            public void succeeded(T value) {
+                result[0] = value;
+                done.countDown();
+            }
+            public void failed(IOException cause) {
+                error[0] = cause;
+                done.countDown();
+            }
+        });
+
+        boolean interrupted = false;
+        try {
+            if(!done.await(timeout, TimeUnit.MILLISECONDS) && op.cancel()) {
+                throw new IOException("Timed out calling " + endpoint);
+            }
+        } catch(InterruptedException ie) {
+            interrupted = true;
+            if(op.cancel()) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted calling " + endpoint);
+            }
+        }
+
+        //
+        // An attempt was running, wait for how it ended.
+        //
+        while(done.getCount() > 0) {
+            try {
+                done.await();
+            } catch(InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(error[0] != null) {
+            throw error[0];
+        }
+        @SuppressWarnings("unchecked")
+        T ret = (T)result[0];
+        return ret;
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    public String getName() {
+        return "reddit calls";
+    }
+
+    /**
+     *
+     * Wait for the operations in progress to end, then shut down.
+     * Operations still waiting to retry at the deadline are dropped.
+     *
+     */
+    public int drain(long deadline) {
+        int left;
+        synchronized(_endpoints) {
+            while(_pending > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) {
+                    break;
+                }
+                try {
+                    _endpoints.wait(wait);
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            left = _pending;
+        }
+        shutdown();
+        return left;
+    }
+
+    /**
+     * Return the number of operations not yet ended.
+     */
+    public int getPending() {
+        synchronized(_endpoints) {
+            return _pending;
+        }
+    }
+
+    private void ended() {
+        synchronized(_endpoints) {
+            _pending--;
+            _endpoints.notifyAll();
+        }
+    }
+
+    /**
+     *
+     * Return true if the endpoint is open, i.e. failing.
+     *
+     */
+    public boolean isOpen(String endpoint) {
+        Endpoint e = _endpoints.get(endpoint);
+        if(e == null) {
+            return false;
+        }
+        synchronized(e) {
+            return e._failures >= FAILURE_THRESHOLD;
+        }
+    }
+
+    /**
+     *
+     * Return the names of the open endpoints.
+     *
+     */
+    public List<String> getOpenEndpoints() {
+        List<String> ret = new ArrayList<String>();
+        for(Endpoint e: _endpoints.values()) {
+            synchronized(e) {
+                if(e._failures >= FAILURE_THRESHOLD) {
+                    ret.add(e._name);
+                }
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private Endpoint getEndpoint(String name) {
+        Endpoint e = _endpoints.get(name);
+        if(e == null) {
+            Endpoint fresh = new Endpoint(name);
+            e = _endpoints.putIfAbsent(name, fresh);
+            if(e == null) {
+                e = fresh;
+            }
+        }
+        return e;
+    }
+
+    private void schedule(final Operation<?> op, long delay) {
+        try {
+            _executor.schedule(op, delay, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException ree) {
+            op.fail(new IOException("Shutting down"));
+        }
+    }
+
+    /**
+     *
+     * Return the backoff before the given retry, with jitter: between
+     * half and all of the exponential delay.
+     *
+     */
+    private long backoff(int attempt) {
+        long delay = BASE_DELAY << Math.min(attempt - 1, 16);
+        delay = Math.min(MAX_DELAY, delay);
+        synchronized(_random) {
+            return delay / 2 + (long)(_random.nextDouble() * (delay / 2));
+        }
+    }
+
+    /**
+     *
+     * An operation in progress. Runs one attempt each time it is run.
+     *
+     */
+    private class Operation<T> implements Runnable, Handle {
+        private Endpoint _endpoint;
+        private long _deadline;
+        private Call<T> _call;
+        private Callback<T> _callback;
+        private int _attempts;
+
+        //
+        // Guarded by this
+        //
+        private boolean _running;
+        private boolean _cancelled;
+        private boolean _ended;
+
+        public Operation(   Endpoint endpoint,
+                            long deadline,
+                            Call<T> call,
+                            Callback<T> callback ) {
+            _endpoint = endpoint;
+            _deadline = deadline;
+            _call = call;
+            _callback = callback;
+        }
+
+        public boolean cancel() {
+            synchronized(this) {
+                if(_ended || _cancelled) {
+                    return false;
+                }
+                _cancelled = true;
+                if(_running) {
+                    return false;
+                }
+            }
+            fail(new IOException("Cancelled calling " + _endpoint._name));
+            return true;
+        }
+
+        private synchronized boolean begin() {
+            if(_ended || _cancelled) {
+                return false;
+            }
+            _running = true;
+            return true;
+        }
+
+        private synchronized void endAttempt() {
+            _running = false;
+        }
+
+        private synchronized boolean isCancelled() {
+            return _cancelled;
+        }
+
+        public void run() {
+
+            if(!begin()) {
+                // Cancelled
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            boolean trial = false;
+
+            //
+            // Wait out a rate limit or an open endpoint.
+            //
+            synchronized(_endpoint) {
+                long wait = _endpoint._heldUntil - now;
+                if(wait <= 0 && _endpoint._failures >= FAILURE_THRESHOLD) {
+                    if(_endpoint._trial) {
+                        wait = BASE_DELAY;
+                    } else {
+                        _endpoint._trial = true;
+                        trial = true;
+                    }
+                }
+                if(wait > 0) {
+                    endAttempt();
+                    retryAt(now + wait, new IOException(
+                                "Endpoint " + _endpoint._name + " is held"));
+                    return;
+                }
+            }
+
+            _attempts++;
+            try {
+                T result;
+                try {
+                    result = _call.call();
+                } finally {
+                    endAttempt();
+                }
+                synchronized(_endpoint) {
+                    _endpoint._failures = 0;
+                    _endpoint._trial = false;
+                }
+                synchronized(this) {
+                    _ended = true;
+                }
+                try {
+                    if(_callback != null) {
+                        _callback.succeeded(result);
+                    }
+                } finally {
+                    ended();
+                }
+
+            } catch(BannedUserException bue) {
+                // Retrying won't help.
+                endTrial(trial);
+                fail(bue);
+
+            } catch(RateLimitException rle) {
+                long until = System.currentTimeMillis() +
+                             1000L * rle.getRetryTime();
+                synchronized(_endpoint) {
+                    _endpoint._heldUntil =
+                                    Math.max(_endpoint._heldUntil, until);
+                    _endpoint._trial = false;
+                }
+                Log.info("Rate limited on {} for {}s",
+                        _endpoint._name, rle.getRetryTime());
+                retry(Math.max(until, now + backoff(_attempts)), rle);
+
+            } catch(IOException ioe) {
+                synchronized(_endpoint) {
+                    _endpoint._failures++;
+                    _endpoint._trial = false;
+                    if(_endpoint._failures >= FAILURE_THRESHOLD) {
+                        _endpoint._heldUntil = System.currentTimeMillis() +
+                                                                OPEN_TIME;
+                        if(_endpoint._failures == FAILURE_THRESHOLD) {
+                            Log.warn("Endpoint {} is failing",
+                                    _endpoint._name);
+                        }
+                    }
+                }
+                retry(System.currentTimeMillis() + backoff(_attempts), ioe);
+
+            } catch(RuntimeException re) {
+                re.printStackTrace();
+                endTrial(trial);
+                fail(new IOException(re.toString()));
+            }
+        }
+
+        private void endTrial(boolean trial) {
+            if(trial) {
+                synchronized(_endpoint) {
+                    _endpoint._trial = false;
+                }
+            }
+        }
+
+        private void retry(long at, IOException cause) {
+            if(_attempts >= _maxAttempts || isCancelled()) {
+                fail(cause);
+                return;
+            }
+            retryAt(at, cause);
+        }
+
+        private void retryAt(long at, IOException cause) {
+            if(at > _deadline) {
+                fail(cause);
+                return;
+            }
+            schedule(this, at - System.currentTimeMillis());
+        }
+
+        private void fail(IOException cause) {
+            synchronized(this) {
+                if(_ended) {
+                    return;
+                }
+                _ended = true;
+            }
+            try {
+                if(_callback != null) {
+                    _callback.failed(cause);
+                }
+            } finally {
+                ended();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * The SQLite poll store, backed by scratch/pollingbot.db.
+ * See PersistenceUtils for the details.
+ *
+ */
+public class SQLitePollStore implements PollStore {
+
+    public void open() {
+        PersistenceUtils.upgradeSchema();
+    }
+
+    public void close() { }
+
+    public void sync() { }
+
+    public void addBan(String subreddit) {
+        PersistenceUtils.addBan(subreddit);
+    }
+
+    public boolean isBanned(String subreddit) {
+        return PersistenceUtils.isBanned(subreddit);
+    }
+
+    public boolean isBotReplied(String id) {
+        return PersistenceUtils.isBotReplied(id);
+    }
+
+    public void setBotReplied(String id) {
+        PersistenceUtils.setBotReplied(id);
+    }
+
+    public void setBotReplied(Collection<String> ids) {
+        PersistenceUtils.setBotReplied(ids);
+    }
+
+    public boolean isVotePresent(String username, int id) {
+        return PersistenceUtils.isVotePresent(username, id);
+    }
+
+    public boolean castVote(String username, int id, int option) {
+        return PersistenceUtils.castVote(username, id, option);
+    }
+
+    public int internUser(String username) {
+        return PersistenceUtils.internUser(username);
+    }
+
+    public int getVote(int id, int userId) {
+        return PersistenceUtils.getVote(id, userId);
+    }
+
+    public boolean applyVotes(int[] polls, int[] users, 
+                              int[] options, int count) {
+        return PersistenceUtils.applyVotes(polls, users, options, count);
+    }
+
+    public boolean visitVotes(int id, VoteVisitor visitor) {
+        return PersistenceUtils.visitVotes(id, visitor);
+    }
+
+    public boolean isCast(String messageId, int id) {
+        return PersistenceUtils.isCast(messageId, id);
+    }
+
+    public void setCast(String messageId, int id) {
+        PersistenceUtils.setCast(messageId, id);
+    }
+
+    public void forgetCast(String messageId) {
+        PersistenceUtils.forgetCast(messageId);
+    }
+
+    public int[] getPollVotes(int id) {
+        return PersistenceUtils.getPollVotes(id);
+    }
+
+    public boolean visitPoll(int id, PollVisitor visitor) {
+        return PersistenceUtils.visitPoll(id, visitor);
+    }
+
+    public String[] getPollOptions(int id) {
+        return PersistenceUtils.getPollOptions(id);
+    }
+
+    public void setPollOptions(int id, String[] options) {
+        PersistenceUtils.setPollOptions(id, options);
+    }
+
+    public int createPoll(String userCommentId, String title, String account) {
+        return PersistenceUtils.createPoll(userCommentId, title, account);
+    }
+
+    public void deletePoll(int id) {
+        PersistenceUtils.deletePoll(id);
+    }
+
+    public void setPollCommentId(int id, String pollCommentId) {
+        PersistenceUtils.setPollCommentId(id, pollCommentId);
+    }
+
+    public boolean isPoll(String userCommentId) {
+        return PersistenceUtils.isPoll(userCommentId);
+    }
+
+    public Map<String, Integer> getAccountLoads(int limit) {
+        return PersistenceUtils.getAccountLoads(limit);
+    }
+
+    public List<Integer> getPollsToClose(long cutoff, int limit) {
+        return PersistenceUtils.getPollsToClose(cutoff, limit);
+    }
+
+    public void archivePoll(int id) {
+        PersistenceUtils.archivePoll(id);
+    }
+
+    public int archiveMatches(long cutoff, int limit) {
+        return PersistenceUtils.archiveMatches(cutoff, limit);
+    }
+
+    public boolean compact(int pages) {
+        return PersistenceUtils.compactDatabase(pages);
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ *
+ * Something whose in-memory state is kept in the StateSnapshot.
+ *
+ * Each participant owns one tagged section of the snapshot. Sections
+ * of unknown tags are skipped, so participants can come and go.
+ *
+ */
+public interface SnapshotParticipant {
+
+    /**
+     * Return the tag of this participant's section.
+     */
+    String getSnapshotTag();
+
+    /**
+     *
+     * Write the current state. Called from the snapshot thread, so
+     * take whatever locks the state needs.
+     *
+     */
+    void writeSnapshot(DataOutput out) throws IOException;
+
+    /**
+     *
+     * Restore state from a section written by writeSnapshot(). The buffer
+     * holds exactly the section.
+     *
+     */
+    void readSnapshot(ByteBuffer in) throws IOException;
+
+}
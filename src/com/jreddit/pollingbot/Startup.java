@@ -0,0 +1,168 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *
+ * Runs the steps of PollingBot.init(), timing each one.
+ *
+ * Steps which do not depend on each other are started with submit()
+ * and run at once on their own threads; the init thread waits for one
+ * with await() only where it needs what the step sets up. run() times
+ * a step on the calling thread.
+ *
+ * Steps started with background() are not waited for: the bot runs
+ * without them and whatever needs one waits for it itself.
+ *
+ * When every other step is done finish() logs how long each took and
+ * the total, the bot's cold start time. The timings, background steps
+ * included as they finish, stay available for the status endpoint.
+ *
+ */
+public class Startup {
+
+    private long _started = System.currentTimeMillis();
+
+    //
+    // Duration of each step in ms, in the order they finished.
+    // Guarded by this.
+    //
+    private Map<String, Long> _timings = new LinkedHashMap<String, Long>();
+
+    private List<Future<?>> _steps = new ArrayList<Future<?>>();
+
+    private ExecutorService _executor = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            private int _count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PollingBot-startup-" + _count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private volatile long _total = -1;
+
+    /**
+     *
+     * Run a step on this thread.
+     *
+     */
+    public void run(String name, Runnable step) {
+        long start = System.currentTimeMillis();
+        try {
+            step.run();
+        } finally {
+            done(name, start);
+        }
+    }
+
+    /**
+     *
+     * Start a step on its own thread.
+     *
+     */
+    public Future<?> submit(String name, Runnable step) {
+        Future<?> future = background(name, step);
+        _steps.add(future);
+        return future;
+    }
+
+    /**
+     *
+     * Start a step on its own thread, which finish() does not wait for.
+     *
+     */
+    public Future<?> background(final String name, final Runnable step) {
+        return _executor.submit(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    step.run();
+                } finally {
+                    done(name, start);
+                }
+            }
+        });
+    }
+
+    /**
+     *
+     * Wait for a step started with submit(). A step which threw has its
+     * exception thrown again here.
+     *
+     */
+    public void await(Future<?> step) {
+        try {
+            step.get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted starting up");
+        } catch(ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     *
+     * Wait for every step but the background ones, then log the 
+     * timings. Background steps already started still run.
+     *
+     */
+    public void finish() {
+        try {
+            for(Future<?> step: _steps) {
+                await(step);
+            }
+        } finally {
+            _executor.shutdown();
+        }
+        _total = System.currentTimeMillis() - _started;
+        Log.info("Started in {} ms: {}", _total, this);
+    }
+
+    /**
+     *
+     * Return the time from creation to finish() in ms, -1 if not
+     * finished.
+     *
+     */
+    public long getTotal() {
+        return _total;
+    }
+
+    /**
+     *
+     * Return the duration of each step finished so far, in ms.
+     *
+     */
+    public synchronized Map<String, Long> getTimings() {
+        return new LinkedHashMap<String, Long>(_timings);
+    }
+
+    public synchronized String toString() {
+        StringBuffer sb = new StringBuffer();
+        for(Map.Entry<String, Long> entry: _timings.entrySet()) {
+            if(sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append(" ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    private synchronized void done(String name, long start) {
+        long took = System.currentTimeMillis() - start;
+        _timings.put(name, Long.valueOf(took));
+        Log.fine("Startup step {} took {} ms", name, took);
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Periodic binary snapshot of the bot's in-memory state, so a restart
+ * picks up where the last run left off instead of rebuilding it.
+ *
+ * The snapshot is a header followed by one tagged section per
+ * SnapshotParticipant. It is written to a temporary file, synced and
+ * renamed over the old one, so a crash leaves either the old snapshot
+ * or the new one. At startup the file is memory mapped and each
+ * participant restores from its own section.
+ *
+ */
+public class StateSnapshot {
+
+    private static final int MAGIC = 0x50425331;    // "PBS1"
+    private static final int VERSION = 1;
+
+    private File _file;
+
+    //
+    // Sections of the loaded snapshot, tag => section. Dropped once the
+    // bot is running.
+    //
+    private Map<String, ByteBuffer> _sections;
+
+    //
+    // Registered participants, in order of registration.
+    //
+    private List<SnapshotParticipant> _participants =
+                            new CopyOnWriteArrayList<SnapshotParticipant>();
+
+    private ScheduledExecutorService _executor;
+
+    public StateSnapshot(File file) {
+        _file = file;
+    }
+
+    /**
+     *
+     * Map the snapshot file, if there is one.
+     *
+     * @return true if a snapshot was loaded
+     *
+     */
+    public synchronized boolean load() {
+
+        _sections = new HashMap<String, ByteBuffer>();
+        if(!_file.exists()) {
+            return false;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(_file, "r");
+            try {
+                ByteBuffer buffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+                if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    Log.warn("Ignoring unknown snapshot {}", _file);
+                    return false;
+                }
+
+                long written = buffer.getLong();
+                int count = buffer.getInt();
+
+                Map<String, ByteBuffer> sections =
+                                        new HashMap<String, ByteBuffer>();
+                for(int i = 0; i < count; i++) {
+                    String tag = readString(buffer);
+                    int length = buffer.getInt();
+
+                    ByteBuffer section = buffer.slice();
+                    section.limit(length);
+                    sections.put(tag, section);
+
+                    buffer.position(buffer.position() + length);
+                }
+                _sections = sections;
+
+                Log.info("Loaded snapshot from {} with {} sections",
+                        new Date(written), count);
+                return true;
+
+            } finally {
+                raf.close();
+            }
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            Log.error("caught {}", ioe);
+        } catch(RuntimeException re) {
+            // Underflow or bad length, the file is damaged.
+            Log.warn("Ignoring damaged snapshot {}", _file);
+        }
+        return false;
+    }
+
+    /**
+     *
+     * Register a participant, restoring it from the loaded snapshot if
+     * that has a section for it.
+     *
+     * @return true if the participant was restored
+     *
+     */
+    public boolean restore(SnapshotParticipant participant) {
+
+        _participants.add(participant);
+
+        ByteBuffer section;
+        synchronized(this) {
+            if(_sections == null) {
+                return false;
+            }
+            section = _sections.get(participant.getSnapshotTag());
+        }
+        if(section == null) {
+            return false;
+        }
+
+        try {
+            participant.readSnapshot(section.duplicate());
+            return true;
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+        } catch(RuntimeException re) {
+            re.printStackTrace();
+        }
+        Log.warn("Could not restore {}", participant.getSnapshotTag());
+        return false;
+    }
+
+    /**
+     *
+     * Save a snapshot every interval, and once more at stop().
+     *
+     */
+    public synchronized void start(long interval) {
+
+        //
+        // Everyone has restored by now.
+        //
+        _sections = null;
+
+        if(_executor != null || interval <= 0) {
+            return;
+        }
+        _executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingBot-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    save();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized(this) {
+            executor = _executor;
+            _executor = null;
+        }
+        if(executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        save();
+    }
+
+    /**
+     *
+     * Write a snapshot of every participant.
+     *
+     * @return true if the snapshot was written
+     *
+     */
+    public boolean save() {
+
+        long start = System.currentTimeMillis();
+        File temp = new File(_file.getPath() + ".tmp");
+
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(fos));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(start);
+                out.writeInt(_participants.size());
+
+                ByteArrayOutputStream section = new ByteArrayOutputStream();
+                for(SnapshotParticipant participant: _participants) {
+                    section.reset();
+                    participant.writeSnapshot(new DataOutputStream(section));
+
+                    writeString(out, participant.getSnapshotTag());
+                    out.writeInt(section.size());
+                    section.writeTo(out);
+                }
+
+                out.flush();
+                fos.getFD().sync();
+
+            } finally {
+                fos.close();
+            }
+
+            Files.move( temp.toPath(), _file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING );
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            Log.error("caught {}", ioe);
+            return false;
+        }
+
+        Log.finest("Wrote snapshot in {}ms",
+                (System.currentTimeMillis() - start));
+        return true;
+    }
+
+    /**
+     * Write a string as a length and UTF-8 bytes.
+     */
+    public static void writeString(DataOutput out, String s)
+                                                        throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by writeString().
+     */
+    public static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import com.sun.net.httpserver.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * A small HTTP endpoint showing live poll results and bot health as
+ * JSON, for moderators and dashboards:
+ *
+ *      /status         health, queue depths, poll creation counts and
+ *                      startup timings
+ *      /polls          every poll in the PollTable, latest used first
+ *      /polls/N        one poll, 404 if it is not in the table
+ *
+ * Everything is served from memory: the PollTable, whose tallies are
+ * read when a poll is loaded, when votes are cast in it and when it is
+ * edited, and the counters of the bot's services. Requests never call
+ * the store. They take the PollTable's lock, which is not held while
+ * the table loads from the store, so a slow db does not hold them up.
+ *
+ * Responses carry an ETag and If-None-Match is answered with 304. The
+ * poll list is only rendered again when the table has changed. Its tag
+ * includes the time the endpoint started, as the table version starts
+ * over with each run.
+ *
+ * The endpoint starts early in PollingBot.init() so a slow start can
+ * be watched. Until the bot is ready /status reports "starting" and
+ * the polls are answered with 503.
+ *
+ */
+public class StatusServer {
+
+    private static final int THREADS = 4;
+
+    private PollingBot _bot;
+    private HttpServer _server;
+    private ExecutorService _executor;
+    private long _started = System.currentTimeMillis();
+
+    //
+    // The poll list as last rendered, and the table version it shows.
+    // Guarded by this.
+    //
+    private long _pollsVersion = -1;
+    private byte[] _pollsBody;
+
+    /**
+     *
+     * @param address   Address to listen on, e.g. 127.0.0.1
+     * @param port      Port to listen on
+     *
+     */
+    public StatusServer(PollingBot bot, String address, int port)
+                                                        throws IOException {
+        _bot = bot;
+        _executor = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactory() {
+                private int _count;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingBot-status-" + _count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        _server.setExecutor(_executor);
+        _server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch(RuntimeException re) {
+                    re.printStackTrace();
+                    respond(exchange, 500, null, "{\"error\": 500}");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        _server.start();
+        Log.info("Status endpoint on {}", _server.getAddress());
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+
+        String method = exchange.getRequestMethod();
+        if(!method.equals("GET") && !method.equals("HEAD")) {
+            respond(exchange, 405, null, "{\"error\": 405}");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        if(path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        if(path.equals("/status") || path.equals("")  || path.equals("/")) {
+            byte[] body = toBytes(getStatus());
+            respond(exchange, body, "\"s" + checksum(body) + "\"");
+
+        } else if(!_bot.isReady() && path.startsWith("/polls")) {
+            //
+            // Nothing to show until init() is done.
+            //
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            respond(exchange, 503, null, "{\"error\": 503}");
+
+        } else if(path.equals("/polls")) {
+            PollTable table = _bot.getPollTable();
+            long version = table.getVersion();
+            String tag = "\"p" + _started + "-" + version + "\"";
+            if(isCurrent(exchange, tag)) {
+                respond(exchange, 304, tag, null);
+                return;
+            }
+            byte[] body;
+            synchronized(this) {
+                if(_pollsVersion != version) {
+                    _pollsBody = toBytes(getPolls(table));
+                    _pollsVersion = version;
+                }
+                body = _pollsBody;
+            }
+            respond(exchange, body, tag);
+
+        } else if(path.startsWith("/polls/")) {
+            int pollId;
+            try {
+                pollId = Integer.parseInt(path.substring(7));
+            } catch(NumberFormatException nfe) {
+                respond(exchange, 404, null, "{\"error\": 404}");
+                return;
+            }
+            StringBuffer sb = new StringBuffer();
+            if(!_bot.getPollTable().visit(pollId, new PollWriter(sb))) {
+                respond(exchange, 404, null, "{\"error\": 404}");
+                return;
+            }
+            byte[] body = toBytes(sb.toString());
+            respond(exchange, body, "\"" + pollId + "-" +
+                                        checksum(body) + "\"");
+
+        } else {
+            respond(exchange, 404, null, "{\"error\": 404}");
+        }
+    }
+
+    /**
+     *
+     * Render bot health and queue depths.
+     *
+     */
+    private String getStatus() {
+
+        long now = System.currentTimeMillis();
+        long lastPass = _bot.getLastPass();
+
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\"bot\": ").append(quote(_bot.getName()));
+
+        if(!_bot.isReady()) {
+            //
+            // Still in init(), the services may not exist yet.
+            //
+            sb.append(", \"health\": ").append(quote(
+                            _bot.isStopping() ? "stopping" : "starting"));
+            sb.append(", \"uptimeSeconds\": ").append(
+                                                (now - _started) / 1000);
+            appendStartup(sb);
+            sb.append("}");
+            return sb.toString();
+        }
+
+        String health;
+        if(_bot.isStopping()) {
+            health = "stopping";
+        } else if(lastPass == 0) {
+            health = "starting";
+        } else if(now - lastPass > 3000L * _bot.getSleepSeconds() + 60000) {
+            health = "stalled";
+        } else {
+            health = "ok";
+        }
+
+        PollCreationService creation =
+                        _bot.getRequestCriteria().getCreationService();
+
+        sb.append(", \"instance\": ").append(
+                            quote(_bot.getLeases().getInstance()));
+        sb.append(", \"health\": ").append(quote(health));
+        sb.append(", \"uptimeSeconds\": ").append((now - _started) / 1000);
+        sb.append(", \"lastPassSecondsAgo\": ").append(
+                            lastPass == 0 ? -1 : (now - lastPass) / 1000);
+        sb.append(", \"coordinator\": ").append(
+                            _bot.getLeases().isCoordinator());
+
+        sb.append(", \"queues\": {");
+        sb.append("\"pollRequests\": ").append(creation.getQueueDepth());
+        sb.append(", \"pollRequestsActive\": ").append(
+                                                creation.getActiveCount());
+        sb.append(", \"suggestions\": ").append(
+                _bot.getSuggestCriteria().getDigest().getPendingCount());
+        sb.append(", \"redditCalls\": ").append(
+                                        _bot.getRetries().getPending());
+        sb.append(", \"edits\": ").append(_bot.getEditCount());
+        sb.append("}");
+
+        sb.append(", \"pollRequests\": {");
+        sb.append("\"submitted\": ").append(creation.getSubmitted());
+        sb.append(", \"created\": ").append(creation.getCreated());
+        sb.append(", \"refused\": ").append(creation.getRefused());
+        sb.append(", \"failed\": ").append(creation.getFailed());
+        sb.append(", \"rejected\": ").append(creation.getRejected());
+        sb.append(", \"meanLatencyMs\": ").append(creation.getMeanLatency());
+        sb.append("}");
+
+        sb.append(", \"failingEndpoints\": [");
+        List<String> open = _bot.getRetries().getOpenEndpoints();
+        for(int i = 0; i < open.size(); i++) {
+            if(i > 0) {
+                sb.append(", ");
+            }
+            sb.append(quote(open.get(i)));
+        }
+        sb.append("]");
+
+        sb.append(", \"activePolls\": ").append(_bot.getPollTable().size());
+        appendStartup(sb);
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     *
+     * Render the time taken by each startup step so far, and in total
+     * once started.
+     *
+     */
+    private void appendStartup(StringBuffer sb) {
+        Startup startup = _bot.getStartup();
+        if(startup == null) {
+            return;
+        }
+        sb.append(", \"startup\": {\"totalMs\": ").append(
+                                                    startup.getTotal());
+        sb.append(", \"stepsMs\": {");
+        boolean first = true;
+        for(Map.Entry<String, Long> step: 
+                                    startup.getTimings().entrySet()) {
+            if(!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(quote(step.getKey())).append(": ").append(
+                                                    step.getValue());
+        }
+        sb.append("}}");
+    }
+
+    private String getPolls(PollTable table) {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("{\"polls\": [");
+        final PollWriter writer = new PollWriter(sb);
+        table.visit(new PollTable.RowVisitor() {
+            private boolean _first = true;
+            public void visit( int pollId,
+                               String title,
+                               String account,
+                               String[] options,
+                               int[] votes,
+                               long votesTime,
+                               int[] published ) {
+                if(!_first) {
+                    sb.append(", ");
+                }
+                _first = false;
+                writer.visit(pollId, title, account, options,
+                             votes, votesTime, published);
+            }
+        });
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     *
+     * Renders one poll.
+     *
+     */
+    private static class PollWriter implements PollTable.RowVisitor {
+        private StringBuffer _sb;
+
+        public PollWriter(StringBuffer sb) {
+            _sb = sb;
+        }
+
+        public void visit(  int pollId,
+                            String title,
+                            String account,
+                            String[] options,
+                            int[] votes,
+                            long votesTime,
+                            int[] published ) {
+            int total = 0;
+            for(int i = 0; i < votes.length; i++) {
+                total += votes[i];
+            }
+
+            _sb.append("{\"id\": ").append(pollId);
+            _sb.append(", \"title\": ").append(quote(title));
+            _sb.append(", \"account\": ").append(quote(account));
+            _sb.append(", \"total\": ").append(
+                                        votesTime == 0 ? -1 : total);
+            _sb.append(", \"updated\": ").append(votesTime);
+            _sb.append(", \"options\": [");
+            for(int i = 0; i < options.length; i++) {
+                if(i > 0) {
+                    _sb.append(", ");
+                }
+                _sb.append("{\"option\": \"").append((char)('A' + i));
+                _sb.append("\", \"text\": ").append(quote(options[i]));
+                _sb.append(", \"votes\": ").append(
+                                        votesTime == 0 ? -1 : votes[i]);
+                _sb.append(", \"published\": ").append(
+                                published == null ? -1 : published[i]);
+                _sb.append("}");
+            }
+            _sb.append("]}");
+        }
+    }
+
+    private static boolean isCurrent(HttpExchange exchange, String tag) {
+        List<String> values =
+                    exchange.getRequestHeaders().get("If-None-Match");
+        if(values == null) {
+            return false;
+        }
+        for(String value: values) {
+            for(String candidate: value.split(",")) {
+                candidate = candidate.trim();
+                if(candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if(candidate.equals(tag) || candidate.equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange,
+                                byte[] body,
+                                String tag ) throws IOException {
+        if(isCurrent(exchange, tag)) {
+            respond(exchange, 304, tag, null);
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", tag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        send(exchange, 200, body);
+    }
+
+    private static void respond(HttpExchange exchange,
+                                int status,
+                                String tag,
+                                String body ) throws IOException {
+        if(tag != null) {
+            exchange.getResponseHeaders().set("ETag", tag);
+        }
+        send(exchange, status, body == null ? null : toBytes(body));
+    }
+
+    private static void send(   HttpExchange exchange,
+                                int status,
+                                byte[] body ) throws IOException {
+        if(body == null || exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                                    "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee);
+        }
+    }
+
+    private static String checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String quote(String s) {
+        if(s == null) {
+            return "null";
+        }
+        StringBuffer sb = new StringBuffer(s.length() + 2);
+        sb.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"':   sb.append("\\\""); break;
+                case '\\':  sb.append("\\\\"); break;
+                case '\n':  sb.append("\\n"); break;
+                case '\r':  sb.append("\\r"); break;
+                case '\t':  sb.append("\\t"); break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
@@ -0,0 +1,387 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.omrlnr.jreddit.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Collects potential poll matches and posts them to the suggestion 
+ * thread as periodic digest comments, rather than one comment per match.
+ *
+ * A digest is posted once enough matches are pending, or when the oldest
+ * pending match has waited long enough. Digests are split to stay under 
+ * reddit's comment length limit. The queue is bounded; while it is full
+ * a new match replaces the lowest scoring pending match if it scores 
+ * higher, and is turned away otherwise. A match turned away, pushed
+ * out, or still pending when the bot stops is taken out of the 
+ * criteria's seen-set, so a later crawl evaluates it again.
+ *
+ */
+public class SuggestionDigest implements Drainable {
+
+    //
+    // Max number of pending matches
+    //
+    private static final int MAX_PENDING = 500;
+
+    //
+    // Post a digest once this many matches are pending
+    //
+    private static final int DIGEST_SIZE = 25;
+
+    //
+    // Post a digest once the oldest match has waited this long, in ms
+    //
+    private static final long MAX_WAIT = 1000L * 60 * 15;
+
+    //
+    // Reddit rejects comments over 10000 characters. Leave room for the
+    // digest header and the bot's signature.
+    //
+    private static final int MAX_COMMENT_LENGTH = 9000;
+
+    //
+    // Longest excerpt of a matched body included in a digest
+    //
+    private static final int MAX_EXCERPT = 1000;
+
+    private static class Suggestion {
+        private Thing _thing;
+        private String _text;
+        private int _score;
+        private long _queued;
+
+        public Suggestion(Thing thing, String text, int score) {
+            _thing = thing;
+            _text = text;
+            _score = score;
+            _queued = System.currentTimeMillis();
+        }
+
+        public Thing getThing()     { return _thing; }
+        public String getId()       { return _thing.getId(); }
+        public String getText()     { return _text; }
+        public int getScore()       { return _score; }
+        public long getQueued()     { return _queued; }
+    }
+
+    private PollingBot _bot;
+    private SuggestionThreadCache _threads;
+    private BaseMatchCriteria _criteria;
+
+    //
+    // Pending matches, oldest first, and their ids. Guarded by this.
+    // Ids stay pending until recorded as replied, so a match crawled 
+    // again meanwhile is not queued twice.
+    //
+    private LinkedList<Suggestion> _pending = new LinkedList<Suggestion>();
+    private Set<String> _pendingIds = new HashSet<String>();
+
+    //
+    // Ids of the matches at the head of the queue being posted, null
+    // while no digest is being posted. Those can't be replaced. Only
+    // one digest is posted at a time. Guarded by this.
+    //
+    private List<String> _posting;
+    private RetryScheduler.Handle _post;
+
+    private ScheduledExecutorService _executor;
+
+    /**
+     *
+     * @param criteria  The criteria finding the matches, told to forget
+     *                  the matches which are not posted
+     *
+     */
+    public SuggestionDigest(PollingBot bot, 
+                            SuggestionThreadCache threads,
+                            BaseMatchCriteria criteria) {
+        _bot = bot;
+        _threads = threads;
+        _criteria = criteria;
+    }
+
+    public synchronized void start() {
+        if(_executor != null) {
+            return;
+        }
+        _executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingBot-digest");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    flush(false, Long.MAX_VALUE);
+                }
+            }, MAX_WAIT / 3, MAX_WAIT / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * Stop posting digests on a schedule. What is pending is posted by
+     * drain().
+     *
+     */
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized(this) {
+            executor = _executor;
+            _executor = null;
+        }
+        if(executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     *
+     * Queue a match for the next digest.
+     *
+     * @param score     How strongly the post looks like a poll
+     *
+     * @return false if the match is already queued or there is no room
+     *          for it
+     *
+     */
+    public boolean add(Thing thing, String body, int score) {
+
+        String url = thing.getUrl();
+        if(body.length() > MAX_EXCERPT) {
+            body = body.substring(0, MAX_EXCERPT) + "...";
+        }
+        String text = 
+            "Potential poll comment (score " + score + ") in " +
+            "/r/" + thing.getSubreddit() + " " +
+            thing.getCreatedDate() + "  \n\n" +
+            (url == null ? "" : url + "  \n\n") +
+            body + "  \n\n";
+
+        ScheduledExecutorService executor = null;
+        synchronized(this) {
+            if(_pendingIds.contains(thing.getId())) {
+                return false;
+            }
+            if(_pending.size() >= MAX_PENDING) {
+                Suggestion weakest = null;
+                int i = 0;
+                int posting = _posting == null ? 0 : _posting.size();
+                for(Suggestion suggestion: _pending) {
+                    if(i++ < posting) {
+                        continue;
+                    }
+                    if( weakest == null || 
+                        suggestion.getScore() < weakest.getScore()) {
+                        weakest = suggestion;
+                    }
+                }
+                if(weakest == null || weakest.getScore() >= score) {
+                    Log.warn("Suggestion digest full, deferring {}",
+                            thing.getId());
+                    return false;
+                }
+                _pending.remove(weakest);
+                _pendingIds.remove(weakest.getId());
+                _criteria.forget(weakest.getThing());
+            }
+            _pending.add(new Suggestion(thing, text, score));
+            _pendingIds.add(thing.getId());
+            if(_pending.size() >= DIGEST_SIZE) {
+                executor = _executor;
+            }
+        }
+
+        if(executor != null) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    flush(false, Long.MAX_VALUE);
+                }
+            });
+        }
+        return true;
+    }
+
+    public synchronized int getPendingCount() { return _pending.size(); }
+
+    public String getName() {
+        return "poll suggestions";
+    }
+
+    /**
+     *
+     * Post what is pending, no more digests once the deadline has 
+     * passed. Matches left over are forgotten by the criteria, so the
+     * next run evaluates them again.
+     *
+     */
+    public int drain(long deadline) {
+        stop();
+        try {
+            int before = getPendingCount();
+            while(flush(true, deadline)) {
+                synchronized(this) {
+                    while(_posting != null) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if(wait <= 0) {
+                            if(_post != null) {
+                                _post.cancel();
+                            }
+                            break;
+                        }
+                        wait(wait);
+                    }
+                }
+                //
+                // Give up once a digest could not be posted.
+                //
+                int after = getPendingCount();
+                if( System.currentTimeMillis() >= deadline ||
+                    after >= before) {
+                    break;
+                }
+                before = after;
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        List<Suggestion> left;
+        synchronized(this) {
+            left = new ArrayList<Suggestion>(_pending);
+        }
+        for(Suggestion suggestion: left) {
+            _criteria.forget(suggestion.getThing());
+        }
+        return left.size();
+    }
+
+    /**
+     *
+     * Post a digest of the pending matches in the background if one is
+     * due. When it is posted the next one is, until the queue is empty.
+     * The queue is only locked while taking a batch, not while posting,
+     * so crawlers adding matches never wait on reddit.
+     *
+     * @param force     Post regardless of size and age
+     * @param deadline  Time to stop posting, in ms since the epoch
+     *
+     * @return true if a digest is being posted
+     *
+     */
+    private boolean flush(final boolean force, final long deadline) {
+
+        if(System.currentTimeMillis() >= deadline) {
+            return false;
+        }
+
+        synchronized(this) {
+            if(_posting != null) {
+                return true;
+            }
+            if(_pending.size() == 0) {
+                return false;
+            }
+
+            boolean due = force || 
+                _pending.size() >= DIGEST_SIZE ||
+                System.currentTimeMillis() - 
+                        _pending.getFirst().getQueued() > MAX_WAIT;
+            if(!due) {
+                return false;
+            }
+        }
+
+        Submission thread = _threads.get();
+        if(thread == null) {
+            // Keep them for when a suggestion thread shows up.
+            return false;
+        }
+
+        //
+        // Take as many as fit in one comment. Only a posted digest 
+        // removes from the queue, so the batch stays at its head.
+        //
+        StringBuffer sb = new StringBuffer();
+        final List<String> ids = new ArrayList<String>();
+        synchronized(this) {
+            if(_posting != null) {
+                return true;
+            }
+            for(Suggestion suggestion: _pending) {
+                if( ids.size() > 0 && 
+                    sb.length() + suggestion.getText().length() + 6 
+                                            > MAX_COMMENT_LENGTH) {
+                    break;
+                }
+                sb.append(suggestion.getText());
+                sb.append("----\n\n");
+                ids.add(suggestion.getId());
+            }
+            if(ids.size() == 0) {
+                return false;
+            }
+            _posting = ids;
+        }
+
+        Log.info("Posting suggestion digest of {}", ids.size());
+
+        RetryScheduler.Handle post = _bot.sendComment(_bot.getUser(),
+            thread, 
+            ids.size() + " potential poll comments  \n\n" +
+            "----\n\n" +
+            sb.toString(),
+            deadline,
+            new RetryScheduler.Callback<String>() {
+                public void succeeded(String commentId) {
+                    if(commentId == null) {
+                        // Rate limited past our retries, try again later.
+                        posted(null);
+                        return;
+                    }
+                    _bot.getStore().setBotReplied(ids);
+                    posted(ids);
+                    flush(force, deadline);
+                }
+                public void failed(IOException cause) {
+                    posted(null);
+                }
+            });
+
+        synchronized(this) {
+            if(_posting == ids) {
+                _post = post;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * End posting a digest.
+     *
+     * @param ids   The ids posted, null if it was not posted
+     *
+     */
+    private synchronized void posted(List<String> ids) {
+        if(ids != null) {
+            List<Suggestion> done = _pending.subList(0, ids.size());
+            for(Suggestion suggestion: done) {
+                _criteria.setRecorded(suggestion.getThing());
+            }
+            done.clear();
+            _pendingIds.removeAll(ids);
+        }
+        _posting = null;
+        _post = null;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.omrlnr.jreddit.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Caches the poll suggestion thread of the suggestion subreddit.
+ *
+ * The thread is looked up from the subreddit's hot listing and kept for
+ * a TTL. A background task refreshes it well before it expires, so once
+ * warm, finding the thread costs no listing calls at all.
+ *
+ */
+public class SuggestionThreadCache {
+
+    //
+    // How long a lookup stays valid, in ms
+    //
+    private static final long TTL = 1000L * 60 * 30;
+
+    //
+    // How often the background task refreshes, in ms
+    //
+    private static final long REFRESH = TTL / 3;
+
+    //
+    // Listing size searched for the thread
+    //
+    private static final int LIMIT = 10;
+
+    private static final String SUGGESTIONS_TITLE = "poll suggestion";
+
+    private PollingBot _bot;
+
+    //
+    // The thread found by the last lookup, null if there was none.
+    //
+    private volatile Submission _thread;
+
+    //
+    // When the last lookup completed, 0 if never.
+    //
+    private volatile long _resolved;
+
+    private ScheduledExecutorService _executor;
+
+    public SuggestionThreadCache(PollingBot bot) {
+        _bot = bot;
+    }
+
+    /**
+     *
+     * Start refreshing in the background.
+     *
+     */
+    public synchronized void start() {
+        if(_executor != null) {
+            return;
+        }
+        _executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PollingBot-suggestions");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            }, 0, REFRESH, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if(_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    /**
+     *
+     * Return the suggestion thread, or null if there is none.
+     * Only looks it up when the cache is cold or has expired, 
+     * which happens if background refreshes keep failing.
+     *
+     */
+    public Submission get() {
+        if(System.currentTimeMillis() - _resolved > TTL) {
+            refresh();
+        }
+        return _thread;
+    }
+
+    /**
+     *
+     * Look up the suggestion thread.
+     *
+     */
+    public synchronized void refresh() {
+
+        String subreddit = _bot.getSuggestionSub();
+        if(subreddit == null || subreddit.equals("")) {
+            _thread = null;
+            _resolved = System.currentTimeMillis();
+            return;
+        }
+
+        Log.info("Looking for suggestions thread");
+
+        try {
+            List<Submission> submissions =
+                    Submissions.getSubmissions(
+                                    _bot.getUser(),
+                                    subreddit,
+                                    Submissions.ListingType.HOT,
+                                    LIMIT,
+                                    (String)null,
+                                    (String)null );
+
+            Submission found = null;
+            for(Submission submission: submissions) {
+                if(submission.getTitle().toLowerCase().indexOf(SUGGESTIONS_TITLE) != -1) {
+                    found = submission;
+                    break;
+                }
+            }
+
+            if(found == null) {
+                Log.warn("No suggestions thread in {}", subreddit);
+            }
+
+            _thread = found;
+            _resolved = System.currentTimeMillis();
+
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            Log.error("caught {}", ioe);
+        }
+    }
+
+}
@@ -0,0 +1,349 @@
+package com.jreddit.pollingbot;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * An append-only log of votes, kept in memory-mapped segment files.
+ *
+ * Each segment starts with a small header and holds fixed-width records
+ * of (time, poll id, user id, option, checksum). Appending is a handful
+ * of puts into the mapping; making the records durable is a separate
+ * sync(), so many votes share one fsync.
+ *
+ * Segments are never rewritten. Once their votes are safely in the poll
+ * store they are sealed and deleted.
+ *
+ */
+public class VoteJournal {
+
+    /**
+     *
+     * Receives the records of a journal as it is replayed.
+     *
+     */
+    public interface Replayer {
+        void replay(long time, int pollId, int userId, int option);
+    }
+
+    private static final int MAGIC = 0x50564a31;    // "PVJ1"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 24;
+
+    //
+    // Records per segment. 64k records is about 1.5MB.
+    //
+    private static final int SEGMENT_RECORDS = 65536;
+    private static final int SEGMENT_SIZE =
+                            HEADER_SIZE + RECORD_SIZE * SEGMENT_RECORDS;
+
+    private static final String PREFIX = "votes-";
+    private static final String SUFFIX = ".seg";
+
+    private File _dir;
+
+    //
+    // The segment being appended to.
+    //
+    private long _sequence;
+    private File _file;
+    private RandomAccessFile _raf;
+    private MappedByteBuffer _buffer;
+
+    //
+    // True when records were appended since the last sync.
+    //
+    private boolean _dirty;
+
+    //
+    // Segments whose records are all written, oldest first.
+    //
+    private List<File> _sealed = new ArrayList<File>();
+
+    public VoteJournal(File dir) {
+        _dir = dir;
+    }
+
+    /**
+     *
+     * Replay any existing segments, oldest first, then start a new one.
+     * Replay of a segment stops at the first empty or torn record.
+     *
+     * @return the number of records replayed
+     *
+     */
+    public int open(Replayer replayer) throws IOException {
+        return open(replayer, 0, 0);
+    }
+
+    /**
+     *
+     * Replay the records from a position returned by getPosition(), 
+     * then start a new segment. Earlier records are skipped, though their
+     * segments are kept until the next delete().
+     *
+     * @return the number of records replayed
+     *
+     */
+    public synchronized int open(   Replayer replayer, 
+                                    long fromSequence, 
+                                    long fromOffset ) throws IOException {
+
+        if(!_dir.isDirectory() && !_dir.mkdirs()) {
+            throw new IOException("Cannot create " + _dir);
+        }
+
+        File[] files = _dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+
+        int count = 0;
+        for(File file: files) {
+            long sequence = parseSequence(file);
+            if(sequence < 0) {
+                continue;
+            }
+            if(sequence > fromSequence) {
+                count += replay(file, replayer, HEADER_SIZE);
+            } else if(sequence == fromSequence) {
+                count += replay(file, replayer, 
+                                Math.max(HEADER_SIZE, fromOffset));
+            }
+            _sealed.add(file);
+            _sequence = Math.max(_sequence, sequence);
+        }
+
+        startSegment();
+        return count;
+    }
+
+    /**
+     *
+     * Return true if the segment is still on disk, i.e. no records
+     * from it on have been deleted.
+     *
+     */
+    public boolean hasSegment(long sequence) {
+        return getSegmentFile(sequence).exists();
+    }
+
+    /**
+     *
+     * Append a vote. It is not durable until the next sync().
+     *
+     */
+    public synchronized void append(    long time,
+                                        int pollId,
+                                        int userId,
+                                        int option ) throws IOException {
+
+        if(_buffer == null) {
+            throw new IOException("Journal is closed");
+        }
+        if(_buffer.remaining() < RECORD_SIZE) {
+            sealSegment();
+            startSegment();
+        }
+
+        _buffer.putLong(time);
+        _buffer.putInt(pollId);
+        _buffer.putInt(userId);
+        _buffer.putInt(option);
+        _buffer.putInt(checksum(time, pollId, userId, option));
+        _dirty = true;
+    }
+
+    /**
+     *
+     * Force appended records to disk.
+     *
+     * Appends continue while the force is in progress; the records they
+     * write go out with the next sync.
+     *
+     */
+    public void sync() {
+        MappedByteBuffer buffer;
+        synchronized(this) {
+            if(!_dirty || _buffer == null) {
+                return;
+            }
+            buffer = _buffer;
+            _dirty = false;
+        }
+        buffer.force();
+    }
+
+    /**
+     *
+     * Seal the current segment and start a new one.
+     *
+     * @return every sealed segment, whose records are no longer appended
+     *         to and may be deleted once they are in the poll store
+     *
+     */
+    public synchronized List<File> seal() throws IOException {
+        if(_buffer != null && _buffer.position() > HEADER_SIZE) {
+            sealSegment();
+            startSegment();
+        }
+        return new ArrayList<File>(_sealed);
+    }
+
+    /**
+     *
+     * Delete sealed segments.
+     *
+     */
+    public synchronized void delete(List<File> segments) {
+        for(File file: segments) {
+            if(!file.delete() && file.exists()) {
+                Log.warn("Could not delete journal {}", file);
+            }
+            _sealed.remove(file);
+        }
+    }
+
+    /**
+     *
+     * Sync and close the current segment.
+     *
+     */
+    public synchronized void close() {
+        if(_buffer == null) {
+            return;
+        }
+        _buffer.force();
+        try {
+            _raf.close();
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+        }
+        _buffer = null;
+        _raf = null;
+    }
+
+    /**
+     *
+     * Return the current segment and the offset of the next record in it.
+     *
+     */
+    public synchronized long[] getPosition() {
+        return new long[] { _sequence,
+                            _buffer == null ? 0 : _buffer.position() };
+    }
+
+    private void startSegment() throws IOException {
+        _sequence++;
+        _file = getSegmentFile(_sequence);
+        _raf = new RandomAccessFile(_file, "rw");
+        _buffer = _raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        _buffer.putInt(MAGIC);
+        _buffer.putInt(VERSION);
+        _buffer.putLong(_sequence);
+        _dirty = true;
+    }
+
+    private void sealSegment() throws IOException {
+        _buffer.force();
+        _raf.close();
+        _sealed.add(_file);
+        _buffer = null;
+        _raf = null;
+        _dirty = false;
+    }
+
+    private File getSegmentFile(long sequence) {
+        return new File(_dir, 
+                    PREFIX + String.format("%016d", sequence) + SUFFIX);
+    }
+
+    private int replay( File file, 
+                        Replayer replayer, 
+                        long offset ) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = Math.min(raf.length(), SEGMENT_SIZE);
+            if(length < HEADER_SIZE) {
+                return 0;
+            }
+
+            MappedByteBuffer buffer = raf.getChannel().map(
+                                FileChannel.MapMode.READ_ONLY, 0, length);
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.warn("Skipping unknown journal {}", file);
+                return 0;
+            }
+            buffer.getLong();
+
+            if(offset > length) {
+                return 0;
+            }
+            buffer.position((int)offset);
+
+            int count = 0;
+            while(buffer.remaining() >= RECORD_SIZE) {
+                long time = buffer.getLong();
+                int pollId = buffer.getInt();
+                int userId = buffer.getInt();
+                int option = buffer.getInt();
+                int check = buffer.getInt();
+
+                if(check == 0) {
+                    // End of the records written.
+                    break;
+                }
+                if(check != checksum(time, pollId, userId, option)) {
+                    Log.warn("Torn record in journal {} after {} records",
+                            file, count);
+                    break;
+                }
+
+                replayer.replay(time, pollId, userId, option);
+                count++;
+            }
+            return count;
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(
+                    name.substring(PREFIX.length(),
+                                   name.length() - SUFFIX.length()));
+        } catch(NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    //
+    // Never zero, so a zero checksum marks the end of the records.
+    //
+    private static int checksum(long time, int pollId,
+                                int userId, int option) {
+        int h = (int)(time ^ (time >>> 32));
+        h = h * 31 + pollId;
+        h = h * 31 + userId;
+        h = h * 31 + option;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h == 0 ? 1 : h;
+    }
+
+}
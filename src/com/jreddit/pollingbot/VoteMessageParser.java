@@ -0,0 +1,316 @@
+package com.jreddit.pollingbot;
+
+/**
+ *
+ * Parses the votes in a private message.
+ *
+ * The vote links in a poll compose a message with the subject "Poll N"
+ * and the body "vote x". People also type votes by hand, so the parser
+ * is lenient about case, spacing and URL encoding ("Poll+12",
+ * "vote%20b"), and a body may hold several votes as poll:option pairs:
+ *
+ *      vote c
+ *      12:a 15:c
+ *      poll 12 vote a, poll 15 vote c
+ *
+ * An option letter only counts after "vote", "option", a poll number or
+ * a colon, or when it is all the body says, so free text doesn't cast
+ * votes. A bare option is for the poll named in the subject. If a poll
+ * appears more than once, the last option wins.
+ *
+ * The subject and body are scanned in place, and the result is reused
+ * by the next parse, so parsing allocates nothing. Not thread safe; use
+ * one parser per thread.
+ *
+ */
+public class VoteMessageParser {
+
+    //
+    // Most votes taken from one message
+    //
+    public static final int MAX_VOTES = 16;
+
+    //
+    // Longest token looked at. Longer words are ignored, longer numbers
+    // are not poll ids.
+    //
+    private static final int MAX_TOKEN = 16;
+
+    private static final int END     = 0;
+    private static final int NUMBER  = 1;
+    private static final int LETTER  = 2;
+    private static final int WORD    = 3;
+    private static final int COLON   = 4;
+
+    private static final char[] POLL    = "poll".toCharArray();
+    private static final char[] VOTE    = "vote".toCharArray();
+    private static final char[] OPTION  = "option".toCharArray();
+
+    /**
+     *
+     * The votes found in a message. Reused by the next parse.
+     *
+     */
+    public static class Result {
+        private int[] _polls = new int[MAX_VOTES];
+        private int[] _options = new int[MAX_VOTES];
+        private int _count;
+
+        public int getCount()           { return _count; }
+        public int getPollId(int i)     { return _polls[i]; }
+        public int getOption(int i)     { return _options[i]; }
+
+        private void clear() {
+            _count = 0;
+        }
+
+        private void add(int pollId, int option) {
+            for(int i = 0; i < _count; i++) {
+                if(_polls[i] == pollId) {
+                    _options[i] = option;
+                    return;
+                }
+            }
+            if(_count < MAX_VOTES) {
+                _polls[_count] = pollId;
+                _options[_count] = option;
+                _count++;
+            }
+        }
+    }
+
+    private Result _result = new Result();
+
+    //
+    // Scanner state
+    //
+    private CharSequence _text;
+    private int _pos;
+    private char[] _token = new char[MAX_TOKEN];
+    private int _tokenLength;
+    private int _number;
+
+    /**
+     *
+     * Parse the votes in a message.
+     *
+     * @param subject   The message subject, may be null
+     * @param body      The message body, may be null
+     *
+     * @return the votes found, valid until the next call
+     *
+     */
+    public Result parse(CharSequence subject, CharSequence body) {
+
+        _result.clear();
+
+        //
+        // The subject names the poll for bare options.
+        //
+        int subjectPoll = -1;
+        reset(subject);
+        int kind;
+        while((kind = next()) != END) {
+            if(kind == NUMBER) {
+                subjectPoll = _number;
+                break;
+            }
+        }
+
+        reset(body);
+        int pendingPoll = -1;
+        boolean expectOption = false;
+        int tokens = 0;
+        int loneOption = -1;
+
+        while((kind = next()) != END) {
+            tokens++;
+
+            switch(kind) {
+
+                case NUMBER:
+                    pendingPoll = _number;
+                    expectOption = true;
+                    break;
+
+                case COLON:
+                    // Joins a poll to its option
+                    break;
+
+                case LETTER:
+                    int option = _token[0] - 'a';
+                    if(tokens == 1) {
+                        loneOption = option;
+                    }
+                    if(expectOption) {
+                        int pollId = pendingPoll != -1 ?
+                                                pendingPoll : subjectPoll;
+                        if(pollId != -1) {
+                            _result.add(pollId, option);
+                        }
+                    }
+                    pendingPoll = -1;
+                    expectOption = false;
+                    break;
+
+                default:
+                    if(isToken(VOTE) || isToken(OPTION)) {
+                        expectOption = true;
+                    } else if(!isToken(POLL)) {
+                        pendingPoll = -1;
+                        expectOption = false;
+                    }
+                    break;
+            }
+        }
+
+        if(_result.getCount() == 0 && tokens == 1 &&
+                    loneOption != -1 && subjectPoll != -1) {
+            _result.add(subjectPoll, loneOption);
+        }
+
+        _text = null;
+        return _result;
+    }
+
+    private void reset(CharSequence text) {
+        _text = text;
+        _pos = 0;
+    }
+
+    /**
+     *
+     * Scan the next token into _token, lower case, or _number if it is
+     * a number.
+     *
+     * @return the kind of token
+     *
+     */
+    private int next() {
+
+        if(_text == null) {
+            return END;
+        }
+
+        //
+        // Skip separators
+        //
+        char c = 0;
+        while(_pos < _text.length()) {
+            c = peek();
+            if(isAlphaNumeric(c) || c == ':') {
+                break;
+            }
+            advance();
+        }
+        if(_pos >= _text.length()) {
+            return END;
+        }
+
+        if(c == ':') {
+            advance();
+            return COLON;
+        }
+
+        _tokenLength = 0;
+        boolean digits = true;
+        boolean letters = true;
+        boolean overflow = false;
+        long number = 0;
+
+        while(_pos < _text.length()) {
+            c = peek();
+            if(!isAlphaNumeric(c)) {
+                break;
+            }
+            advance();
+
+            if(c >= '0' && c <= '9') {
+                letters = false;
+                number = number * 10 + (c - '0');
+                if(number > Integer.MAX_VALUE) {
+                    overflow = true;
+                    number = 0;
+                }
+            } else {
+                digits = false;
+                c = (char)(c | 0x20);
+            }
+
+            if(_tokenLength < MAX_TOKEN) {
+                _token[_tokenLength] = c;
+            }
+            _tokenLength++;
+        }
+
+        if(digits) {
+            if(overflow || _tokenLength > MAX_TOKEN) {
+                return WORD;
+            }
+            _number = (int)number;
+            return NUMBER;
+        }
+        if(letters && _tokenLength == 1) {
+            return LETTER;
+        }
+        return WORD;
+    }
+
+    /**
+     *
+     * Return the character at the scan position, decoding a %XX escape.
+     *
+     */
+    private char peek() {
+        char c = _text.charAt(_pos);
+        if(c == '%' && _pos + 2 < _text.length()) {
+            int hi = hex(_text.charAt(_pos + 1));
+            int lo = hex(_text.charAt(_pos + 2));
+            if(hi != -1 && lo != -1) {
+                return (char)(hi << 4 | lo);
+            }
+        }
+        return c;
+    }
+
+    private void advance() {
+        char c = _text.charAt(_pos);
+        if(c == '%' && _pos + 2 < _text.length() &&
+            hex(_text.charAt(_pos + 1)) != -1 &&
+            hex(_text.charAt(_pos + 2)) != -1) {
+            _pos += 3;
+        } else {
+            _pos++;
+        }
+    }
+
+    private boolean isToken(char[] word) {
+        if(_tokenLength != word.length) {
+            return false;
+        }
+        for(int i = 0; i < word.length; i++) {
+            if(_token[i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlphaNumeric(char c) {
+        return (c >= '0' && c <= '9') ||
+               (c >= 'a' && c <= 'z') ||
+               (c >= 'A' && c <= 'Z');
+    }
+
+    private static int hex(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        c = (char)(c | 0x20);
+        if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+}
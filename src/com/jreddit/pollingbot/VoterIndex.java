@@ -0,0 +1,284 @@
+package com.jreddit.pollingbot;
+
+import java.util.*;
+
+/**
+ *
+ * Remembers the current vote of each voter in recently active polls, so
+ * repeat votes are turned away without going to the store.
+ *
+ * Each poll has an open addressing table keyed by a 64-bit hash of the
+ * voter name, holding the voter's name and option. A hash match is
+ * confirmed against the name before a vote is rejected, so turning a
+ * vote away never calls the store. A poll's table is filled from the
+ * store's votes the first time the poll is voted in; a voter not in it
+ * goes to the store, and the outcome is remembered. Polls without 
+ * votes for a while are evicted.
+ *
+ * Votes must go through castVote() to keep the tables in step with the
+ * store. A vote is only remembered once the store has it. In 
+ * partitioned mode the polls of shards this instance loses are 
+ * evicted, as other instances take their votes meanwhile.
+ *
+ */
+public class VoterIndex {
+
+    //
+    // Most polls indexed at once
+    //
+    private static final int MAX_POLLS = 256;
+
+    //
+    // Polls without a vote for this long are evicted, in ms
+    //
+    private static final long COOL_TIME = 1000L * 60 * 30;
+
+    //
+    // Most voters remembered per poll. Voters past this still vote,
+    // through the store.
+    //
+    private static final int MAX_VOTERS = 1 << 20;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     *
+     * The voters of one poll. Slots with a zero hash are empty.
+     *
+     */
+    private static class Voters {
+        private int _options;
+        private long _lastVote;
+
+        private long[] _hashes = new long[INITIAL_CAPACITY];
+        private String[] _names = new String[INITIAL_CAPACITY];
+        private byte[] _votes = new byte[INITIAL_CAPACITY];
+        private int _size;
+
+        public Voters(int options) {
+            _options = options;
+        }
+
+        /**
+         * Return the slot of the hash, or the empty slot it would go in.
+         */
+        private int find(long hash) {
+            int mask = _hashes.length - 1;
+            int i = (int)(hash ^ (hash >>> 32)) & mask;
+            while(_hashes[i] != 0 && _hashes[i] != hash) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        public void put(long hash, String name, int option) {
+            int i = find(hash);
+            if(_hashes[i] == 0) {
+                if(_size >= MAX_VOTERS) {
+                    return;
+                }
+                if(2 * (_size + 1) > _hashes.length) {
+                    grow();
+                    i = find(hash);
+                }
+                _size++;
+            }
+            _hashes[i] = hash;
+            _names[i] = name;
+            _votes[i] = (byte)option;
+        }
+
+        private void grow() {
+            long[] hashes = _hashes;
+            String[] names = _names;
+            byte[] votes = _votes;
+
+            _hashes = new long[hashes.length * 2];
+            _names = new String[hashes.length * 2];
+            _votes = new byte[hashes.length * 2];
+
+            for(int j = 0; j < hashes.length; j++) {
+                if(hashes[j] != 0) {
+                    int i = find(hashes[j]);
+                    _hashes[i] = hashes[j];
+                    _names[i] = names[j];
+                    _votes[i] = votes[j];
+                }
+            }
+        }
+    }
+
+    private PollStore _store;
+    private PollTable _table;
+
+    //
+    // poll id => voters, least recently voted in first. Guarded by itself.
+    //
+    private LinkedHashMap<Integer, Voters> _polls =
+                new LinkedHashMap<Integer, Voters>(64, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                                    Map.Entry<Integer, Voters> eldest) {
+                        return size() > MAX_POLLS;
+                    }
+                };
+
+    public VoterIndex(PollStore store, PollTable polls) {
+        _store = store;
+        _table = polls;
+    }
+
+    /**
+     *
+     * Cast or change a user's vote, see PollStore.castVote().
+     *
+     * @return true if the user's effective vote changed
+     *
+     */
+    public boolean castVote(String username, int id, int option) {
+
+        Voters voters = getVoters(id);
+        long hash = hash(username);
+
+        if(voters != null) {
+            synchronized(voters) {
+                voters._lastVote = System.currentTimeMillis();
+
+                if(option < 0 || option >= voters._options) {
+                    return false;
+                }
+
+                int i = voters.find(hash);
+                if( voters._hashes[i] == hash &&
+                    voters._votes[i] == option &&
+                    username.equals(voters._names[i])) {
+                    // Same vote again.
+                    return false;
+                }
+            }
+        }
+
+        boolean ret = _store.castVote(username, id, option);
+
+        if(voters != null) {
+            int userId = _store.internUser(username);
+
+            //
+            // The store also says false when it already had this vote,
+            // or when the vote failed. Only the first is remembered.
+            //
+            if(userId != -1 && (ret || _store.getVote(id, userId) == option)) {
+                synchronized(voters) {
+                    voters.put(hash, username, option);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Forget a poll, e.g. when it closes.
+     *
+     */
+    public void evict(int id) {
+        synchronized(_polls) {
+            _polls.remove(Integer.valueOf(id));
+        }
+    }
+
+    /**
+     *
+     * Return the ids of the polls indexed.
+     *
+     */
+    public List<Integer> getPollIds() {
+        synchronized(_polls) {
+            return new ArrayList<Integer>(_polls.keySet());
+        }
+    }
+
+    /**
+     *
+     * Return the number of polls indexed.
+     *
+     */
+    public int size() {
+        synchronized(_polls) {
+            return _polls.size();
+        }
+    }
+
+    /**
+     *
+     * Return the voters of a poll, adding the poll if needed. Polls which
+     * have cooled off are evicted on the way.
+     *
+     * @return the voters, or null if the poll has no options
+     *
+     */
+    private Voters getVoters(int id) {
+
+        long now = System.currentTimeMillis();
+
+        synchronized(_polls) {
+
+            Iterator<Voters> it = _polls.values().iterator();
+            while(it.hasNext()) {
+                Voters eldest = it.next();
+                synchronized(eldest) {
+                    if(now - eldest._lastVote < COOL_TIME) {
+                        break;
+                    }
+                }
+                it.remove();
+            }
+
+            Voters voters = _polls.get(Integer.valueOf(id));
+            if(voters != null) {
+                return voters;
+            }
+        }
+
+        int options = _table.getOptionCount(id);
+        if(options == 0) {
+            return null;
+        }
+
+        //
+        // Fill the table from the store before anyone uses it.
+        //
+        final Voters loaded = new Voters(options);
+        loaded._lastVote = now;
+        synchronized(loaded) {
+            _store.visitVotes(id, new PollStore.VoteVisitor() {
+                public void vote(String username, int option) {
+                    loaded.put(hash(username), username, option);
+                }
+            });
+        }
+
+        synchronized(_polls) {
+            Voters voters = _polls.get(Integer.valueOf(id));
+            if(voters == null) {
+                voters = loaded;
+                _polls.put(Integer.valueOf(id), voters);
+            }
+            return voters;
+        }
+    }
+
+    /**
+     *
+     * 64-bit FNV-1a hash of a name, never zero.
+     *
+     */
+    private static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.jreddit.pollingbot.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import com.jreddit.pollingbot.*;
+
+/**
+ *
+ * Throughput of potential poll detection on a corpus of comments:
+ * PollPhraseMatcher with the default phrases, next to the regex it
+ * replaced run on a lower case copy of each body.
+ *
+ * The corpus is a text file of one comment per line. Lines starting
+ * with '{' are taken as JSON objects, e.g. a reddit comment dump, and
+ * their "body" is used. Without a corpus a synthetic one is made up.
+ *
+ * Besides the time taken, prints how many comments each finds and how
+ * far they agree. They are not expected to agree exactly: the matcher
+ * needs whole words, and scores a comparison on a later line lower.
+ *
+ * Usage: PhraseMatcherBench [corpus] [passes]
+ *
+ */
+public class PhraseMatcherBench {
+
+    private static final int PASSES = 5;
+    private static final int SYNTHETIC_COMMENTS = 200000;
+
+    //
+    // The potential poll regex used before PollPhraseMatcher
+    //
+    private static final Pattern OLD_PATTERN = Pattern.compile(
+        "(who|what|when|where) (is|are|were) (.*)?(better|best|worse|worst)");
+
+    private static final Pattern JSON_BODY = Pattern.compile(
+        "\"body\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private static final String[] WORDS = new String[] {
+        "the", "a", "is", "are", "what", "who", "where", "when", "best",
+        "better", "worst", "worse", "game", "team", "season", "bestow",
+        "whatever", "i", "think", "this", "that", "was", "were", "really",
+        "good", "bad", "movie", "album", "player", "ever", "and", "or" };
+
+    public static void main(String[] args) throws IOException {
+
+        List<String> corpus;
+        if(args.length > 0 && !args[0].equals("")) {
+            corpus = read(new File(args[0]));
+            System.out.println("Read " + corpus.size() +
+                                " comments from " + args[0]);
+        } else {
+            corpus = synthesize(SYNTHETIC_COMMENTS, new Random(1));
+            System.out.println("Made up " + corpus.size() + " comments");
+        }
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : PASSES;
+
+        long chars = 0;
+        for(String body: corpus) {
+            chars += body.length();
+        }
+
+        PollPhraseMatcher matcher = new PollPhraseMatcher(
+                                PollPhraseMatcher.DEFAULT_QUESTIONS,
+                                PollPhraseMatcher.DEFAULT_VERBS,
+                                PollPhraseMatcher.DEFAULT_COMPARISONS,
+                                PollPhraseMatcher.DEFAULT_MIN_SCORE );
+
+        //
+        // Which comments each one finds.
+        //
+        int both = 0;
+        int oldOnly = 0;
+        int newOnly = 0;
+        for(String body: corpus) {
+            boolean old = OLD_PATTERN.matcher(body.toLowerCase()).find();
+            boolean found = matcher.match(body) > 0;
+            if(old && found) {
+                both++;
+            } else if(old) {
+                oldOnly++;
+            } else if(found) {
+                newOnly++;
+            }
+        }
+        System.out.println("Found by both " + both +
+                            ", only the regex " + oldOnly +
+                            ", only the matcher " + newOnly);
+
+        //
+        // The first pass warms up.
+        //
+        for(int pass = 0; pass <= passes; pass++) {
+
+            long start = System.nanoTime();
+            int matches = 0;
+            for(String body: corpus) {
+                if(OLD_PATTERN.matcher(body.toLowerCase()).find()) {
+                    matches++;
+                }
+            }
+            long regex = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int scored = 0;
+            for(String body: corpus) {
+                if(matcher.match(body) > 0) {
+                    scored++;
+                }
+            }
+            long automaton = System.nanoTime() - start;
+
+            if(pass == 0) {
+                continue;
+            }
+            System.out.println("Pass " + pass +
+                    ": regex " + rate(chars, regex) + " MB/s (" +
+                    matches + "), matcher " + rate(chars, automaton) +
+                    " MB/s (" + scored + ")");
+        }
+    }
+
+    private static String rate(long chars, long nanos) {
+        double mb = chars / (1024.0 * 1024.0);
+        double seconds = nanos / 1e9;
+        return String.format("%.1f", mb / seconds);
+    }
+
+    /**
+     *
+     * Read a corpus, one comment per line.
+     *
+     */
+    private static List<String> read(File file) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.startsWith("{")) {
+                    Matcher m = JSON_BODY.matcher(line);
+                    if(!m.find()) {
+                        continue;
+                    }
+                    line = unescape(m.group(1));
+                }
+                ret.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Undo the escapes of a JSON string.
+     *
+     */
+    private static String unescape(String s) {
+        StringBuffer sb = new StringBuffer(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c != '\\' || i + 1 >= s.length()) {
+                sb.append(c);
+                continue;
+            }
+            c = s.charAt(++i);
+            switch(c) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if(i + 4 < s.length()) {
+                        try {
+                            sb.append((char)Integer.parseInt(
+                                            s.substring(i + 1, i + 5), 16));
+                            i += 4;
+                            break;
+                        } catch(NumberFormatException nfe) {
+                            // Keep it as it is.
+                        }
+                    }
+                    sb.append("\\u");
+                    break;
+                default:  sb.append(c); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     *
+     * Make up comments of random words over a few lines, some of them
+     * poll like.
+     *
+     */
+    private static List<String> synthesize(int count, Random random) {
+        List<String> ret = new ArrayList<String>(count);
+        StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < count; i++) {
+            sb.setLength(0);
+            int words = 5 + random.nextInt(80);
+            for(int j = 0; j < words; j++) {
+                if(j > 0) {
+                    sb.append(random.nextInt(15) == 0 ? "\n" : " ");
+                }
+                String word = WORDS[random.nextInt(WORDS.length)];
+                if(random.nextInt(8) == 0) {
+                    word = Character.toUpperCase(word.charAt(0)) +
+                                                    word.substring(1);
+                }
+                sb.append(word);
+            }
+            ret.add(sb.toString());
+        }
+        return ret;
+    }
+
+}
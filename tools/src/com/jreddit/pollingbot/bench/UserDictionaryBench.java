@@ -0,0 +1,203 @@
+package com.jreddit.pollingbot.bench;
+
+import java.io.*;
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+import com.jreddit.pollingbot.*;
+
+/**
+ *
+ * Size and lookup speed of poll_votes keyed by user id, against the
+ * layout before schema version 3 which kept the voter name in every
+ * row.
+ *
+ * The same random votes are cast into both. The current layout goes
+ * through PersistenceUtils, as the bot does; the old one gets the rows
+ * inserted directly into a second db next to it. Both are vacuumed
+ * before their sizes are compared, then the same random lookups are
+ * timed, each opening a connection the way isVotePresent() does.
+ * Finally interning known names is timed, which the cache answers.
+ *
+ * Writes only to the db named by the pollingbot.db system property,
+ * which must already hold the current schema (pollingbot.sql), and to
+ * a db beside it ending in -v2.db.
+ *
+ * Usage: UserDictionaryBench [users] [polls] [votes] [lookups]
+ *
+ */
+public class UserDictionaryBench {
+
+    private static final int USERS = 5000;
+    private static final int POLLS = 100;
+    private static final int VOTES = 20000;
+    private static final int LOOKUPS = 20000;
+
+    private static final int OPTIONS = 4;
+
+    public static void main(String[] args) throws Exception {
+
+        String path = System.getProperty(PersistenceUtils.DB_PROPERTY);
+        if(path == null || !new File(path).exists()) {
+            System.out.println("Set -D" + PersistenceUtils.DB_PROPERTY +
+                        " to a scratch db created from pollingbot.sql");
+            System.exit(2);
+        }
+
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : USERS;
+        int polls = args.length > 1 ? Integer.parseInt(args[1]) : POLLS;
+        int votes = args.length > 2 ? Integer.parseInt(args[2]) : VOTES;
+        int lookups = args.length > 3 ? Integer.parseInt(args[3]) : LOOKUPS;
+
+        File current = new File(path);
+        File old = new File(path.replaceFirst("(\\.db)?$", "-v2.db"));
+        old.delete();
+
+        Random random = new Random(1);
+
+        String[] names = new String[users];
+        for(int i = 0; i < users; i++) {
+            //
+            // Reddit names are 3 to 20 characters.
+            //
+            StringBuffer sb = new StringBuffer("u");
+            int length = 2 + random.nextInt(18);
+            while(sb.length() < length) {
+                sb.append((char)('a' + random.nextInt(26)));
+            }
+            names[i] = sb.append(i).toString();
+        }
+
+        int[] pollIds = new int[polls];
+        String[] options = new String[OPTIONS];
+        for(int i = 0; i < OPTIONS; i++) {
+            options[i] = "Option " + i;
+        }
+        for(int i = 0; i < polls; i++) {
+            pollIds[i] = PersistenceUtils.createPoll("bench" + i,
+                                                    "Poll " + i, "bench");
+            PersistenceUtils.setPollOptions(pollIds[i], options);
+        }
+
+        int[] votePolls = new int[votes];
+        int[] voteUsers = new int[votes];
+        int[] voteOptions = new int[votes];
+        for(int i = 0; i < votes; i++) {
+            votePolls[i] = pollIds[random.nextInt(polls)];
+            voteUsers[i] = random.nextInt(users);
+            voteOptions[i] = random.nextInt(OPTIONS);
+        }
+
+        //
+        // Current layout, one transaction per vote as the bot does.
+        //
+        long start = System.nanoTime();
+        for(int i = 0; i < votes; i++) {
+            PersistenceUtils.castVote(  names[voteUsers[i]],
+                                        votePolls[i],
+                                        voteOptions[i] );
+        }
+        long took = System.nanoTime() - start;
+        System.out.println("Cast " + votes + " votes by " + users +
+                            " users in " + polls + " polls, " +
+                            (took / 1000 / votes) + " us each");
+
+        //
+        // Old layout: a user's first vote in a poll stands, as it did.
+        //
+        SQLiteConnection db = new SQLiteConnection(old);
+        db.open(true);
+        db.exec("CREATE TABLE poll_votes " +
+                "(poll_id INTEGER, option_num INTEGER, username TEXT)");
+        db.exec("BEGIN");
+        Set<String> voted = new HashSet<String>();
+        SQLiteStatement st = db.prepare(
+                "INSERT INTO poll_votes (poll_id, option_num, username) " +
+                " VALUES (?, ?, ?)");
+        try {
+            for(int i = 0; i < votes; i++) {
+                String name = names[voteUsers[i]];
+                if(!voted.add(votePolls[i] + " " + name)) {
+                    continue;
+                }
+                st.bind(1, votePolls[i]);
+                st.bind(2, voteOptions[i]);
+                st.bind(3, name);
+                st.step();
+                st.reset();
+            }
+        } finally {
+            st.dispose();
+        }
+        db.exec("COMMIT");
+        db.exec("VACUUM");
+        db.dispose();
+
+        db = new SQLiteConnection(current);
+        db.open(false);
+        db.exec("VACUUM");
+        db.dispose();
+
+        System.out.println("Size with names " + old.length() +
+                            " bytes, with user ids " + current.length() +
+                            " bytes, " + voted.size() + " votes");
+
+        //
+        // Lookups of random voters, about half of them present.
+        //
+        int[] lookupPolls = new int[lookups];
+        String[] lookupNames = new String[lookups];
+        for(int i = 0; i < lookups; i++) {
+            lookupPolls[i] = pollIds[random.nextInt(polls)];
+            lookupNames[i] = names[random.nextInt(users)];
+        }
+
+        start = System.nanoTime();
+        int found = 0;
+        for(int i = 0; i < lookups; i++) {
+            if(PersistenceUtils.isVotePresent(lookupNames[i],
+                                              lookupPolls[i])) {
+                found++;
+            }
+        }
+        took = System.nanoTime() - start;
+        System.out.println("Lookups by user id: " +
+                            (took / 1000 / lookups) + " us each (" +
+                            found + " found)");
+
+        start = System.nanoTime();
+        found = 0;
+        for(int i = 0; i < lookups; i++) {
+            db = new SQLiteConnection(old);
+            db.open(false);
+            st = db.prepare(
+                "SELECT username " +
+                " FROM poll_votes " +
+                " WHERE username = ? AND poll_id = ?");
+            try {
+                st.bind(1, lookupNames[i]);
+                st.bind(2, lookupPolls[i]);
+                if(st.step()) {
+                    found++;
+                }
+            } finally {
+                st.dispose();
+            }
+            db.dispose();
+        }
+        took = System.nanoTime() - start;
+        System.out.println("Lookups by name: " +
+                            (took / 1000 / lookups) + " us each (" +
+                            found + " found)");
+
+        start = System.nanoTime();
+        for(int i = 0; i < lookups; i++) {
+            PersistenceUtils.internUser(lookupNames[i]);
+        }
+        took = System.nanoTime() - start;
+        System.out.println("Interning known names: " +
+                            (took / lookups) + " ns each");
+    }
+
+}
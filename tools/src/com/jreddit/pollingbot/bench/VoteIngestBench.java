@@ -0,0 +1,199 @@
+package com.jreddit.pollingbot.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.jreddit.pollingbot.*;
+
+/**
+ *
+ * Sustained vote ingestion with and without the vote journal.
+ *
+ * Several threads cast random votes by distinct voters as fast as they
+ * can, first into the store alone and then into a JournaledPollStore in
+ * front of a fresh store of the same kind, with its background syncs
+ * running. The journaled run ends with a checkpoint writing the votes
+ * to the store, which is timed too. Prints votes per second for each.
+ *
+ * The store is in memory by default, which shows the cost of the
+ * journal itself. With "sqlite" it is the SQLite store, which must be
+ * given a scratch db created from pollingbot.sql with the pollingbot.db
+ * system property; each run then starts from a copy of it.
+ *
+ * Usage: VoteIngestBench [votes] [threads] [memory|sqlite] [journal dir]
+ *
+ */
+public class VoteIngestBench {
+
+    private static final int VOTES = 200000;
+    private static final int THREADS = 4;
+    private static final int POLLS = 100;
+    private static final int OPTIONS = 4;
+
+    private static final String JOURNAL_DIR = "build/bench/journal";
+
+    public static void main(String[] args) throws Exception {
+
+        int votes = args.length > 0 ? Integer.parseInt(args[0]) : VOTES;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : THREADS;
+        boolean sqlite = args.length > 2 && args[2].equals("sqlite");
+        File dir = new File(args.length > 3 ? args[3] : JOURNAL_DIR);
+
+        if(sqlite) {
+            String path = System.getProperty(PersistenceUtils.DB_PROPERTY);
+            if(path == null || !new File(path).exists()) {
+                System.out.println("Set -D" + PersistenceUtils.DB_PROPERTY +
+                        " to a scratch db created from pollingbot.sql");
+                System.exit(2);
+            }
+        }
+
+        System.out.println("Casting " + votes + " votes from " + threads +
+                            " threads into the " +
+                            (sqlite ? "SQLite" : "in-memory") + " store");
+
+        File empty = null;
+        if(sqlite) {
+            empty = new File(System.getProperty(
+                            PersistenceUtils.DB_PROPERTY) + ".empty");
+            copy(new File(System.getProperty(
+                            PersistenceUtils.DB_PROPERTY)), empty);
+        }
+
+        PollStore store = newStore(sqlite, empty);
+        store.open();
+        int[] polls = createPolls(store);
+        double rate = cast(store, polls, votes, threads);
+        store.close();
+        System.out.println("Store alone: " + (long)rate + " votes/s");
+
+        delete(dir);
+        JournaledPollStore journaled =
+                    new JournaledPollStore(newStore(sqlite, empty), dir);
+        journaled.open();
+        polls = createPolls(journaled);
+        rate = cast(journaled, polls, votes, threads);
+        System.out.println("Journaled: " + (long)rate + " votes/s");
+
+        long start = System.nanoTime();
+        journaled.sync();
+        journaled.checkpoint();
+        long took = (System.nanoTime() - start) / 1000000;
+        System.out.println("Checkpoint of the journaled votes: " +
+                            took + " ms");
+
+        journaled.close();
+        delete(dir);
+        if(empty != null) {
+            empty.delete();
+        }
+    }
+
+    /**
+     *
+     * Return a fresh store. The SQLite store is emptied by copying back
+     * the db as it was before the first run.
+     *
+     */
+    private static PollStore newStore(boolean sqlite, File empty)
+                                                    throws IOException {
+        if(!sqlite) {
+            return new MemoryPollStore();
+        }
+        copy(empty, new File(System.getProperty(
+                                    PersistenceUtils.DB_PROPERTY)));
+        return new SQLitePollStore();
+    }
+
+    private static int[] createPolls(PollStore store) {
+        String[] options = new String[OPTIONS];
+        for(int i = 0; i < OPTIONS; i++) {
+            options[i] = "Option " + i;
+        }
+        int[] polls = new int[POLLS];
+        for(int i = 0; i < POLLS; i++) {
+            polls[i] = store.createPoll("bench" + i, "Poll " + i, "bench");
+            store.setPollOptions(polls[i], options);
+        }
+        return polls;
+    }
+
+    /**
+     *
+     * Cast votes from several threads.
+     *
+     * @return the votes cast per second
+     *
+     */
+    private static double cast( final PollStore store,
+                                final int[] polls,
+                                int votes,
+                                int threads ) throws InterruptedException {
+
+        final AtomicInteger next = new AtomicInteger();
+        final int total = votes;
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for(int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        go.await();
+                        int i;
+                        while((i = next.getAndIncrement()) < total) {
+                            store.castVote( "voter" + i,
+                                            polls[random.nextInt(
+                                                        polls.length)],
+                                            random.nextInt(OPTIONS) );
+                        }
+                    } catch(InterruptedException ie) {
+                        // Done
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "VoteIngestBench-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long took = System.nanoTime() - start;
+        return votes / (took / 1e9);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[65536];
+                int n;
+                while((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,395 @@
+package com.jreddit.pollingbot.bench;
+
+import java.lang.management.*;
+import java.util.*;
+
+import com.jreddit.pollingbot.*;
+
+/**
+ *
+ * Fuzz test and microbenchmark for VoteMessageParser.
+ *
+ * The fuzz test parses random messages built from vote words, numbers,
+ * letters, separators, escapes and junk, checking that the parser never
+ * throws and that every result is sane: at most MAX_VOTES votes, no
+ * poll twice, options a to z, and the same result when parsed again.
+ * It also builds well formed messages of several votes in every syntax
+ * the parser takes, in random case, spacing and escaping, and checks
+ * that exactly those votes come back.
+ *
+ * The benchmark times parsing typical vote messages, next to the split()
+ * and parseInt() parsing the message loop used to do, and reports the
+ * bytes allocated per message where the JVM can tell.
+ *
+ * Usage: VoteParserBench [fuzz cases] [benchmark iterations]
+ *
+ * Exits with 1 if the fuzz test fails.
+ *
+ */
+public class VoteParserBench {
+
+    private static final int FUZZ_CASES = 200000;
+    private static final int ITERATIONS = 2000000;
+
+    //
+    // Pieces the random messages are made of
+    //
+    private static final String[] JUNK = new String[] {
+        "poll", "Poll", "POLL", "vote", "Vote", "option", "OPTION", "a",
+        "B", "z", "q", "12", "0", "007", "2147483647", "2147483648",
+        "99999999999999999999", ":", "::", " ", "  ", "\n", "\t", ",",
+        "+", "%20", "%3A", "%2", "%", "%zz", "%41", "abc", "thanks",
+        "\u00e9", "\u2603", "\ud83d\ude00", "\ud83d", "-", "#", "." };
+
+    private static final String[] SEPARATORS = new String[] {
+        " ", "  ", ", ", ",", "\n", "\n\n", "+", "%20", "%0A", " \t" };
+
+    //
+    // Typical messages: the vote links, hand typed votes and several
+    // votes at once
+    //
+    private static final String[][] MESSAGES = new String[][] {
+        { "Poll 1234", "vote b" },
+        { "Poll+1234", "vote+c" },
+        { "poll 88", "Vote A" },
+        { "Poll 1234", "12:a 15:c 19:d" },
+        { "votes", "poll 12 vote a, poll 15 vote c" },
+        { "Poll%201234", "vote%20d" } };
+
+    private Random _random;
+    private StringBuffer _sb = new StringBuffer();
+    private int _failures;
+
+    public VoteParserBench(long seed) {
+        _random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : FUZZ_CASES;
+        int iterations = args.length > 1 ?
+                                Integer.parseInt(args[1]) : ITERATIONS;
+
+        long seed = System.currentTimeMillis();
+        System.out.println("Fuzzing " + cases + " messages, seed " + seed);
+
+        VoteParserBench bench = new VoteParserBench(seed);
+        bench.fuzz(cases);
+        if(bench._failures > 0) {
+            System.out.println(bench._failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("Fuzz test passed");
+
+        bench.benchmark(iterations);
+    }
+
+    /**
+     *
+     * Parse random junk and well formed votes.
+     *
+     */
+    public void fuzz(int cases) {
+
+        VoteMessageParser parser = new VoteMessageParser();
+
+        for(int i = 0; i < cases && _failures < 10; i++) {
+
+            String subject = junk(_random.nextInt(6));
+            String body = junk(_random.nextInt(30));
+            check(parser, subject, body);
+
+            //
+            // Well formed votes, up to a few more than are taken.
+            //
+            int count = 1 + _random.nextInt(VoteMessageParser.MAX_VOTES + 4);
+            int[] polls = new int[count];
+            int[] options = new int[count];
+            for(int j = 0; j < count; j++) {
+                //
+                // Few distinct polls, so some are voted in twice.
+                //
+                polls[j] = 1 + _random.nextInt(
+                            _random.nextBoolean() ? 20 : 1000000);
+                options[j] = _random.nextInt(26);
+            }
+            expect(parser, votes(polls, options), polls, options);
+        }
+    }
+
+    /**
+     *
+     * Check the result of parsing a message is sane.
+     *
+     */
+    private void check( VoteMessageParser parser,
+                        String subject,
+                        String body ) {
+
+        VoteMessageParser.Result result;
+        try {
+            result = parser.parse(subject, body);
+        } catch(RuntimeException re) {
+            fail(subject, body, re.toString());
+            return;
+        }
+
+        int count = result.getCount();
+        if(count < 0 || count > VoteMessageParser.MAX_VOTES) {
+            fail(subject, body, "count " + count);
+            return;
+        }
+
+        int[] polls = new int[count];
+        int[] options = new int[count];
+        Set<Integer> seen = new HashSet<Integer>();
+        for(int i = 0; i < count; i++) {
+            polls[i] = result.getPollId(i);
+            options[i] = result.getOption(i);
+            if(polls[i] < 0) {
+                fail(subject, body, "poll " + polls[i]);
+            }
+            if(options[i] < 0 || options[i] >= 26) {
+                fail(subject, body, "option " + options[i]);
+            }
+            if(!seen.add(Integer.valueOf(polls[i]))) {
+                fail(subject, body, "poll " + polls[i] + " twice");
+            }
+        }
+
+        //
+        // Same again, also from a CharSequence other than a String.
+        //
+        result = parser.parse(new StringBuilder(subject),
+                              new StringBuilder(body));
+        if(!isResult(result, polls, options)) {
+            fail(subject, body, "not repeatable");
+        }
+    }
+
+    /**
+     *
+     * Parse a message of known votes, checking exactly those are found:
+     * the last option of each poll, for the first MAX_VOTES polls.
+     *
+     */
+    private void expect(    VoteMessageParser parser,
+                            String body,
+                            int[] polls,
+                            int[] options ) {
+
+        LinkedHashMap<Integer, Integer> expected =
+                                    new LinkedHashMap<Integer, Integer>();
+        for(int i = 0; i < polls.length; i++) {
+            Integer pollId = Integer.valueOf(polls[i]);
+            if( expected.containsKey(pollId) ||
+                expected.size() < VoteMessageParser.MAX_VOTES) {
+                expected.put(pollId, Integer.valueOf(options[i]));
+            }
+        }
+
+        int[] wantPolls = new int[expected.size()];
+        int[] wantOptions = new int[expected.size()];
+        int i = 0;
+        for(Map.Entry<Integer, Integer> entry: expected.entrySet()) {
+            wantPolls[i] = entry.getKey().intValue();
+            wantOptions[i] = entry.getValue().intValue();
+            i++;
+        }
+
+        String subject = random(new String[] { "", "votes", "Re: poll" });
+        VoteMessageParser.Result result;
+        try {
+            result = parser.parse(subject, body);
+        } catch(RuntimeException re) {
+            fail(subject, body, re.toString());
+            return;
+        }
+        if(!isResult(result, wantPolls, wantOptions)) {
+            fail(subject, body, "expected " + expected);
+        }
+    }
+
+    private static boolean isResult(    VoteMessageParser.Result result,
+                                        int[] polls,
+                                        int[] options ) {
+        if(result.getCount() != polls.length) {
+            return false;
+        }
+        for(int i = 0; i < polls.length; i++) {
+            if( result.getPollId(i) != polls[i] ||
+                result.getOption(i) != options[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fail(String subject, String body, String why) {
+        _failures++;
+        System.out.println("FAILED " + why +
+                            "\n  subject: " + escape(subject) +
+                            "\n  body:    " + escape(body));
+    }
+
+    /**
+     *
+     * Return a message body casting the votes, each in a random syntax.
+     *
+     */
+    private String votes(int[] polls, int[] options) {
+        _sb.setLength(0);
+        for(int i = 0; i < polls.length; i++) {
+            if(i > 0) {
+                _sb.append(random(SEPARATORS));
+            }
+            String poll = Integer.toString(polls[i]);
+            String option = String.valueOf((char)('a' + options[i]));
+            String space = random(new String[] { " ", "+", "%20", "  " });
+            switch(_random.nextInt(5)) {
+                case 0:
+                    _sb.append(poll).append(":").append(option);
+                    break;
+                case 1:
+                    _sb.append(poll).append(" : ").append(option);
+                    break;
+                case 2:
+                    _sb.append("poll").append(space).append(poll)
+                       .append(space).append("vote").append(space)
+                       .append(option);
+                    break;
+                case 3:
+                    _sb.append("poll").append(space).append(poll)
+                       .append(space).append("option").append(space)
+                       .append(option);
+                    break;
+                default:
+                    _sb.append(poll).append(space).append(option);
+                    break;
+            }
+        }
+        return randomCase(_sb.toString());
+    }
+
+    private String junk(int pieces) {
+        StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < pieces; i++) {
+            if(_random.nextInt(10) == 0) {
+                sb.append((char)_random.nextInt(0x10000));
+            } else {
+                sb.append(random(JUNK));
+            }
+        }
+        return randomCase(sb.toString());
+    }
+
+    private String randomCase(String s) {
+        if(_random.nextBoolean()) {
+            return s;
+        }
+        char[] chars = s.toCharArray();
+        for(int i = 0; i < chars.length; i++) {
+            if(_random.nextBoolean()) {
+                chars[i] = Character.toUpperCase(chars[i]);
+            }
+        }
+        return new String(chars);
+    }
+
+    private String random(String[] choices) {
+        return choices[_random.nextInt(choices.length)];
+    }
+
+    private static String escape(String s) {
+        StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c >= 0x20 && c < 0x7f) {
+                sb.append(c);
+            } else {
+                sb.append("\\u").append(
+                        Integer.toHexString(0x10000 | c).substring(1));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     *
+     * Time the parser against split() parsing.
+     *
+     */
+    public void benchmark(int iterations) {
+
+        final VoteMessageParser parser = new VoteMessageParser();
+
+        Parse scanner = new Parse() {
+            public int parse(String subject, String body) {
+                VoteMessageParser.Result result =
+                                        parser.parse(subject, body);
+                return result.getCount() == 0 ? 0 : result.getOption(0);
+            }
+        };
+
+        //
+        // What the message loop did before VoteMessageParser. It only
+        // understands "Poll N" / "vote x".
+        //
+        Parse split = new Parse() {
+            public int parse(String subject, String body) {
+                try {
+                    String[] parts = subject.split(" ");
+                    int pollId = Integer.parseInt(parts[1]);
+                    String[] words = body.split(" ");
+                    return pollId + words[1].charAt(0) - 'a';
+                } catch(RuntimeException re) {
+                    return -1;
+                }
+            }
+        };
+
+        //
+        // Warm up, then measure.
+        //
+        time("scanner", scanner, iterations / 10);
+        time("split", split, iterations / 10);
+        time("scanner", scanner, iterations);
+        time("split", split, iterations);
+    }
+
+    private interface Parse {
+        int parse(String subject, String body);
+    }
+
+    private static void time(String name, Parse parse, int iterations) {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = null;
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            allocations = (com.sun.management.ThreadMXBean)threads;
+        }
+        long id = Thread.currentThread().getId();
+
+        long allocated = allocations == null ? 0 :
+                            allocations.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        int sink = 0;
+        for(int i = 0; i < iterations; i++) {
+            String[] message = MESSAGES[i % MESSAGES.length];
+            sink += parse.parse(message[0], message[1]);
+        }
+        long took = System.nanoTime() - start;
+
+        StringBuffer sb = new StringBuffer();
+        sb.append(name).append(": ").append(iterations).append(" messages, ")
+          .append(took / Math.max(1, iterations)).append(" ns each");
+        if(allocations != null) {
+            allocated = allocations.getThreadAllocatedBytes(id) - allocated;
+            sb.append(", ").append(allocated / Math.max(1, iterations))
+              .append(" bytes allocated each");
+        }
+        sb.append(" (").append(sink).append(")");
+        System.out.println(sb.toString());
+    }
+
+}
@@ -0,0 +1,936 @@
+package com.jreddit.pollingbot.loadtest;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ *
+ * A stand-in for the parts of the reddit API the bot uses, for load
+ * testing without live accounts.
+ *
+ * jReddit talks to http://www.reddit.com, so the server is used as the
+ * HTTP proxy of the bot's JVM (see useAsProxy()); it answers every
+ * request itself, whatever host it was meant for. It serves logins,
+ * the inbox, subreddit listings, comment threads, lookups by id, user
+ * comment histories, and comment creation and edits, from an in-memory
+ * model of things.
+ *
+ * Every endpoint has a Rule with a scripted latency and a chance of
+ * failing with a server error or a rate limit. Rules may be changed
+ * while the server runs, to script slowdowns and outages.
+ *
+ */
+public class FakeReddit {
+
+    /**
+     *
+     * Told of comments the bot posts and edits, on a server thread.
+     *
+     */
+    public interface Listener {
+        void commentPosted(String id, String author, String body, long time);
+        void commentEdited(String id, String author, String body, long time);
+    }
+
+    /**
+     *
+     * Behaviour of one endpoint.
+     *
+     */
+    public static class Rule {
+        private long _latency;
+        private long _jitter;
+        private double _errorRate;
+        private double _rateLimitRate;
+        private int _rateLimitSeconds;
+
+        /**
+         *
+         * @param latency           Time taken by each request, in ms
+         * @param jitter            Up to this much more, in ms
+         * @param errorRate         Chance of a 503
+         * @param rateLimitRate     Chance of a rate limit, posts only
+         * @param rateLimitSeconds  Retry time of a rate limit
+         *
+         */
+        public Rule(    long latency,
+                        long jitter,
+                        double errorRate,
+                        double rateLimitRate,
+                        int rateLimitSeconds ) {
+            _latency = latency;
+            _jitter = jitter;
+            _errorRate = errorRate;
+            _rateLimitRate = rateLimitRate;
+            _rateLimitSeconds = rateLimitSeconds;
+        }
+
+        /**
+         *
+         * Read a rule from properties, e.g. fake.edit.latency. Missing
+         * settings come from the fallback rule.
+         *
+         */
+        public static Rule load(Properties props, String prefix, Rule fallback) {
+            return new Rule(
+                getLong(props, prefix + ".latency", fallback._latency),
+                getLong(props, prefix + ".jitter", fallback._jitter),
+                getDouble(props, prefix + ".errorRate", fallback._errorRate),
+                getDouble(props, prefix + ".rateLimitRate",
+                                                fallback._rateLimitRate),
+                (int)getLong(props, prefix + ".rateLimitSeconds",
+                                                fallback._rateLimitSeconds));
+        }
+
+        public String toString() {
+            return _latency + "+" + _jitter + "ms, " +
+                    _errorRate + " errors, " +
+                    _rateLimitRate + " rate limits of " +
+                    _rateLimitSeconds + "s";
+        }
+    }
+
+    //
+    // Endpoints, the names rules and counts go by
+    //
+    public static final String[] ENDPOINTS = new String[] {
+        "login", "me", "inbox", "read", "comment", "edit",
+        "info", "thread", "user", "listing" };
+
+    /**
+     *
+     * A link, comment or message.
+     *
+     */
+    private static class Item {
+        private String _kind;
+        private String _id;
+        private String _author;
+        private String _subreddit;
+        private String _parent;
+        private String _link;
+        private String _title;
+        private String _body;
+        private String _dest;
+        private long _created;
+        private volatile boolean _unread = true;
+
+        public String getName() {
+            return _kind + "_" + _id;
+        }
+    }
+
+    private HttpServer _server;
+    private ExecutorService _executor;
+
+    private Map<String, Rule> _rules = new ConcurrentHashMap<String, Rule>();
+    private Random _random = new Random();
+
+    private AtomicLong _nextId = new AtomicLong(36L * 36 * 36 * 36);
+
+    //
+    // Things by full name, e.g. t1_abcde
+    //
+    private Map<String, Item> _items = new ConcurrentHashMap<String, Item>();
+
+    //
+    // Subreddit => links, newest last. Guarded by itself.
+    //
+    private Map<String, List<Item>> _listings =
+                                        new HashMap<String, List<Item>>();
+
+    //
+    // User => messages, oldest first. Guarded by _inboxes.
+    //
+    private Map<String, List<Item>> _inboxes =
+                                        new HashMap<String, List<Item>>();
+
+    //
+    // Link => comments, in order posted. Guarded by itself.
+    //
+    private Map<String, List<Item>> _threads =
+                                        new HashMap<String, List<Item>>();
+
+    //
+    // Session cookie => user
+    //
+    private Map<String, String> _sessions =
+                                    new ConcurrentHashMap<String, String>();
+
+    private List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+
+    //
+    // endpoint => requests, and the same for injected failures
+    //
+    private Map<String, AtomicInteger> _requests =
+                                new ConcurrentHashMap<String, AtomicInteger>();
+    private Map<String, AtomicInteger> _errors =
+                                new ConcurrentHashMap<String, AtomicInteger>();
+    private Map<String, AtomicInteger> _rateLimits =
+                                new ConcurrentHashMap<String, AtomicInteger>();
+    private AtomicInteger _unknown = new AtomicInteger();
+
+    /**
+     *
+     * @param port      Port to listen on, 0 for any
+     * @param threads   Requests served at once
+     * @param rule      Rule of every endpoint, until changed
+     *
+     */
+    public FakeReddit(int port, int threads, Rule rule) throws IOException {
+        for(String endpoint: ENDPOINTS) {
+            _rules.put(endpoint, rule);
+            _requests.put(endpoint, new AtomicInteger());
+            _errors.put(endpoint, new AtomicInteger());
+            _rateLimits.put(endpoint, new AtomicInteger());
+        }
+        _executor = Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                private int _count;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FakeReddit-" + _count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _server = HttpServer.create(
+                        new InetSocketAddress("127.0.0.1", port), 256);
+        _server.setExecutor(_executor);
+        _server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch(RuntimeException re) {
+                    re.printStackTrace();
+                    respond(exchange, 500, "{}");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        _server.start();
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    /**
+     *
+     * Send this JVM's plain HTTP traffic to the server, local addresses
+     * included.
+     *
+     */
+    public void useAsProxy() {
+        System.setProperty("http.proxyHost", "127.0.0.1");
+        System.setProperty("http.proxyPort", "" + getPort());
+        System.setProperty("http.nonProxyHosts", "");
+    }
+
+    public void setRule(String endpoint, Rule rule) {
+        if(!_rules.containsKey(endpoint)) {
+            throw new IllegalArgumentException("No endpoint " + endpoint);
+        }
+        _rules.put(endpoint, rule);
+    }
+
+    public Rule getRule(String endpoint) {
+        return _rules.get(endpoint);
+    }
+
+    public void addListener(Listener listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     *
+     * Post a link, a self post if the text is not null.
+     *
+     * @return the link's full name
+     *
+     */
+    public String submit(   String subreddit,
+                            String author,
+                            String title,
+                            String text ) {
+        Item item = newItem("t3", author);
+        item._subreddit = subreddit;
+        item._title = title;
+        item._body = text;
+        synchronized(_listings) {
+            List<Item> links = _listings.get(subreddit.toLowerCase());
+            if(links == null) {
+                links = new ArrayList<Item>();
+                _listings.put(subreddit.toLowerCase(), links);
+            }
+            links.add(item);
+        }
+        _items.put(item.getName(), item);
+        return item.getName();
+    }
+
+    /**
+     *
+     * Send a private message.
+     *
+     * @return the message's full name
+     *
+     */
+    public String sendMessage(  String from,
+                                String to,
+                                String subject,
+                                String body ) {
+        Item item = newItem("t4", from);
+        item._dest = to;
+        item._title = subject;
+        item._body = body;
+        _items.put(item.getName(), item);
+        synchronized(_inboxes) {
+            List<Item> inbox = _inboxes.get(to.toLowerCase());
+            if(inbox == null) {
+                inbox = new ArrayList<Item>();
+                _inboxes.put(to.toLowerCase(), inbox);
+            }
+            inbox.add(item);
+        }
+        return item.getName();
+    }
+
+    /**
+     * Return the number of unread messages of every user.
+     */
+    public int getUnread() {
+        int count = 0;
+        synchronized(_inboxes) {
+            for(List<Item> inbox: _inboxes.values()) {
+                count += inbox.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * Print the requests served and failures injected per endpoint.
+     *
+     */
+    public void report(PrintStream out) {
+        out.println("Endpoint     requests   errors  ratelimits  rule");
+        for(String endpoint: ENDPOINTS) {
+            out.println(String.format("%-10s %10d %8d %11d  %s",
+                            endpoint,
+                            _requests.get(endpoint).get(),
+                            _errors.get(endpoint).get(),
+                            _rateLimits.get(endpoint).get(),
+                            _rules.get(endpoint)));
+        }
+        out.println("Unknown requests: " + _unknown.get());
+    }
+
+    private Item newItem(String kind, String author) {
+        Item item = new Item();
+        item._kind = kind;
+        item._id = Long.toString(_nextId.getAndIncrement(), 36);
+        item._author = author;
+        item._created = System.currentTimeMillis();
+        return item;
+    }
+
+    /**
+     *
+     * Answer one request.
+     *
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> params =
+                        parseForm(exchange.getRequestURI().getRawQuery());
+        if("POST".equals(exchange.getRequestMethod())) {
+            params.putAll(parseForm(readBody(exchange)));
+        }
+
+        if(path.endsWith(".json")) {
+            path = path.substring(0, path.length() - 5);
+        }
+        if(path.endsWith("/") && path.length() > 1) {
+            path = path.substring(0, path.length() - 1);
+        }
+        String[] parts = path.substring(1).split("/");
+
+        String endpoint = getEndpoint(path, parts);
+        if(endpoint == null) {
+            _unknown.incrementAndGet();
+            System.err.println("FakeReddit: unknown request " +
+                    exchange.getRequestMethod() + " " +
+                    exchange.getRequestURI());
+            respond(exchange, 404, "{\"error\": 404}");
+            return;
+        }
+        _requests.get(endpoint).incrementAndGet();
+
+        //
+        // Scripted behaviour
+        //
+        Rule rule = _rules.get(endpoint);
+        double error;
+        double rateLimit;
+        long delay;
+        synchronized(_random) {
+            delay = rule._latency +
+                    (long)(_random.nextDouble() * rule._jitter);
+            error = _random.nextDouble();
+            rateLimit = _random.nextDouble();
+        }
+        if(delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(error < rule._errorRate) {
+            _errors.get(endpoint).incrementAndGet();
+            respond(exchange, 503, "{\"error\": 503}");
+            return;
+        }
+        if( "POST".equals(exchange.getRequestMethod()) &&
+            rateLimit < rule._rateLimitRate) {
+            _rateLimits.get(endpoint).incrementAndGet();
+            respond(exchange, 200,
+                "{\"json\": {\"ratelimit\": " + rule._rateLimitSeconds +
+                ", \"errors\": [[\"RATELIMIT\", \"you are doing that too " +
+                "much. try again in " + rule._rateLimitSeconds +
+                " seconds.\", \"ratelimit\"]]}}");
+            return;
+        }
+
+        String user = getUser(exchange);
+
+        if(endpoint.equals("login")) {
+            login(exchange, params, parts);
+        } else if(endpoint.equals("me")) {
+            respond(exchange, 200, "{\"kind\": \"t2\", \"data\": {" +
+                        "\"name\": " + quote(user) +
+                        ", \"modhash\": \"fake\"}}");
+        } else if(endpoint.equals("inbox")) {
+            inbox(exchange, params, user,
+                        path.indexOf("/unread") != -1);
+        } else if(endpoint.equals("read")) {
+            markRead(exchange, params);
+        } else if(endpoint.equals("comment")) {
+            comment(exchange, params, user);
+        } else if(endpoint.equals("edit")) {
+            edit(exchange, params, user);
+        } else if(endpoint.equals("info")) {
+            info(exchange, params, parts);
+        } else if(endpoint.equals("thread")) {
+            thread(exchange, parts);
+        } else if(endpoint.equals("user")) {
+            userComments(exchange, params, parts);
+        } else {
+            listing(exchange, params, parts);
+        }
+    }
+
+    private static String getEndpoint(String path, String[] parts) {
+        if(path.startsWith("/api/login")) {
+            return "login";
+        }
+        if(path.startsWith("/api/me")) {
+            return "me";
+        }
+        if(path.startsWith("/message/")) {
+            return "inbox";
+        }
+        if( path.startsWith("/api/read_message") ||
+            path.startsWith("/api/read_all_messages")) {
+            return "read";
+        }
+        if(path.equals("/api/comment")) {
+            return "comment";
+        }
+        if(path.equals("/api/editusertext")) {
+            return "edit";
+        }
+        if(path.startsWith("/api/info") || path.startsWith("/by_id/")) {
+            return "info";
+        }
+        int comments = Arrays.asList(parts).indexOf("comments");
+        if( comments != -1 && comments + 1 < parts.length &&
+            (comments == 0 || parts[0].equals("r"))) {
+            return "thread";
+        }
+        if( parts.length >= 3 &&
+            (parts[0].equals("user") || parts[0].equals("u"))) {
+            return "user";
+        }
+        if(parts.length >= 2 && parts[0].equals("r")) {
+            return "listing";
+        }
+        return null;
+    }
+
+    private void login( HttpExchange exchange,
+                        Map<String, String> params,
+                        String[] parts ) throws IOException {
+        String user = params.get("user");
+        if(user == null && parts.length > 2) {
+            user = parts[2];
+        }
+        if(user == null) {
+            respond(exchange, 200, "{\"json\": {\"errors\": " +
+                        "[[\"WRONG_PASSWORD\", \"invalid password\", " +
+                        "\"passwd\"]]}}");
+            return;
+        }
+        String cookie = user + "," + Long.toString(
+                                _nextId.getAndIncrement(), 36) + ",fake";
+        _sessions.put(cookie, user);
+        exchange.getResponseHeaders().add("Set-Cookie",
+                            "reddit_session=" + cookie + "; Path=/");
+        respond(exchange, 200, "{\"json\": {\"errors\": [], \"data\": {" +
+                    "\"modhash\": \"fake\", \"cookie\": " + quote(cookie) +
+                    "}}}");
+    }
+
+    /**
+     * Return the user of the request's session, null if none.
+     */
+    private String getUser(HttpExchange exchange) {
+        List<String> cookies = exchange.getRequestHeaders().get("Cookie");
+        if(cookies == null) {
+            return null;
+        }
+        for(String header: cookies) {
+            for(String cookie: header.split(";")) {
+                cookie = cookie.trim();
+                if(cookie.startsWith("reddit_session=")) {
+                    String value = decode(cookie.substring(15));
+                    String user = _sessions.get(value);
+                    if(user != null) {
+                        return user;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void inbox( HttpExchange exchange,
+                        Map<String, String> params,
+                        String user,
+                        boolean unreadOnly ) throws IOException {
+        int limit = getLimit(params);
+        List<Item> page = new ArrayList<Item>();
+        if(user != null) {
+            synchronized(_inboxes) {
+                List<Item> inbox = _inboxes.get(user.toLowerCase());
+                if(inbox != null) {
+                    for(int i = inbox.size() - 1;
+                            i >= 0 && page.size() < limit; i--) {
+                        Item item = inbox.get(i);
+                        if(!unreadOnly || item._unread) {
+                            page.add(item);
+                        }
+                    }
+                }
+            }
+        }
+        respond(exchange, 200, toListing(page));
+    }
+
+    private void markRead(  HttpExchange exchange,
+                            Map<String, String> params ) throws IOException {
+        String ids = params.get("id");
+        if(ids != null) {
+            for(String id: ids.split(",")) {
+                Item item = _items.get(id.trim());
+                if(item != null && item._kind.equals("t4")) {
+                    item._unread = false;
+                    synchronized(_inboxes) {
+                        List<Item> inbox =
+                                _inboxes.get(item._dest.toLowerCase());
+                        if(inbox != null) {
+                            inbox.remove(item);
+                        }
+                    }
+                }
+            }
+        }
+        respond(exchange, 200, "{}");
+    }
+
+    private void comment(   HttpExchange exchange,
+                            Map<String, String> params,
+                            String user ) throws IOException {
+        Item parent = _items.get("" + params.get("thing_id"));
+        if(user == null || parent == null) {
+            respond(exchange, 200, "{\"json\": {\"errors\": " +
+                        "[[\"USER_REQUIRED\", \"please login\", null]]}}");
+            return;
+        }
+
+        Item item = newItem("t1", user);
+        item._parent = parent.getName();
+        item._link = parent._kind.equals("t3") ?
+                                        parent.getName() : parent._link;
+        item._subreddit = parent._subreddit;
+        item._body = params.get("text");
+        _items.put(item.getName(), item);
+        synchronized(_threads) {
+            List<Item> thread = _threads.get(item._link);
+            if(thread == null) {
+                thread = new ArrayList<Item>();
+                _threads.put(item._link, thread);
+            }
+            thread.add(item);
+        }
+
+        for(Listener listener: _listeners) {
+            listener.commentPosted(item.getName(), user, item._body,
+                                            System.currentTimeMillis());
+        }
+        respond(exchange, 200, toThings(item));
+    }
+
+    private void edit(  HttpExchange exchange,
+                        Map<String, String> params,
+                        String user ) throws IOException {
+        Item item = _items.get("" + params.get("thing_id"));
+        if(item == null || user == null || !user.equals(item._author)) {
+            respond(exchange, 200, "{\"json\": {\"errors\": " +
+                        "[[\"NOT_AUTHOR\", \"not the author\", null]]}}");
+            return;
+        }
+        item._body = params.get("text");
+
+        for(Listener listener: _listeners) {
+            listener.commentEdited(item.getName(), user, item._body,
+                                            System.currentTimeMillis());
+        }
+        respond(exchange, 200, toThings(item));
+    }
+
+    private void info(  HttpExchange exchange,
+                        Map<String, String> params,
+                        String[] parts ) throws IOException {
+        String ids = params.get("id");
+        if(ids == null && parts[0].equals("by_id") && parts.length > 1) {
+            ids = parts[1];
+        }
+        List<Item> found = new ArrayList<Item>();
+        if(ids != null) {
+            for(String id: ids.split(",")) {
+                Item item = _items.get(id.trim());
+                if(item != null) {
+                    found.add(item);
+                }
+            }
+        }
+        respond(exchange, 200, toListing(found));
+    }
+
+    private void thread(HttpExchange exchange,
+                        String[] parts ) throws IOException {
+        int i = Arrays.asList(parts).indexOf("comments");
+        Item link = _items.get("t3_" + parts[i + 1]);
+        if(link == null) {
+            respond(exchange, 404, "{\"error\": 404}");
+            return;
+        }
+
+        List<Item> comments = new ArrayList<Item>();
+        synchronized(_threads) {
+            List<Item> thread = _threads.get(link.getName());
+            if(thread != null) {
+                comments.addAll(thread);
+            }
+        }
+
+        //
+        // A comment permalink shows that comment only.
+        //
+        if(i + 3 < parts.length) {
+            Item comment = _items.get("t1_" + parts[i + 3]);
+            comments.clear();
+            if(comment != null) {
+                comments.add(comment);
+            }
+        }
+        respond(exchange, 200, "[" + toListing(Arrays.asList(link)) + ", " +
+                                     toListing(comments) + "]");
+    }
+
+    private void userComments(  HttpExchange exchange,
+                                Map<String, String> params,
+                                String[] parts ) throws IOException {
+        String user = parts[1];
+        int limit = getLimit(params);
+        List<Item> comments = new ArrayList<Item>();
+        synchronized(_threads) {
+            for(List<Item> thread: _threads.values()) {
+                for(Item item: thread) {
+                    if(user.equalsIgnoreCase(item._author)) {
+                        comments.add(item);
+                    }
+                }
+            }
+        }
+        Collections.sort(comments, new Comparator<Item>() {
+            public int compare(Item a, Item b) {
+                return a._created > b._created ? -1 :
+                            (a._created < b._created ? 1 : 0);
+            }
+        });
+        if(comments.size() > limit) {
+            comments = comments.subList(0, limit);
+        }
+        respond(exchange, 200, toListing(comments));
+    }
+
+    /**
+     *
+     * A subreddit listing, newest first. Paged by before and after like
+     * reddit: before gives the items newer than an item, after those
+     * older.
+     *
+     */
+    private void listing(   HttpExchange exchange,
+                            Map<String, String> params,
+                            String[] parts ) throws IOException {
+        String subreddit = parts[1].toLowerCase();
+        int limit = getLimit(params);
+        String before = params.get("before");
+        String after = params.get("after");
+
+        List<Item> links = new ArrayList<Item>();
+        synchronized(_listings) {
+            List<Item> all = _listings.get(subreddit);
+            if(all != null) {
+                links.addAll(all);
+            }
+        }
+        Collections.reverse(links);
+
+        int from = 0;
+        int to = links.size();
+        for(int i = 0; i < links.size(); i++) {
+            String name = links.get(i).getName();
+            if(name.equals(before)) {
+                to = i;
+            }
+            if(name.equals(after)) {
+                from = i + 1;
+            }
+        }
+        if(before != null && after == null) {
+            from = Math.max(from, to - limit);
+        }
+        to = Math.min(to, from + limit);
+
+        respond(exchange, 200,
+                toListing(links.subList(from, Math.max(from, to))));
+    }
+
+    private static int getLimit(Map<String, String> params) {
+        try {
+            String limit = params.get("limit");
+            if(limit != null) {
+                return Math.max(1, Math.min(100, Integer.parseInt(limit)));
+            }
+        } catch(NumberFormatException nfe) {
+            // Default
+        }
+        return 25;
+    }
+
+    //
+    // JSON
+    //
+
+    private String toListing(List<Item> items) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\"kind\": \"Listing\", \"data\": {\"children\": [");
+        for(int i = 0; i < items.size(); i++) {
+            if(i > 0) {
+                sb.append(", ");
+            }
+            toJson(sb, items.get(i));
+        }
+        String first = items.size() > 0 ? items.get(0).getName() : null;
+        String last = items.size() > 0 ?
+                            items.get(items.size() - 1).getName() : null;
+        sb.append("], \"before\": ").append(quote(first));
+        sb.append(", \"after\": ").append(quote(last));
+        sb.append(", \"modhash\": \"fake\"}}");
+        return sb.toString();
+    }
+
+    private String toThings(Item item) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\"json\": {\"errors\": [], \"data\": {\"things\": [");
+        toJson(sb, item);
+        sb.append("]}}}");
+        return sb.toString();
+    }
+
+    private static void toJson(StringBuffer sb, Item item) {
+        long created = item._created / 1000;
+        sb.append("{\"kind\": ").append(quote(item._kind));
+        sb.append(", \"data\": {");
+        sb.append("\"id\": ").append(quote(item._id));
+        sb.append(", \"name\": ").append(quote(item.getName()));
+        sb.append(", \"author\": ").append(quote(item._author));
+        sb.append(", \"created\": ").append(created);
+        sb.append(", \"created_utc\": ").append(created);
+
+        if(item._kind.equals("t3")) {
+            sb.append(", \"subreddit\": ").append(quote(item._subreddit));
+            sb.append(", \"title\": ").append(quote(item._title));
+            sb.append(", \"is_self\": ").append(item._body != null);
+            sb.append(", \"selftext\": ").append(
+                    quote(item._body == null ? "" : item._body));
+            sb.append(", \"permalink\": ").append(quote(
+                    "/r/" + item._subreddit + "/comments/" + item._id + "/x/"));
+            sb.append(", \"url\": ").append(quote(
+                    "http://www.reddit.com/r/" + item._subreddit +
+                    "/comments/" + item._id + "/x/"));
+            sb.append(", \"num_comments\": 0, \"score\": 1");
+
+        } else if(item._kind.equals("t1")) {
+            sb.append(", \"subreddit\": ").append(quote(item._subreddit));
+            sb.append(", \"body\": ").append(quote(item._body));
+            sb.append(", \"parent_id\": ").append(quote(item._parent));
+            sb.append(", \"link_id\": ").append(quote(item._link));
+            sb.append(", \"replies\": \"\", \"score\": 1");
+            sb.append(", \"content\": ").append(quote(item._body));
+            sb.append(", \"parent\": ").append(quote(item._parent));
+
+        } else {
+            sb.append(", \"subject\": ").append(quote(item._title));
+            sb.append(", \"body\": ").append(quote(item._body));
+            sb.append(", \"dest\": ").append(quote(item._dest));
+            sb.append(", \"new\": ").append(item._unread);
+            sb.append(", \"was_comment\": false");
+        }
+        sb.append("}}");
+    }
+
+    static String quote(String s) {
+        if(s == null) {
+            return "null";
+        }
+        StringBuffer sb = new StringBuffer(s.length() + 2);
+        sb.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"':   sb.append("\\\""); break;
+                case '\\':  sb.append("\\\\"); break;
+                case '\n':  sb.append("\\n"); break;
+                case '\r':  sb.append("\\r"); break;
+                case '\t':  sb.append("\\t"); break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    //
+    // HTTP
+    //
+
+    private static void respond(HttpExchange exchange,
+                                int status,
+                                String body ) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+                                    "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> ret = new HashMap<String, String>();
+        if(form == null) {
+            return ret;
+        }
+        for(String pair: form.split("&")) {
+            int eq = pair.indexOf('=');
+            if(eq > 0) {
+                ret.put(decode(pair.substring(0, eq)),
+                        decode(pair.substring(eq + 1)));
+            }
+        }
+        return ret;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch(UnsupportedEncodingException uee) {
+            return s;
+        } catch(IllegalArgumentException iae) {
+            return s;
+        }
+    }
+
+    static long getLong(Properties props, String name, long def) {
+        String value = props.getProperty(name);
+        if(value == null || value.trim().equals("")) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException nfe) {
+            System.err.println("Bad value for " + name + ": " + value);
+            return def;
+        }
+    }
+
+    static double getDouble(Properties props, String name, double def) {
+        String value = props.getProperty(name);
+        if(value == null || value.trim().equals("")) {
+            return def;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch(NumberFormatException nfe) {
+            System.err.println("Bad value for " + name + ": " + value);
+            return def;
+        }
+    }
+
+}
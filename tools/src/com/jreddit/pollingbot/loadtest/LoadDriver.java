@@ -0,0 +1,470 @@
+package com.jreddit.pollingbot.loadtest;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+import com.jreddit.pollingbot.*;
+
+/**
+ *
+ * Runs the bot against a FakeReddit and measures it end to end.
+ *
+ * The driver posts poll requests to the bot's subreddit, waits for the
+ * polls to be created, then sends vote messages from distinct voters at
+ * a set rate. Each poll comment edit shows a new total, which tells
+ * which votes it reflects; the time from sending a vote to the first
+ * edit reflecting it is the vote's latency.
+ *
+ * With loadtest.instances above 1 the bot runs as that many instances,
+ * each a LoadInstance in a JVM of its own sharing one SQLite db, in
+ * partitioned mode. A share of the vote messages, loadtest.splitVotes,
+ * then votes in two polls at once, which may be owned by different
+ * instances.
+ *
+ * Usage: LoadDriver [config]
+ *
+ * The config (config/loadtest.properties by default) is read both by
+ * the driver (loadtest.* and fake.* settings) and by the bot itself.
+ *
+ */
+public class LoadDriver implements FakeReddit.Listener {
+
+    private static final String DEFAULT_CONFIG = "config/loadtest.properties";
+
+    //
+    // Subreddit of the links polls are requested for
+    //
+    private static final String TARGET_SUB = "loadtargets";
+
+    private static final String[] OPTIONS = new String[] {
+        "Red", "Green", "Blue" };
+
+    //
+    // System properties passed on to instance JVMs
+    //
+    private static final String[] FORWARDED = new String[] {
+        PollingBot.CONFIG_PROPERTY,
+        PersistenceUtils.DB_PROPERTY,
+        PersistenceUtils.ARCHIVE_PROPERTY,
+        "sqlite4java.library.path" };
+
+    private static final Pattern POLL_PATTERN =
+                Pattern.compile("to=([^&\\s]+)&message=vote\\+a&subject=Poll\\+(\\d+)");
+    private static final Pattern TOTAL_PATTERN =
+                Pattern.compile("Total votes: (\\d+)");
+
+    /**
+     *
+     * A poll the bot created, and the votes sent to it.
+     *
+     */
+    private static class Tracked {
+        private int _pollId;
+        private String _account;
+
+        //
+        // Send time of each vote, in order. Every vote is from a new
+        // voter, so the n-th vote is reflected once the total reaches n.
+        //
+        private long[] _sent = new long[64];
+        private int _sentCount;
+        private int _reflected;
+    }
+
+    private Properties _props;
+    private FakeReddit _fake;
+
+    //
+    // Poll comment id => poll. Guarded by itself.
+    //
+    private Map<String, Tracked> _polls = new HashMap<String, Tracked>();
+
+    //
+    // Latency of each reflected vote, in ms. Guarded by _polls.
+    //
+    private long[] _latencies = new long[1024];
+    private int _latencyCount;
+    private long _lastReflected;
+    private int _edits;
+
+    public LoadDriver(Properties props, FakeReddit fake) {
+        _props = props;
+        _fake = fake;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String config = args.length > 0 ? args[0] : DEFAULT_CONFIG;
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(config);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        if(System.getProperty(PollingBot.CONFIG_PROPERTY) == null) {
+            System.setProperty(PollingBot.CONFIG_PROPERTY, config);
+        }
+        if(!"true".equalsIgnoreCase(props.getProperty("incrementalCrawl"))) {
+            System.err.println("WARN incrementalCrawl is off, " +
+                        "poll requests need a running botkernel crawler.");
+        }
+
+        //
+        // Endpoint rules: fake.* for all, fake.<endpoint>.* for one.
+        //
+        FakeReddit.Rule base = FakeReddit.Rule.load(props, "fake",
+                                        new FakeReddit.Rule(0, 0, 0, 0, 0));
+        FakeReddit fake = new FakeReddit(
+                    (int)FakeReddit.getLong(props, "loadtest.port", 0),
+                    (int)FakeReddit.getLong(props, "loadtest.threads", 32),
+                    base );
+        for(String endpoint: FakeReddit.ENDPOINTS) {
+            fake.setRule(endpoint,
+                    FakeReddit.Rule.load(props, "fake." + endpoint, base));
+        }
+        fake.start();
+        fake.useAsProxy();
+        System.out.println("FakeReddit listening on " + fake.getPort());
+
+        LoadDriver driver = new LoadDriver(props, fake);
+        fake.addListener(driver);
+
+        int exit = 0;
+        try {
+            driver.run();
+        } catch(Exception e) {
+            e.printStackTrace();
+            exit = 1;
+        } finally {
+            fake.stop();
+        }
+        System.exit(exit);
+    }
+
+    /**
+     *
+     * Start the bot, run the load and print the results.
+     *
+     */
+    public void run() throws Exception {
+
+        int polls = (int)FakeReddit.getLong(_props, "loadtest.polls", 20);
+        int votes = (int)FakeReddit.getLong(_props, "loadtest.votes", 2000);
+        double rate = FakeReddit.getDouble(_props,
+                                    "loadtest.votesPerSecond", 100);
+        long timeout = 1000L * FakeReddit.getLong(_props,
+                                    "loadtest.timeoutSeconds", 600);
+        int instances = (int)FakeReddit.getLong(_props,
+                                    "loadtest.instances", 1);
+        double split = FakeReddit.getDouble(_props,
+                                    "loadtest.splitVotes", 0);
+        String subreddit = _props.getProperty("subreddit");
+
+        PollingBot bot = null;
+        Thread main = null;
+        List<Process> processes = new ArrayList<Process>();
+
+        if(instances > 1) {
+            if( "memory".equalsIgnoreCase(_props.getProperty("store")) ||
+                FakeReddit.getLong(_props, "shards", 0) <= 0) {
+                throw new IOException("Several instances need a shared " +
+                                      "store and shards above 0");
+            }
+            startInstances(instances, timeout, processes);
+        } else {
+            bot = new PollingBot();
+            bot.init();
+            main = new Thread(bot, "PollingBot-main");
+            main.start();
+        }
+
+        try {
+
+            //
+            // Requests older than the bot's start are ignored, and
+            // reddit dates are in seconds.
+            //
+            Thread.sleep(1100);
+
+            //
+            // Poll requests
+            //
+            long start = System.currentTimeMillis();
+            for(int i = 0; i < polls; i++) {
+                String target = _fake.submit(TARGET_SUB, "op" + i,
+                                            "Target " + i, "Anything.");
+                StringBuffer sb = new StringBuffer();
+                sb.append("http://www.reddit.com/r/" + TARGET_SUB +
+                          "/comments/" + target.substring(3) + "/x/ " +
+                          "Which colour is best?\n\n");
+                for(String option: OPTIONS) {
+                    sb.append("- " + option + "\n");
+                }
+                _fake.submit(subreddit, "requester" + i,
+                             "Poll request " + i, sb.toString());
+            }
+
+            int created = waitForPolls(polls, start + timeout);
+            long createTime = System.currentTimeMillis() - start;
+            System.out.println("Created " + created + " of " + polls +
+                               " polls in " + createTime + "ms");
+            if(created == 0) {
+                throw new IOException("No polls were created");
+            }
+
+            //
+            // Votes
+            //
+            List<Tracked> tracked;
+            synchronized(_polls) {
+                tracked = new ArrayList<Tracked>(_polls.values());
+            }
+            Random random = new Random(1);
+            int cast = 0;
+            long voteStart = System.currentTimeMillis();
+            for(int i = 0; i < votes; i++) {
+
+                long due = voteStart + (long)(1000.0 * i / rate);
+                long wait = due - System.currentTimeMillis();
+                if(wait > 0) {
+                    Thread.sleep(wait);
+                }
+
+                Tracked poll = tracked.get(random.nextInt(tracked.size()));
+                char option = (char)('a' + random.nextInt(OPTIONS.length));
+                Tracked other = null;
+                if(tracked.size() > 1 && random.nextDouble() < split) {
+                    do {
+                        other = tracked.get(random.nextInt(tracked.size()));
+                    } while(other == poll);
+                }
+                sent(poll);
+                cast++;
+                if(other == null) {
+                    _fake.sendMessage("voter" + i, poll._account,
+                                  "Poll " + poll._pollId, "vote " + option);
+                    continue;
+                }
+                sent(other);
+                cast++;
+                _fake.sendMessage("voter" + i, poll._account, "votes",
+                                  poll._pollId + ":" + option + " " +
+                                  other._pollId + ":" + option);
+            }
+            long sendTime = System.currentTimeMillis() - voteStart;
+
+            waitForVotes(cast, voteStart + timeout);
+            report(cast, voteStart, sendTime);
+
+        } finally {
+            if(bot != null) {
+                bot.shutdown();
+                main.join(60000);
+            }
+            stopInstances(processes);
+        }
+    }
+
+    /**
+     *
+     * Record the time a vote in a poll is sent.
+     *
+     */
+    private void sent(Tracked poll) {
+        synchronized(_polls) {
+            if(poll._sentCount == poll._sent.length) {
+                poll._sent = Arrays.copyOf(poll._sent, poll._sent.length * 2);
+            }
+            poll._sent[poll._sentCount++] = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     *
+     * Start bot instances in JVMs of their own, using this server as 
+     * their proxy, and wait for them to be running. Their output is
+     * copied to ours, prefixed with the instance number.
+     *
+     */
+    private void startInstances(int count, 
+                                long timeout,
+                                List<Process> processes)
+                                throws IOException, InterruptedException {
+
+        String java = new File(new File(System.getProperty("java.home"),
+                                        "bin"), "java").getPath();
+        final CountDownLatch ready = new CountDownLatch(count);
+
+        for(int i = 1; i <= count; i++) {
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            for(String key: FORWARDED) {
+                String value = System.getProperty(key);
+                if(value != null) {
+                    command.add("-D" + key + "=" + value);
+                }
+            }
+            command.add("-Dhttp.proxyHost=127.0.0.1");
+            command.add("-Dhttp.proxyPort=" + _fake.getPort());
+            command.add("-Dhttp.nonProxyHosts=");
+            command.add(LoadInstance.class.getName());
+
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            final Process process = builder.start();
+            processes.add(process);
+
+            final String prefix = "[" + i + "] ";
+            Thread echo = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(
+                                        process.getInputStream()));
+                        String line;
+                        while((line = in.readLine()) != null) {
+                            if(line.equals(LoadInstance.READY)) {
+                                ready.countDown();
+                            } else {
+                                System.out.println(prefix + line);
+                            }
+                        }
+                    } catch(IOException ioe) {
+                        // The instance is gone.
+                    }
+                }
+            }, "LoadDriver-instance-" + i);
+            echo.setDaemon(true);
+            echo.start();
+        }
+
+        if(!ready.await(timeout, TimeUnit.MILLISECONDS)) {
+            throw new IOException("Instances did not start");
+        }
+        System.out.println("Started " + count + " instances");
+    }
+
+    /**
+     *
+     * Have the instances shut down, by closing their input, and wait
+     * for them to exit.
+     *
+     */
+    private void stopInstances(List<Process> processes) 
+                                            throws InterruptedException {
+        for(Process process: processes) {
+            try {
+                process.getOutputStream().close();
+            } catch(IOException ioe) {
+                process.destroy();
+            }
+        }
+        for(Process process: processes) {
+            process.waitFor();
+        }
+    }
+
+    private int waitForPolls(int polls, long deadline)
+                                            throws InterruptedException {
+        synchronized(_polls) {
+            while(_polls.size() < polls) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) {
+                    break;
+                }
+                _polls.wait(wait);
+            }
+            return _polls.size();
+        }
+    }
+
+    private void waitForVotes(int votes, long deadline)
+                                            throws InterruptedException {
+        synchronized(_polls) {
+            while(_latencyCount < votes) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) {
+                    break;
+                }
+                _polls.wait(wait);
+            }
+        }
+    }
+
+    private void report(int votes, long voteStart, long sendTime) {
+        synchronized(_polls) {
+            long[] latencies = Arrays.copyOf(_latencies, _latencyCount);
+            Arrays.sort(latencies);
+
+            System.out.println("Sent " + votes + " votes in " +
+                                sendTime + "ms");
+            System.out.println("Reflected " + latencies.length +
+                                " votes in " + _edits + " edits, " +
+                                _fake.getUnread() + " messages unread");
+            if(latencies.length > 0) {
+                long elapsed = Math.max(1, _lastReflected - voteStart);
+                System.out.println(String.format(
+                            "Throughput: %.1f votes/s",
+                            1000.0 * latencies.length / elapsed));
+                System.out.println(
+                            "Vote to edit latency (ms): " +
+                            "p50 " + percentile(latencies, 50) +
+                            ", p90 " + percentile(latencies, 90) +
+                            ", p99 " + percentile(latencies, 99) +
+                            ", max " + latencies[latencies.length - 1]);
+            }
+        }
+        _fake.report(System.out);
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int i = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    public void commentPosted(String id, String author, String body, long time) {
+        Matcher m = POLL_PATTERN.matcher(body == null ? "" : body);
+        if(!m.find()) {
+            return;
+        }
+        Tracked poll = new Tracked();
+        poll._account = m.group(1);
+        poll._pollId = Integer.parseInt(m.group(2));
+        synchronized(_polls) {
+            _polls.put(id, poll);
+            _polls.notifyAll();
+        }
+    }
+
+    public void commentEdited(String id, String author, String body, long time) {
+        Matcher m = TOTAL_PATTERN.matcher(body == null ? "" : body);
+        if(!m.find()) {
+            return;
+        }
+        int total = Integer.parseInt(m.group(1));
+        synchronized(_polls) {
+            Tracked poll = _polls.get(id);
+            if(poll == null) {
+                return;
+            }
+            _edits++;
+            int reflected = Math.min(total, poll._sentCount);
+            for(int i = poll._reflected; i < reflected; i++) {
+                if(_latencyCount == _latencies.length) {
+                    _latencies = Arrays.copyOf(_latencies,
+                                               _latencies.length * 2);
+                }
+                _latencies[_latencyCount++] = time - poll._sent[i];
+                _lastReflected = time;
+            }
+            poll._reflected = Math.max(poll._reflected, reflected);
+            _polls.notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.jreddit.pollingbot.loadtest;
+
+import java.io.*;
+
+import com.jreddit.pollingbot.*;
+
+/**
+ *
+ * One bot instance of a multi-instance load test, in a JVM of its own
+ * started by LoadDriver. The driver passes the config, the shared db
+ * and its FakeReddit as the HTTP proxy in system properties.
+ *
+ * Prints READY once the bot is running, and shuts the bot down when
+ * its standard input is closed.
+ *
+ */
+public class LoadInstance {
+
+    public static final String READY = "READY";
+
+    public static void main(String[] args) throws Exception {
+
+        PollingBot bot = new PollingBot();
+        bot.init();
+        Thread main = new Thread(bot, "PollingBot-main");
+        main.start();
+
+        System.out.println(READY);
+        System.out.flush();
+
+        try {
+            while(System.in.read() != -1) {
+                // Wait for the driver to be done.
+            }
+        } finally {
+            bot.shutdown();
+            main.join(60000);
+        }
+        System.exit(0);
+    }
+
+}